@@ -3,9 +3,12 @@ package com.sanutty.keyvaluestore.app.config;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 
+import com.sanutty.keyvaluestore.app.repositories.CachingKeyValueRepository;
 import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
 import com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepository;
+import com.sanutty.keyvaluestore.app.repositories.OffHeapKeyValueRepository;
 import com.sanutty.keyvaluestore.app.repositories.RDBMSKeyValueRepository;
 
 @Configuration
@@ -23,4 +26,22 @@ public class RepositoryConfig
         return new MemStoreKeyValueRepository();
     }
 
+    @Bean
+    @ConditionalOnProperty(name = "repository.implementaion.class", havingValue = "OffHeap")
+    public KeyValueRepository getOffHeapKeyValueRepository() {
+        return new OffHeapKeyValueRepository();
+    }
+
+    /**
+     * Puts a near cache in front of the repository selected above. It is the primary KeyValueRepository, so the
+     * service talks to the cache; the repository parameter resolves to the selected repository because a bean is
+     * not injected into itself.
+     */
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "repository.cache.enabled", havingValue = "true")
+    public KeyValueRepository getCachingKeyValueRepository(KeyValueRepository repository) {
+        return new CachingKeyValueRepository( repository );
+    }
+
 }
@@ -1,11 +1,16 @@
 package com.sanutty.keyvaluestore.app.controllers;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -13,15 +18,20 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.sanutty.keyvaluestore.app.entities.ActionEnum;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
 import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
 import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+import com.sanutty.keyvaluestore.app.services.SecondaryIndexService;
 import com.sanutty.keyvaluestore.app.util.JSONUtilility;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
 /**
  * The MemoryStoreController defines CRUD APIs for the in memory datastore. 
  */
@@ -31,94 +41,233 @@ import com.sanutty.keyvaluestore.app.util.JSONUtilility;
 public class KeyValueStoreController
 {
   
+  /**
+   * Number of bulk items read from the request before they are handed to the repository and their responses
+   * streamed back
+   */
+  private static final int BULK_CHUNK = 1000;
+  
   @Autowired
   private KeyValueStoreService keyValueStoreService;
+  
+  @Autowired
+  private SecondaryIndexService secondaryIndexService;
 
   @GetMapping(path = "/{key}", produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<String> search(@PathVariable String key) {
+  public void search(@PathVariable String key, HttpServletResponse httpResponse) throws IOException {
     KeyValueStoreResponse resp = null;
     try {
       resp = keyValueStoreService.search( key );
     } catch (Exception e) {
-      resp = new KeyValueStoreResponse();
-      resp.setStatus( StatusEnum.Error );
-      resp.setMessage( e.getMessage());
-      String response = JSONUtilility.convertToJSON( resp );
-      return ResponseEntity.of( Optional.of(response) );
+      resp = errorResponse( e );
     }
-    return ResponseEntity.ok( JSONUtilility.convertToJSON( resp ) );  
+    writeResponse( resp, httpResponse );
   }
   
+  /**
+   * Saves the value. With ifVersion the save only succeeds if the key is currently at that version (0: the key
+   * must not exist); the version is returned by GET and by every successful PUT.
+   */
   @PutMapping("/{key}")
-  public ResponseEntity<String> save(@PathVariable String key, @RequestBody String value) {
+  public void save(@PathVariable String key, @RequestBody String value, @RequestParam(required = false) Long ttl,
+      @RequestParam(required = false) Long ifVersion, HttpServletResponse httpResponse) throws IOException {
     KeyValueStoreResponse resp;
     try {
-      resp = keyValueStoreService.save(key, value);
+      resp = keyValueStoreService.save(key, value, ttl == null ? KeyValueRepository.NO_TTL : ttl,
+          ifVersion == null ? KeyValueRepository.ANY_VERSION : ifVersion);
     } catch (Exception e) {
-      resp = new KeyValueStoreResponse();
-      resp.setStatus( StatusEnum.Error );
-      resp.setMessage( e.getMessage());
-      String response = JSONUtilility.convertToJSON( resp );
-      return ResponseEntity.of( Optional.of(response) );
+      resp = errorResponse( e );
     }
-    return ResponseEntity.ok( JSONUtilility.convertToJSON( resp ) );  
+    writeResponse( resp, httpResponse );
   }
 
   @DeleteMapping(path = "/{key}")
-  public ResponseEntity<String> delete(@PathVariable String key){
+  public void delete(@PathVariable String key, HttpServletResponse httpResponse) throws IOException {
     KeyValueStoreResponse resp;
     try {
       resp = keyValueStoreService.delete(key);
     } catch (Exception e) {
+      resp = errorResponse( e );
+    }
+    writeResponse( resp, httpResponse );
+  }
+  
+  /**
+   * Runs the requests as one transaction. The request array is bound element by element from the request stream
+   * and the responses are streamed back as newline delimited JSON, one line per request, without building the
+   * output in memory. A failed composite writes a single error line.
+   */
+  @PostMapping(path = "/composite", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void compositeRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+    List<KeyValueStoreResponse> responses;
+    try {
+      //a composite is all or nothing, so every step has to be known before the first one is applied
+      List<KeyValueStoreRequest> requests = new ArrayList<>();
+      JSONUtilility.readArray( httpRequest.getInputStream(), KeyValueStoreRequest.class ).forEachRemaining( requests::add );
+      responses = keyValueStoreService.compositeRequest( requests );
+    } catch (Exception e) {
+      responses = List.of( errorResponse( e ) );
+    }
+    httpResponse.setContentType( MediaType.APPLICATION_NDJSON_VALUE );
+    httpResponse.setCharacterEncoding( StandardCharsets.UTF_8.name() );
+    JSONUtilility.writeNDJSON( responses, httpResponse.getOutputStream() );
+  }
+  
+  /**
+   * Looks up a JSON array of keys. Every key gets its own NDJSON line and status, so a missing key does not fail
+   * the others. Not a transaction: use the composite endpoint for that. Like /_scan, the bulk paths start with an
+   * underscore so they do not shadow keys named mget, mput or mdelete.
+   */
+  @PostMapping(path = "/_mget", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void multiGet(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+    streamBulk( () -> JSONUtilility.readArray( httpRequest.getInputStream(), String.class ),
+        keyValueStoreService::multiGet, httpResponse );
+  }
+  
+  /**
+   * Saves a JSON object of key to value pairs, all with the same optional ttl. Not a transaction.
+   */
+  @PutMapping(path = "/_mput", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void multiPut(HttpServletRequest httpRequest, @RequestParam(required = false) Long ttl,
+      HttpServletResponse httpResponse) throws IOException {
+    long ttlSeconds = ttl == null ? KeyValueRepository.NO_TTL : ttl;
+    streamBulk( () -> JSONUtilility.readObject( httpRequest.getInputStream() ), chunk -> {
+      Map<String, String> entries = new LinkedHashMap<>();
+      for (Map.Entry<String, String> entry : chunk) {
+        entries.put( entry.getKey(), entry.getValue() );
+      }
+      return keyValueStoreService.multiPut( entries, ttlSeconds );
+    }, httpResponse );
+  }
+  
+  /**
+   * Deletes a JSON array of keys. Not a transaction.
+   */
+  @PostMapping(path = "/_mdelete", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void multiDelete(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+    streamBulk( () -> JSONUtilility.readArray( httpRequest.getInputStream(), String.class ),
+        keyValueStoreService::multiDelete, httpResponse );
+  }
+  
+  /**
+   * Streams the keys starting with prefix, or between from (inclusive) and to (exclusive), in key order as NDJSON
+   * lines, at most limit of them. Pass the last key received as cursor to fetch the next page. The keys are read
+   * from the repository BULK_CHUNK at a time, so a large page is never held in full. The underscore keeps the path
+   * from shadowing GET of a key named scan.
+   */
+  @GetMapping(path = "/_scan", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void scan(@RequestParam(required = false) String prefix, @RequestParam(required = false) String from,
+      @RequestParam(required = false) String to, @RequestParam(required = false) String cursor,
+      @RequestParam(defaultValue = "100") int limit, HttpServletResponse httpResponse) throws IOException {
+    streamPages( (after, pageSize) -> keyValueStoreService.scan( prefix, from, to, after, pageSize ), cursor, limit,
+        httpResponse );
+  }
+  
+  /**
+   * Declares a secondary index on a JSON path of the values, e.g. $.status or $.owner.id, and indexes the values
+   * already stored before it returns. Indexes can also be declared at startup with service.index.paths.
+   */
+  @PostMapping(path = "/indexes", produces = MediaType.APPLICATION_JSON_VALUE)
+  public void declareIndex(@RequestParam String path, HttpServletResponse httpResponse) throws IOException {
+    KeyValueStoreResponse resp;
+    try {
+      int size = secondaryIndexService.declare( path );
       resp = new KeyValueStoreResponse();
-      resp.setStatus( StatusEnum.Error );
-      resp.setMessage( e.getMessage());
-      String response = JSONUtilility.convertToJSON( resp );
-      return ResponseEntity.of( Optional.of(response) );
+      resp.setStatus( StatusEnum.OK );
+      resp.setMessage( size + " keys indexed on " + path );
+    } catch (Exception e) {
+      resp = errorResponse( e );
     }
-    return ResponseEntity.ok( JSONUtilility.convertToJSON( resp ) );  
+    writeResponse( resp, httpResponse );
   }
   
-  @PostMapping(path = "/composite", consumes = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<String> compositeRequest(@RequestBody List<KeyValueStoreRequest> requests) throws Exception {
-    StringBuilder buf = new StringBuilder();
+  /**
+   * Streams the keys whose value has value at the indexed path, with their values, in key order as NDJSON lines,
+   * at most limit of them. Pass the last key received as cursor to fetch the next page. Under /_query so it does
+   * not shadow GET of a key named query.
+   */
+  @GetMapping(path = "/_query", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public void query(@RequestParam String path, @RequestParam String value, @RequestParam(required = false) String cursor,
+      @RequestParam(defaultValue = "100") int limit, HttpServletResponse httpResponse) throws IOException {
+    streamPages( (after, pageSize) -> secondaryIndexService.query( path, value, after, pageSize ), cursor, limit,
+        httpResponse );
+  }
+  
+  /*
+   * Reads a paged result BULK_CHUNK keys at a time, each page starting after the last key of the one before, and
+   * streams every page before reading the next, so a large limit is never held in full.
+   */
+  private void streamPages(PageReader reader, String cursor, int limit, HttpServletResponse httpResponse) throws IOException {
+    httpResponse.setContentType( MediaType.APPLICATION_NDJSON_VALUE );
+    httpResponse.setCharacterEncoding( StandardCharsets.UTF_8.name() );
+    OutputStream out = httpResponse.getOutputStream();
     try {
-      
-      //-------------------------------------------
-      // call the composite service
-      //-------------------------------------------
-      List<KeyValueStoreResponse> responses = keyValueStoreService.compositeRequest( requests );
-
-      //-------------------------------------------
-      // render the service response
-      //-------------------------------------------
-      for (KeyValueStoreResponse response : responses) {
-        ActionEnum action = response.getAction();
-        
-        switch (action) {
-          case Search:
-              buf.append( "GET " + response.getKey() + "\n");
-              buf.append( JSONUtilility.convertToJSON( response ) + "\n");
-              break;
-          case Save:
-              buf.append( "PUT " + response.getKey() + " " + response.getOriginalPayload() + "\n");
-              buf.append( JSONUtilility.convertToJSON( response ) + "\n");
-              break;
-          case Delete:
-              buf.append( "DELETE " + response.getKey() + "\n");
-              buf.append( JSONUtilility.convertToJSON( response ) + "\n");
-              break;
+      int remaining = limit;
+      String after = cursor;
+      do {
+        int pageSize = Math.min( remaining, BULK_CHUNK );
+        List<KeyValueStoreResponse> page = reader.read( after, pageSize );
+        JSONUtilility.writeNDJSON( page, out );
+        if (page.size() < pageSize) {
+          break;
+        }
+        remaining -= page.size();
+        after = page.get( page.size() - 1 ).getKey();
+      } while (remaining > 0);
+    } catch (Exception e) {
+      JSONUtilility.writeNDJSON( List.of( errorResponse( e ) ), out );
+    }
+  }
+  
+  private interface PageReader {
+    List<KeyValueStoreResponse> read(String after, int limit) throws Exception;
+  }
+  
+  /*
+   * Reads the body BULK_CHUNK items at a time, runs each chunk through the service and streams its responses
+   * before reading the next one, so neither the request nor the response is ever held in full. An error ends
+   * the stream with an error line; the lines already written stand, as a bulk request is not a transaction.
+   */
+  private <T> void streamBulk(BodyReader<T> reader, BulkOperation<T> operation, HttpServletResponse httpResponse) throws IOException {
+    httpResponse.setContentType( MediaType.APPLICATION_NDJSON_VALUE );
+    httpResponse.setCharacterEncoding( StandardCharsets.UTF_8.name() );
+    OutputStream out = httpResponse.getOutputStream();
+    try {
+      Iterator<T> items = reader.open();
+      List<T> chunk = new ArrayList<>( BULK_CHUNK );
+      while (items.hasNext()) {
+        chunk.add( items.next() );
+        if (chunk.size() == BULK_CHUNK || !items.hasNext()) {
+          JSONUtilility.writeNDJSON( operation.apply( chunk ), out );
+          chunk.clear();
         }
-        
-      } //for
+      }
     } catch (Exception e) {
-      KeyValueStoreResponse resp = new KeyValueStoreResponse();
-      resp.setStatus( StatusEnum.Error );
-      resp.setMessage( e.getMessage());
-      String response = JSONUtilility.convertToJSON( resp );
-      return ResponseEntity.of( Optional.of(response) );
+      JSONUtilility.writeNDJSON( List.of( errorResponse( e ) ), out );
     }
-    
-    return ResponseEntity.ok(buf.toString());
+  }
+  
+  private interface BodyReader<T> {
+    Iterator<T> open() throws IOException;
+  }
+  
+  private interface BulkOperation<T> {
+    List<KeyValueStoreResponse> apply(List<T> chunk) throws Exception;
+  }
+  
+  private KeyValueStoreResponse errorResponse(Exception e) {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setStatus( StatusEnum.Error );
+    resp.setMessage( e.getMessage());
+    return resp;
+  }
+  
+  /*
+   * Writes the response straight to the servlet output stream instead of building an intermediate String.
+   */
+  private void writeResponse(KeyValueStoreResponse resp, HttpServletResponse httpResponse) throws IOException {
+    httpResponse.setContentType( MediaType.APPLICATION_JSON_VALUE );
+    httpResponse.setCharacterEncoding( StandardCharsets.UTF_8.name() );
+    JSONUtilility.writeJSON( resp, httpResponse.getOutputStream() );
   }
 }
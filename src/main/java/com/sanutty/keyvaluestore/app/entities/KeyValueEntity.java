@@ -13,6 +13,18 @@ public class KeyValueEntity
     @Column(length = 2048, nullable = false)
     private String searchValue;
     
+    /**
+     * Epoch milliseconds after which the key is expired, null if it never expires
+     */
+    @Column(nullable = true)
+    private Long expiresAt;
+    
+    /**
+     * Incremented by every save of the key, 1 for a new key
+     */
+    @Column(nullable = false)
+    private long version;
+    
     public String getKey()
     {
       return searchKey;
@@ -29,5 +41,21 @@ public class KeyValueEntity
     {
       this.searchValue = value;
     }
+    public Long getExpiresAt()
+    {
+      return expiresAt;
+    }
+    public void setExpiresAt( Long expiresAt )
+    {
+      this.expiresAt = expiresAt;
+    }
+    public long getVersion()
+    {
+      return version;
+    }
+    public void setVersion( long version )
+    {
+      this.version = version;
+    }
     
 }
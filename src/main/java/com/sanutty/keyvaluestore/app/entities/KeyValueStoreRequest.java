@@ -7,6 +7,7 @@ public class KeyValueStoreRequest
   String key;
   ActionEnum action;
   JsonNode payload;
+  Long ttl;
   
   public String getKey()
   {
@@ -32,6 +33,23 @@ public class KeyValueStoreRequest
   {
     this.payload = payload;
   }
-  
+  /**
+   * @return optional time to live of a saved key in seconds
+   */
+  public Long getTtl()
+  {
+    return ttl;
+  }
+  public void setTtl( Long ttl )
+  {
+    this.ttl = ttl;
+  }
+  /**
+   * @return the time to live in seconds, KeyValueRepository.NO_TTL if none was requested
+   */
+  public long getTtlSeconds()
+  {
+    return ttl == null ? 0 : ttl;
+  }
   
 }
@@ -1,5 +1,7 @@
 package com.sanutty.keyvaluestore.app.entities;
 
+import java.nio.charset.StandardCharsets;
+
 import com.google.gson.annotations.Expose;
 
 /**
@@ -11,14 +13,20 @@ public class KeyValueStoreResponse
   public static final String MSG_KEY_NOT_FOUND = "Key not found".intern();
   public static final String MSG_INVALID_JSON = "Invalid JSON".intern();
   public static final String MSG_EXECUTION_ERROR = "Error during execution ".intern();
+  public static final String MSG_CAPACITY_EXCEEDED = "Store capacity exceeded".intern();
+  public static final String MSG_VERSION_CONFLICT = "Version mismatch".intern();
+  public static final String MSG_TOO_LONG = "Key or value exceeds the maximum length".intern();
   
   @Expose private StatusEnum status;
   @Expose private String result;
+  @Expose private Long version;
   @Expose private String mesg;
   
   private String key;
   private ActionEnum action;
   private String originalPayload; 
+  private byte[] rawResult;
+  private long expiresAt;
   
   public String getOriginalPayload()
   {
@@ -54,12 +62,53 @@ public class KeyValueStoreResponse
   }
   public String getResult()
   {
+    if (result == null && rawResult != null) {
+      result = new String( rawResult, StandardCharsets.UTF_8 );
+    }
     return result;
   }
   public void setResult( String result )
   {
     this.result = result;
   }
+  /**
+   * @return the result as the UTF-8 bytes held by the repository, or null if the result was set as a String
+   */
+  public byte[] getRawResult()
+  {
+    return rawResult;
+  }
+  /**
+   * Sets the result as UTF-8 encoded bytes. The bytes are written to the client as is and are only decoded into
+   * a String if getResult is called.
+   */
+  public void setRawResult( byte[] rawResult )
+  {
+    this.rawResult = rawResult;
+  }
+  /**
+   * @return the version of the value that was read or written, null if the action does not produce one
+   */
+  public Long getVersion()
+  {
+    return version;
+  }
+  public void setVersion( Long version )
+  {
+    this.version = version;
+  }
+  /**
+   * @return epoch milliseconds after which the key that was read or written expires, 0 if it never expires or the
+   * repository does not report it
+   */
+  public long getExpiresAt()
+  {
+    return expiresAt;
+  }
+  public void setExpiresAt( long expiresAt )
+  {
+    this.expiresAt = expiresAt;
+  }
   public String getMessage()
   {
     return mesg;
@@ -69,6 +118,23 @@ public class KeyValueStoreResponse
     this.mesg = message;
   }
   
+  /**
+   * @return true if the requested action succeeded. A missing key is reported as a response with status Error and
+   * message MSG_KEY_NOT_FOUND rather than as an exception.
+   */
+  public boolean isOK()
+  {
+    return status == StatusEnum.OK;
+  }
+  public boolean isKeyNotFound()
+  {
+    return status == StatusEnum.Error && MSG_KEY_NOT_FOUND.equals( mesg );
+  }
+  public boolean isVersionConflict()
+  {
+    return status == StatusEnum.Error && MSG_VERSION_CONFLICT.equals( mesg );
+  }
+  
   
   
 }
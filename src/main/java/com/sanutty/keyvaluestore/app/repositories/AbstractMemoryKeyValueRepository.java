@@ -0,0 +1,421 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+
+/**
+ * Custom transaction handling shared by the repositories that keep their data in process memory. A composite
+ * request is executed in a single pass in request order. Before each write the entry it replaces is recorded in
+ * an undo log, and if a step fails the log is replayed backwards to put every touched key back exactly as it was.
+ *
+ * Writers are isolated by a WriteIsolation chosen by the subclass in its init method. A single-key save or delete
+ * runs as the only writer of its key. A composite request runs as the only writer of all its keys until it has
+ * committed or rolled back, so no other writer can see or overwrite a key while a composite is working on it.
+ *
+ * Searches do not go through the isolation and never wait. Before a composite first writes a key it registers
+ * the key together with its pre-image, the entry captured for the undo log, and it releases the keys once it has
+ * committed or rolled back. A search that finds its key registered by another thread answers from the pre-image,
+ * the last committed state of the key, instead of what the composite has written so far. A rollback bumps a stamp
+ * of each key's stripe after it has restored the keys and before it releases them, and a search whose stripe was
+ * stamped while it read reads the key again, so it never returns a write that was undone. The composite's own
+ * searches read its writes. A scan answers the keys of its page from their pre-images the same way, and adds the
+ * registered keys a composite has deleted so far; one that starts and rolls back a delete while the scan walks may
+ * still leave the key out, like any key deleted and saved again during a scan.
+ */
+public abstract class AbstractMemoryKeyValueRepository implements KeyValueRepository
+{
+  private WriteIsolation writeIsolation;
+
+  /**
+   * Keys written by composites that have not committed or rolled back yet, mapped to their pre-image
+   */
+  private final Map<String, UncommittedWrite> uncommitted = new ConcurrentHashMap<>();
+
+  private static final int STAMP_STRIPES = 1024;
+
+  /**
+   * Bumped for the stripe of every key a composite rolled back, after it has been restored and before it is
+   * released
+   */
+  private final AtomicLongArray rollbackStamps = new AtomicLongArray( STAMP_STRIPES );
+
+  /**
+   * Sets how writers are isolated. Must be called before the repository is used.
+   */
+  void setWriteIsolation(WriteIsolation writeIsolation) {
+    this.writeIsolation = writeIsolation;
+  }
+
+  /**
+   * Stores the value if the key is at expectedVersion. Called as the only writer of the key.
+   * @see KeyValueRepository#save(String, String, long, long, Connection, boolean)
+   */
+  protected abstract KeyValueStoreResponse applySave(String key, String value, long ttlSeconds, long expectedVersion) throws Exception;
+
+  /**
+   * Removes the key. Called as the only writer of the key.
+   */
+  protected abstract KeyValueStoreResponse applyDelete(String key) throws Exception;
+
+  /**
+   * Captures the current entry of a key for the undo log. Called as the only writer of the key.
+   * @return an object that restoreEntry understands, null if the key does not exist
+   */
+  protected abstract Object snapshotEntry(String key) throws Exception;
+
+  /**
+   * Puts a key back to the state captured by snapshotEntry, including its expiry time and version. Called
+   * as the only writer of the key.
+   * @param snapshot the value returned by snapshotEntry; null to remove the key
+   */
+  protected abstract void restoreEntry(String key, Object snapshot) throws Exception;
+
+  /**
+   * Answers a search from the state captured by snapshotEntry, while a composite that has not finished is writing
+   * the key. May be called from any thread at the same time as the composite writes the key.
+   * @param snapshot the value returned by snapshotEntry
+   * @return the search response of the captured entry, null if it is null or has expired since
+   */
+  protected abstract KeyValueStoreResponse readSnapshot(String key, Object snapshot);
+
+  /**
+   * Called on the requesting thread after a write has been applied, to wait for whatever the write must not be
+   * acknowledged before, such as a log record reaching the disk. The write itself may have run on another
+   * thread.
+   */
+  protected void afterWrite() {
+  }
+
+  @Override
+  public final KeyValueStoreResponse save( String key, String value, long ttlSeconds, long expectedVersion, Connection conn, boolean closeConnection ) throws Exception
+  {
+    KeyValueStoreResponse resp = writeIsolation.forKey( key, () -> applySave( key, value, ttlSeconds, expectedVersion ) );
+    afterWrite();
+    return resp;
+  }
+
+  @Override
+  public final KeyValueStoreResponse deleteById( String key, Connection conn, boolean closeConnection ) throws Exception
+  {
+    KeyValueStoreResponse resp = writeIsolation.forKey( key, () -> applyDelete( key ) );
+    afterWrite();
+    return resp;
+  }
+
+  @Override
+  public List<KeyValueStoreResponse> processComposite( List<KeyValueStoreRequest> requests ) throws Exception
+  {
+    List<String> keys = new ArrayList<>( requests.size() );
+    for (KeyValueStoreRequest request : requests) {
+      keys.add( request.getKey() );
+    }
+    try {
+      return writeIsolation.forKeys( keys, () -> processIsolated( requests ) );
+    } finally {
+      //a rollback is logged as well
+      afterWrite();
+    }
+  }
+
+  /*
+   * Runs the steps in request order. The undo log is sized for the batch up front, so a step allocates nothing
+   * beyond its own response.
+   */
+  private List<KeyValueStoreResponse> processIsolated( List<KeyValueStoreRequest> requests ) throws Exception
+  {
+    UncommittedComposite composite = new UncommittedComposite();
+    boolean committed = false;
+    try {
+      List<KeyValueStoreResponse> responses = processIsolated( requests, composite );
+      committed = true;
+      return responses;
+    } finally {
+      //the keys are only released once the composite is final, rolled back included
+      if (!committed) {
+        for (KeyValueStoreRequest request : requests) {
+          if (request.getAction() != ActionEnum.Search) {
+            rollbackStamps.incrementAndGet( stampStripe( request.getKey() ) );
+          }
+        }
+      }
+      for (KeyValueStoreRequest request : requests) {
+        UncommittedWrite write = uncommitted.get( request.getKey() );
+        if (write != null && write.composite == composite) {
+          uncommitted.remove( request.getKey(), write );
+        }
+      }
+    }
+  }
+
+  private List<KeyValueStoreResponse> processIsolated( List<KeyValueStoreRequest> requests, UncommittedComposite composite ) throws Exception
+  {
+    int size = requests.size();
+    KeyValueStoreResponse[] responses = new KeyValueStoreResponse[size];
+    String[] undoKeys = new String[size];
+    Object[] undoEntries = new Object[size];
+    int undoCount = 0;
+
+    for (int i = 0; i < size; i++) {
+      KeyValueStoreRequest request = requests.get( i );
+      String key = request.getKey();
+      ActionEnum action = request.getAction();
+      KeyValueStoreResponse resp;
+      try {
+        switch (action) {
+          case Save:
+            undoEntries[undoCount] = snapshotEntry( key );
+            register( key, composite, undoEntries[undoCount] );
+            resp = applySave( key, request.getPayload().toString(), request.getTtlSeconds(), ANY_VERSION );
+            break;
+          case Delete:
+            undoEntries[undoCount] = snapshotEntry( key );
+            register( key, composite, undoEntries[undoCount] );
+            resp = applyDelete( key );
+            break;
+          default:
+            resp = search( key, null, false );
+            break;
+        }
+      } catch (Exception e) {
+        rollback( undoKeys, undoEntries, undoCount );
+        throw e;
+      }
+      if (!resp.isOK()) {
+        //a failed step changed nothing, only the steps before it are undone
+        rollback( undoKeys, undoEntries, undoCount );
+        throw new RuntimeException( "Error processing composite requests" );
+      }
+      if (action != ActionEnum.Search) {
+        undoKeys[undoCount++] = key;
+      }
+      responses[i] = resp;
+    }
+    return Arrays.asList( responses );
+  }
+
+  /*
+   * Publishes the pre-image of a key before the composite first writes it, so a search that reads the write also
+   * finds the pre-image. A key written again keeps the pre-image of its first write, its last committed state.
+   */
+  private void register(String key, UncommittedComposite composite, Object preImage) {
+    UncommittedWrite write = uncommitted.get( key );
+    if (write == null || write.composite != composite) {
+      uncommitted.put( key, new UncommittedWrite( composite, preImage ) );
+    }
+  }
+
+  /*
+   * Restores the logged entries newest first, so a key written several times ends at its state before the batch
+   */
+  private void rollback(String[] undoKeys, Object[] undoEntries, int undoCount) throws Exception {
+    for (int i = undoCount - 1; i >= 0; i--) {
+      restoreEntry( undoKeys[i], undoEntries[i] );
+    }
+  }
+
+  /**
+   * Reads a key for a search without waiting. If a composite of another thread that has not finished has written
+   * the key, the pre-image it registered is returned instead of the key's current value.
+   * @param read reads the key
+   * @return the last committed state of the key
+   */
+  protected KeyValueStoreResponse readCommitted(String key, Function<String, KeyValueStoreResponse> read) {
+    return readCommitted( key, read, true );
+  }
+
+  /*
+   * With reportMissing, a key missing from the pre-image is answered as not found, otherwise as null like a scan
+   * read answers it
+   */
+  private KeyValueStoreResponse readCommitted(String key, Function<String, KeyValueStoreResponse> read,
+      boolean reportMissing) {
+    int stripe = stampStripe( key );
+    while (true) {
+      long stamp = rollbackStamps.get( stripe );
+      KeyValueStoreResponse value = read.apply( key );
+      UncommittedWrite write = uncommitted.isEmpty() ? null : uncommitted.get( key );
+      if (write != null && write.composite.owner != Thread.currentThread()) {
+        KeyValueStoreResponse committed = readSnapshot( key, write.preImage );
+        return committed != null || !reportMissing ? committed : notFound( key );
+      }
+      if (rollbackStamps.get( stripe ) == stamp) {
+        //no composite of the stripe rolled back since the read, so a write it saw was not undone
+        return value;
+      }
+    }
+  }
+
+  private static KeyValueStoreResponse notFound(String key) {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    resp.setStatus( StatusEnum.Error );
+    resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+    return resp;
+  }
+
+  /*
+   * Adds the keys of the range that composites of other threads have deleted and not committed yet to a page,
+   * since the walk did not find them, and trims it to limit again. Keys past the last key of a full page are
+   * left to the next page.
+   */
+  private List<KeyValueStoreResponse> withUncommittedDeletes(List<KeyValueStoreResponse> page, String from,
+      String to, String after, int limit) {
+    if (uncommitted.isEmpty()) {
+      return page;
+    }
+    String last = page.size() == limit ? page.get( page.size() - 1 ).getKey() : null;
+    TreeMap<String, KeyValueStoreResponse> merged = null;
+    for (Map.Entry<String, UncommittedWrite> entry : uncommitted.entrySet()) {
+      String key = entry.getKey();
+      UncommittedWrite write = entry.getValue();
+      if (write.composite.owner == Thread.currentThread() || write.preImage == null || !inRange( key, from, to, after )
+          || (last != null && key.compareTo( last ) >= 0)) {
+        continue;
+      }
+      if (merged == null) {
+        merged = new TreeMap<>();
+        for (KeyValueStoreResponse resp : page) {
+          merged.put( resp.getKey(), resp );
+        }
+      }
+      if (!merged.containsKey( key )) {
+        KeyValueStoreResponse resp = readSnapshot( key, write.preImage );
+        if (resp != null) {
+          merged.put( key, resp );
+        }
+      }
+    }
+    if (merged == null) {
+      return page;
+    }
+    List<KeyValueStoreResponse> responses = new ArrayList<>( merged.values() );
+    return responses.size() > limit ? new ArrayList<>( responses.subList( 0, limit ) ) : responses;
+  }
+
+  private static boolean inRange(String key, String from, String to, String after) {
+    return (from == null || key.compareTo( from ) >= 0) && (to == null || key.compareTo( to ) < 0)
+        && (after == null || key.compareTo( after ) > 0);
+  }
+
+  private static int stampStripe(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+  }
+
+  /**
+   * Scans with an ordered index of the keys, walking it from the start of the range. The index is weakly
+   * consistent: keys saved or deleted while the scan runs may or may not be listed.
+   * @param read the search response of a live key, null if the key is missing or expired
+   * @see KeyValueRepository#scan(String, String, String, int)
+   */
+  protected List<KeyValueStoreResponse> scanIndex(NavigableSet<String> index, String from, String to, String after,
+      int limit, Function<String, KeyValueStoreResponse> read) {
+    return withUncommittedDeletes( walkIndex( index, from, to, after, limit, read ), from, to, after, limit );
+  }
+
+  private List<KeyValueStoreResponse> walkIndex(NavigableSet<String> index, String from, String to, String after,
+      int limit, Function<String, KeyValueStoreResponse> read) {
+    //the cursor replaces from once it is past it
+    boolean afterCursor = after != null && (from == null || after.compareTo( from ) >= 0);
+    String lower = afterCursor ? after : from;
+    if (lower != null && to != null && lower.compareTo( to ) >= 0) {
+      return List.of();
+    }
+    NavigableSet<String> range = index;
+    if (lower != null && to != null) {
+      range = index.subSet( lower, !afterCursor, to, false );
+    } else if (lower != null) {
+      range = index.tailSet( lower, !afterCursor );
+    } else if (to != null) {
+      range = index.headSet( to, false );
+    }
+
+    List<KeyValueStoreResponse> responses = new ArrayList<>( Math.min( limit, 1024 ) );
+    for (String key : range) {
+      if (responses.size() >= limit) {
+        break;
+      }
+      KeyValueStoreResponse resp = readCommitted( key, read, false );
+      if (resp != null) {
+        responses.add( resp );
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Scans keys that are not kept in order. Every key is visited, and the limit smallest live keys of the range
+   * are kept in a bounded heap, so a page costs a pass over the store but no more memory than the page.
+   * @param keys every key of the store, in any order
+   * @param read the search response of a live key, null if the key is missing or expired
+   * @see KeyValueRepository#scan(String, String, String, int)
+   */
+  protected List<KeyValueStoreResponse> scanUnordered(Iterable<String> keys, String from, String to, String after,
+      int limit, Function<String, KeyValueStoreResponse> read) {
+    return withUncommittedDeletes( walkUnordered( keys, from, to, after, limit, read ), from, to, after, limit );
+  }
+
+  private List<KeyValueStoreResponse> walkUnordered(Iterable<String> keys, String from, String to, String after,
+      int limit, Function<String, KeyValueStoreResponse> read) {
+    Comparator<KeyValueStoreResponse> byKey = Comparator.comparing( KeyValueStoreResponse::getKey );
+    //the largest key kept is at the head, it is the one a smaller key replaces
+    PriorityQueue<KeyValueStoreResponse> smallest = new PriorityQueue<>( Math.min( limit, 1024 ) + 1, byKey.reversed() );
+    for (String key : keys) {
+      if (!inRange( key, from, to, after )) {
+        continue;
+      }
+      if (smallest.size() == limit && key.compareTo( smallest.peek().getKey() ) >= 0) {
+        continue;
+      }
+      KeyValueStoreResponse resp = readCommitted( key, read, false );
+      if (resp != null) {
+        smallest.offer( resp );
+        if (smallest.size() > limit) {
+          smallest.poll();
+        }
+      }
+    }
+    List<KeyValueStoreResponse> responses = new ArrayList<>( smallest );
+    Collections.sort( responses, byKey );
+    return responses;
+  }
+
+  /*
+   * A composite between its first write and its commit or rollback
+   */
+  private static final class UncommittedComposite {
+    //searches by the thread running the composite read its writes
+    final Thread owner = Thread.currentThread();
+  }
+
+  /*
+   * A key written by a composite that has not finished, with its entry from before the composite
+   */
+  private static final class UncommittedWrite {
+    final UncommittedComposite composite;
+    final Object preImage;
+
+    UncommittedWrite(UncommittedComposite composite, Object preImage) {
+      this.composite = composite;
+      this.preImage = preImage;
+    }
+  }
+
+}
@@ -0,0 +1,355 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicyEnum;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionTracker;
+import com.sanutty.keyvaluestore.app.repositories.eviction.LfuEvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.LruEvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.WTinyLfuEvictionPolicy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * A bounded near cache in front of another repository, meant for read-heavy use of the RDBMS repository. Hits and
+ * misses (as not found) are both cached, each for a limited time, and the least valuable entries are evicted by an
+ * EvictionPolicy once max-entries is reached.
+ *
+ * Every write through the cache invalidates the keys it touched once the delegate has returned, whether it
+ * succeeded, failed or rolled back, so a composite that is undone can not leave a value behind that was only
+ * visible while it ran. A search that loaded a value from the delegate only caches it if no write invalidated the
+ * key while it was loading; otherwise it could put back a value the write has just replaced.
+ *
+ * A value is cached for ttl-millis, or until the key itself expires if that is sooner. Writes made to the
+ * delegate's storage by other nodes are only seen once the cached entry is older than ttl-millis.
+ */
+public class CachingKeyValueRepository implements KeyValueRepository
+{
+  private static final int INVALIDATION_STRIPES = 1024;
+
+  private final KeyValueRepository repository;
+
+  private final Map<String, CachedValue> cache = new ConcurrentHashMap<>();
+
+  /**
+   * Bumped by every invalidation of a key in the stripe. A load records the count before reading the delegate
+   * and only caches its result if the count is unchanged.
+   */
+  private final AtomicLongArray invalidations = new AtomicLongArray( INVALIDATION_STRIPES );
+
+  @Value("${repository.cache.max-entries:100000}")
+  private long maxEntries;
+
+  @Value("${repository.cache.eviction.policy:WTinyLFU}")
+  private EvictionPolicyEnum evictionPolicy;
+
+  /**
+   * How long a value is served from the cache before it is read from the delegate again, at most until the key
+   * expires
+   */
+  @Value("${repository.cache.ttl-millis:5000}")
+  private long ttlMillis;
+
+  /**
+   * How long a key that was not found is answered as not found from the cache, 0 to not cache misses
+   */
+  @Value("${repository.cache.negative-ttl-millis:1000}")
+  private long negativeTtlMillis;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private EvictionTracker evictionTracker;
+
+  private Timer loadTimer;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param repository the repository whose searches are cached
+   */
+  public CachingKeyValueRepository(KeyValueRepository repository) {
+    this.repository = repository;
+  }
+
+  @PostConstruct
+  public void init() {
+    evictionTracker = new EvictionTracker( createEvictionPolicy() );
+    loadTimer = meterRegistry.timer( "keyvaluestore.cache.load" );
+    meterRegistry.gauge( "keyvaluestore.cache.entries", cache, Map::size );
+    meterRegistry.more().counter( "keyvaluestore.cache.hits", Tags.empty(), hits, LongAdder::sum );
+    meterRegistry.more().counter( "keyvaluestore.cache.misses", Tags.empty(), misses, LongAdder::sum );
+    meterRegistry.more().counter( "keyvaluestore.cache.evictions", Tags.empty(), evictions, LongAdder::sum );
+    meterRegistry.gauge( "keyvaluestore.cache.hit.ratio", this, CachingKeyValueRepository::getHitRatio );
+  }
+
+  private EvictionPolicy createEvictionPolicy() {
+    switch (evictionPolicy) {
+      case LFU:
+        return new LfuEvictionPolicy();
+      case WTinyLFU:
+        return new WTinyLfuEvictionPolicy( (int) Math.min( maxEntries, Integer.MAX_VALUE ) );
+      default:
+        //the cache is always bounded, None falls back to LRU
+        return new LruEvictionPolicy();
+    }
+  }
+
+  /**
+   * @return fraction of searches answered from the cache since startup
+   */
+  public double getHitRatio() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  @Override
+  public KeyValueStoreResponse search( String key, Connection conn, boolean closeConnection ) throws Exception
+  {
+    KeyValueStoreResponse cached = lookup( key );
+    if (cached != null) {
+      if (conn != null && closeConnection) {
+        conn.close();
+      }
+      return cached;
+    }
+    long stamp = invalidations.get( stripe( key ) );
+    long start = System.nanoTime();
+    KeyValueStoreResponse resp = repository.search( key, conn, closeConnection );
+    loadTimer.record( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+    admit( key, stamp, resp );
+    return resp;
+  }
+
+  /**
+   * Answers the cached keys and loads the others from the delegate with one searchAll call
+   */
+  @Override
+  public List<KeyValueStoreResponse> searchAll( List<String> keys ) throws Exception
+  {
+    List<KeyValueStoreResponse> responses = new ArrayList<>( keys.size() );
+    List<Integer> missed = new ArrayList<>();
+    List<String> missedKeys = new ArrayList<>();
+    long[] stamps = new long[keys.size()];
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get( i );
+      KeyValueStoreResponse cached = lookup( key );
+      if (cached == null) {
+        stamps[missed.size()] = invalidations.get( stripe( key ) );
+        missed.add( i );
+        missedKeys.add( key );
+      }
+      responses.add( cached );
+    }
+    if (missedKeys.isEmpty()) {
+      return responses;
+    }
+    long start = System.nanoTime();
+    List<KeyValueStoreResponse> loaded = repository.searchAll( missedKeys );
+    loadTimer.record( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+    for (int i = 0; i < loaded.size(); i++) {
+      admit( missedKeys.get( i ), stamps[i], loaded.get( i ) );
+      responses.set( missed.get( i ), loaded.get( i ) );
+    }
+    return responses;
+  }
+
+  @Override
+  public KeyValueStoreResponse save( String key, String value, long ttlSeconds, long expectedVersion, Connection conn, boolean closeConnection ) throws Exception
+  {
+    try {
+      return repository.save( key, value, ttlSeconds, expectedVersion, conn, closeConnection );
+    } finally {
+      invalidate( key );
+    }
+  }
+
+  @Override
+  public KeyValueStoreResponse deleteById( String key, Connection conn, boolean closeConnection ) throws Exception
+  {
+    try {
+      return repository.deleteById( key, conn, closeConnection );
+    } finally {
+      invalidate( key );
+    }
+  }
+
+  /**
+   * The written keys are invalidated after the composite has committed or rolled back. A repository that lets
+   * searches see the writes of a composite in progress may have had them cached in the meantime.
+   */
+  @Override
+  public List<KeyValueStoreResponse> processComposite( List<KeyValueStoreRequest> requests ) throws Exception
+  {
+    try {
+      return repository.processComposite( requests );
+    } finally {
+      for (KeyValueStoreRequest request : requests) {
+        if (request.getAction() != ActionEnum.Search) {
+          invalidate( request.getKey() );
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<KeyValueStoreResponse> saveAll( Map<String, String> entries, long ttlSeconds ) throws Exception
+  {
+    try {
+      return repository.saveAll( entries, ttlSeconds );
+    } finally {
+      for (String key : entries.keySet()) {
+        invalidate( key );
+      }
+    }
+  }
+
+  @Override
+  public List<KeyValueStoreResponse> deleteAll( List<String> keys ) throws Exception
+  {
+    try {
+      return repository.deleteAll( keys );
+    } finally {
+      for (String key : keys) {
+        invalidate( key );
+      }
+    }
+  }
+
+  /**
+   * Scans are passed to the delegate and not cached, a range can not be invalidated key by key
+   */
+  @Override
+  public List<KeyValueStoreResponse> scan( String from, String to, String after, int limit ) throws Exception
+  {
+    return repository.scan( from, to, after, limit );
+  }
+
+  /*
+   * Returns a new response for a cached key that has not outlived its ttl, null otherwise
+   */
+  private KeyValueStoreResponse lookup(String key) {
+    CachedValue cached = cache.get( key );
+    if (cached == null || cached.expiresAt - System.nanoTime() <= 0) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    evictionTracker.recordAccess( key );
+
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    if (cached.value == null) {
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+    } else {
+      resp.setStatus( StatusEnum.OK );
+      resp.setRawResult( cached.value );
+      resp.setVersion( cached.version );
+    }
+    return resp;
+  }
+
+  /*
+   * Caches a value or a miss loaded from the delegate, unless the key was invalidated since stamp was read.
+   * Errors other than not found are not cached.
+   */
+  private void admit(String key, long stamp, KeyValueStoreResponse resp) {
+    CachedValue value;
+    if (resp.isOK()) {
+      long ttlNanos = TimeUnit.MILLISECONDS.toNanos( ttlMillis );
+      if (resp.getExpiresAt() != 0) {
+        //never served past the key's own expiry
+        ttlNanos = Math.min( ttlNanos, TimeUnit.MILLISECONDS.toNanos( resp.getExpiresAt() - System.currentTimeMillis() ) );
+        if (ttlNanos <= 0) {
+          return;
+        }
+      }
+      byte[] bytes = resp.getRawResult() != null ? resp.getRawResult() : resp.getResult().getBytes( StandardCharsets.UTF_8 );
+      value = new CachedValue( bytes, resp.getVersion(), System.nanoTime() + ttlNanos );
+    } else if (resp.isKeyNotFound() && negativeTtlMillis > 0) {
+      value = new CachedValue( null, null, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( negativeTtlMillis ) );
+    } else {
+      return;
+    }
+
+    int stripe = stripe( key );
+    boolean[] inserted = new boolean[1];
+    //the stamp is compared inside compute, so an invalidation either happens before and is seen here or removes
+    //the entry after it has been put
+    cache.compute( key, (k, current) -> {
+      if (invalidations.get( stripe ) != stamp) {
+        return current;
+      }
+      inserted[0] = current == null;
+      return value;
+    } );
+    if (inserted[0]) {
+      evictionTracker.recordInsert( key );
+      evictIfOverBudget();
+    }
+  }
+
+  private void invalidate(String key) {
+    invalidations.incrementAndGet( stripe( key ) );
+    if (cache.remove( key ) != null) {
+      evictionTracker.recordRemove( key );
+    }
+  }
+
+  private void evictIfOverBudget() {
+    while (cache.size() > maxEntries) {
+      String victim = evictionTracker.evict();
+      if (victim == null) {
+        return;
+      }
+      if (cache.remove( victim ) != null) {
+        evictions.increment();
+      }
+    }
+  }
+
+  private static int stripe(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1);
+  }
+
+  /*
+   * A cached value, or a cached miss if value is null. expiresAt is on the System.nanoTime clock.
+   */
+  private static final class CachedValue
+  {
+    private final byte[] value;
+    private final Long version;
+    private final long expiresAt;
+
+    CachedValue(byte[] value, Long version, long expiresAt) {
+      this.value = value;
+      this.version = version;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
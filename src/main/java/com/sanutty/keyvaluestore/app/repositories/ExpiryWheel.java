@@ -0,0 +1,145 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel that actively reclaims keys whose time to live has passed. Expired keys are also
+ * dropped lazily when they are read, so the wheel only has to free memory eventually and never scans the store.
+ *
+ * The wheel has LEVELS levels of WHEEL_SIZE slots. A slot on level 0 spans one tick, a slot on level n spans
+ * WHEEL_SIZE^n ticks. A key is placed on the lowest level that can hold its expiry and moves down a level each
+ * time the slot it sits in comes due, so every key is touched at most LEVELS times and the work per tick is
+ * proportional to the number of keys that actually expire.
+ *
+ * schedule only appends to a lock-free queue. The wheel itself is owned by the single ticker thread, which moves
+ * newly scheduled keys into their slots at the start of every tick. The ticker only runs once start has been
+ * called; keys scheduled before that wait in the queue, so a store can schedule keys while it is being loaded
+ * without the expirer running concurrently with the load.
+ */
+class ExpiryWheel
+{
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  private static final int LEVELS = 4;
+
+  private final long tickMillis;
+  private final Consumer<String> expirer;
+  private final Queue<Timer> incoming = new ConcurrentLinkedQueue<>();
+  private final ArrayDeque<Timer>[][] slots;
+  private final ScheduledExecutorService ticker;
+
+  //the last tick processed, in ticks since the epoch
+  private long currentTick;
+
+  /**
+   * @param name name of the ticker thread
+   * @param tickMillis resolution of the wheel
+   * @param expirer called on the ticker thread with each key whose expiry time has been reached. It must check
+   * that the key still holds the expired value, since the key may have been saved again in the meantime.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  ExpiryWheel(String name, long tickMillis, Consumer<String> expirer) {
+    this.tickMillis = tickMillis;
+    this.expirer = expirer;
+    this.slots = new ArrayDeque[LEVELS][WHEEL_SIZE];
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+        slots[level][slot] = new ArrayDeque<>();
+      }
+    }
+    this.ticker = Executors.newSingleThreadScheduledExecutor( r -> {
+      Thread thread = new Thread( r, name );
+      thread.setDaemon( true );
+      return thread;
+    } );
+  }
+
+  /**
+   * Starts the ticker. Keys whose expiry time has passed by then are handed to the expirer on the first tick.
+   */
+  void start() {
+    ticker.execute( () -> currentTick = System.currentTimeMillis() / tickMillis );
+    ticker.scheduleAtFixedRate( this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Arranges for the expirer to be called with the key once expiresAt has passed.
+   * @param key the key
+   * @param expiresAt expiry time in epoch milliseconds
+   */
+  void schedule(String key, long expiresAt) {
+    //rounded up, so a key is never handed to the expirer before its expiry time
+    incoming.offer( new Timer( key, (expiresAt + tickMillis - 1) / tickMillis ) );
+  }
+
+  void close() {
+    ticker.shutdownNow();
+  }
+
+  /*
+   * Processes every tick up to the current time
+   */
+  private void advance() {
+    long targetTick = System.currentTimeMillis() / tickMillis;
+    Timer timer;
+    while ((timer = incoming.poll()) != null) {
+      //the slot of the current tick has already been expired, so new keys go no earlier than the next one
+      place( timer, currentTick + 1 );
+    }
+
+    while (currentTick < targetTick) {
+      currentTick++;
+      //slots of the higher levels that have come due are moved down before level 0 is expired
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+          ArrayDeque<Timer> slot = slots[level][(int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+          int count = slot.size();
+          for (int i = 0; i < count; i++) {
+            place( slot.poll(), currentTick );
+          }
+        }
+      }
+
+      ArrayDeque<Timer> due = slots[0][(int) currentTick & WHEEL_MASK];
+      while ((timer = due.poll()) != null) {
+        try {
+          expirer.accept( timer.key );
+        } catch (RuntimeException e) {
+          //the key is still removed lazily the next time it is read
+        }
+      }
+    }
+  }
+
+  private void place(Timer timer, long earliestTick) {
+    long tick = Math.max( timer.tick, earliestTick );
+    for (int level = 0; level < LEVELS; level++) {
+      int shift = WHEEL_BITS * level;
+      if ((tick >>> shift) - (currentTick >>> shift) < WHEEL_SIZE) {
+        slots[level][(int) (tick >>> shift) & WHEEL_MASK].add( timer );
+        return;
+      }
+    }
+    //beyond the span of the wheel: park in the farthest slot of the top level and place again when it comes due
+    int shift = WHEEL_BITS * (LEVELS - 1);
+    slots[LEVELS - 1][(int) ((currentTick >>> shift) + WHEEL_MASK) & WHEEL_MASK].add( timer );
+  }
+
+  private static final class Timer {
+    final String key;
+    final long tick;
+
+    Timer(String key, long tick) {
+      this.key = key;
+      this.tick = tick;
+    }
+  }
+
+}
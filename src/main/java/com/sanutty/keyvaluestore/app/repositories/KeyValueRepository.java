@@ -1,15 +1,108 @@
 package com.sanutty.keyvaluestore.app.repositories;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
 
+/**
+ * Operations on the key value store. A key that does not exist is not an exceptional case: search and deleteById
+ * report it through a KeyValueStoreResponse with status Error and message KeyValueStoreResponse.MSG_KEY_NOT_FOUND.
+ * Exceptions are reserved for failures of the underlying storage.
+ */
 public interface KeyValueRepository
 {
+  /**
+   * ttlSeconds value for a key that never expires
+   */
+  public static final long NO_TTL = 0;
+  
+  /**
+   * expectedVersion value for an unconditional save
+   */
+  public static final long ANY_VERSION = -1;
+  
+  /**
+   * @return on a hit, the value and its version
+   */
   public KeyValueStoreResponse search(String key, Connection conn, boolean closeConnection) throws Exception ;
-  public KeyValueStoreResponse save(String key, String value, Connection conn, boolean closeConnection) throws Exception;
+  
+  /**
+   * Saves a value if the key is at the expected version. Every save of a key increments its version by one,
+   * starting at 1 when the key is created; a key that is deleted or expires starts again at 1. The version check
+   * and the write are one atomic step.
+   * @param ttlSeconds time to live, NO_TTL (or any value not above 0) to keep the key until it is deleted
+   * @param expectedVersion ANY_VERSION to save unconditionally, 0 to save only if the key does not exist, or the
+   * version the key must currently have
+   * @return the new version on success, or status Error with message MSG_VERSION_CONFLICT if the key is not at
+   * expectedVersion
+   */
+  public KeyValueStoreResponse save(String key, String value, long ttlSeconds, long expectedVersion, Connection conn, boolean closeConnection) throws Exception;
+  
+  /**
+   * Saves a value unconditionally. The key is removed once ttlSeconds have passed; an expired key is reported as
+   * not found.
+   * @param ttlSeconds time to live, NO_TTL (or any value not above 0) to keep the key until it is deleted
+   */
+  public default KeyValueStoreResponse save(String key, String value, long ttlSeconds, Connection conn, boolean closeConnection) throws Exception {
+    return save( key, value, ttlSeconds, ANY_VERSION, conn, closeConnection );
+  }
+  
+  public default KeyValueStoreResponse save(String key, String value, Connection conn, boolean closeConnection) throws Exception {
+    return save( key, value, NO_TTL, conn, closeConnection );
+  }
+  
   public KeyValueStoreResponse deleteById(String key, Connection conn, boolean closeConnection) throws Exception;
   public List<KeyValueStoreResponse> processComposite(List<KeyValueStoreRequest> requests) throws Exception;
+  
+  /**
+   * Looks up several keys. Unlike a composite request this is not a transaction: every key is reported on its own
+   * and a missing key does not fail the others.
+   * @return one response per key, in the order of keys
+   */
+  public default List<KeyValueStoreResponse> searchAll(List<String> keys) throws Exception {
+    List<KeyValueStoreResponse> responses = new ArrayList<>( keys.size() );
+    for (String key : keys) {
+      responses.add( search( key, null, true ) );
+    }
+    return responses;
+  }
+  
+  /**
+   * Saves several values unconditionally, each with the same time to live. Not a transaction.
+   * @param entries key to JSON value, in the order the responses are returned
+   * @return one response per key
+   */
+  public default List<KeyValueStoreResponse> saveAll(Map<String, String> entries, long ttlSeconds) throws Exception {
+    List<KeyValueStoreResponse> responses = new ArrayList<>( entries.size() );
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      responses.add( save( entry.getKey(), entry.getValue(), ttlSeconds, null, true ) );
+    }
+    return responses;
+  }
+  
+  /**
+   * Deletes several keys. Not a transaction: a missing key is reported as not found and the others are deleted.
+   * @return one response per key, in the order of keys
+   */
+  public default List<KeyValueStoreResponse> deleteAll(List<String> keys) throws Exception {
+    List<KeyValueStoreResponse> responses = new ArrayList<>( keys.size() );
+    for (String key : keys) {
+      responses.add( deleteById( key, null, true ) );
+    }
+    return responses;
+  }
+  
+  /**
+   * Lists the live keys of a range in ascending order, with their values and versions
+   * @param from first key of the range, inclusive, null for no lower bound
+   * @param to end of the range, exclusive, null for no upper bound
+   * @param after cursor of a previous page: only keys after it are listed, null to start at from
+   * @param limit most keys listed
+   * @return up to limit responses in key order; fewer than limit if the range has no more keys
+   */
+  public List<KeyValueStoreResponse> scan(String from, String to, String after, int limit) throws Exception;
 }
@@ -0,0 +1,26 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+/**
+ * A value held by the MemStoreKeyValueRepository: the UTF-8 bytes of the JSON payload, its expiry time and its
+ * version
+ */
+final class MemStoreEntry
+{
+  final byte[] value;
+
+  //epoch milliseconds after which the entry is gone, 0 if it never expires
+  final long expiresAt;
+
+  final long version;
+
+  MemStoreEntry(byte[] value, long expiresAt, long version) {
+    this.value = value;
+    this.expiresAt = expiresAt;
+    this.version = version;
+  }
+
+  boolean isExpired(long now) {
+    return expiresAt != 0 && expiresAt <= now;
+  }
+
+}
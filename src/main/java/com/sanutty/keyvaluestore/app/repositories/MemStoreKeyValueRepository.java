@@ -1,242 +1,628 @@
 package com.sanutty.keyvaluestore.app.repositories;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 
 import com.sanutty.keyvaluestore.app.entities.ActionEnum;
-import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
 import com.sanutty.keyvaluestore.app.entities.StatusEnum;
-import com.sanutty.keyvaluestore.app.entities.Transaction;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicyEnum;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionTracker;
+import com.sanutty.keyvaluestore.app.repositories.eviction.LfuEvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.LruEvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.eviction.WTinyLfuEvictionPolicy;
+import com.sanutty.keyvaluestore.app.repositories.persistence.FsyncPolicyEnum;
+import com.sanutty.keyvaluestore.app.repositories.persistence.LogRecord;
+import com.sanutty.keyvaluestore.app.repositories.persistence.StorePersistence;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
-public class MemStoreKeyValueRepository implements KeyValueRepository
+public class MemStoreKeyValueRepository extends AbstractMemoryKeyValueRepository
 {
-  private Map<String, String> dataMap = new ConcurrentHashMap<>();
+  /**
+   * searchAll spreads the lookups over the common fork/join pool from this many keys on. Below it the cost of
+   * splitting the work is higher than the lookups themselves.
+   */
+  private static final int PARALLEL_SEARCH_THRESHOLD = 64;
+  
+  /**
+   * Values are held as the UTF-8 bytes of the validated JSON payload. They are encoded once on save and written
+   * to the client as is on search.
+   *
+   * There is one map per shard of the ShardedWriter, only changed by the writer thread that owns the shard. The
+   * maps are still concurrent so searches read them without a lock and see entries safely published.
+   */
+  private ConcurrentHashMap<String, MemStoreEntry>[] shardMaps;
+  
+  private ShardedWriter writer;
+  
+  /**
+   * The keys in ascending order, for scans. A lock-free skip list, so scans never block writers and writers only
+   * pay for it when a key is added or removed. Null if the ordered index is disabled, scans then read every key.
+   */
+  private NavigableSet<String> keyIndex;
+  
+  @Value("${repository.memstore.ordered-index:true}")
+  private boolean orderedIndex;
+  
+  /**
+   * Total length of all stored values in bytes, reported as keyvaluestore.memstore.value.bytes
+   */
+  private final LongAdder valueBytes = new LongAdder();
+  
+  /**
+   * Number of shards, each with its own writer thread. 0 for one per available processor.
+   */
+  @Value("${repository.memstore.shards:0}")
+  private int shards;
+  
+  /**
+   * Upper bound on the number of keys, 0 for no bound
+   */
+  @Value("${repository.memstore.max-entries:0}")
+  private long maxEntries;
+  
+  /**
+   * Upper bound on the total value bytes, 0 for no bound
+   */
+  @Value("${repository.memstore.max-bytes:0}")
+  private long maxBytes;
+  
+  @Value("${repository.memstore.eviction.policy:None}")
+  private EvictionPolicyEnum evictionPolicy;
+  
+  @Value("${repository.ttl.tick-millis:100}")
+  private long ttlTickMillis;
+  
+  @Value("${repository.memstore.persistence.enabled:false}")
+  private boolean persistenceEnabled;
+  
+  @Value("${repository.memstore.persistence.dir:data/memstore}")
+  private String persistenceDir;
+  
+  @Value("${repository.memstore.persistence.fsync:Interval}")
+  private FsyncPolicyEnum fsyncPolicy;
+  
+  @Value("${repository.memstore.persistence.fsync-interval-ms:10}")
+  private long fsyncIntervalMillis;
+  
+  @Value("${repository.memstore.persistence.snapshot-interval-seconds:300}")
+  private long snapshotIntervalSeconds;
+  
+  @Autowired
+  private MeterRegistry meterRegistry;
+  
+  @Autowired
+  private ApplicationEventPublisher eventPublisher;
+  
+  /**
+   * Null unless persistence is enabled. Every change to a shard map is logged by the writer of the shard, so the
+   * log has the changes to a key in the order they were applied.
+   */
+  private StorePersistence persistence;
+  
+  /**
+   * Released once the persisted data has been loaded. Operations wait for it, and readiness is held at
+   * REFUSING_TRAFFIC until then so a load balancer does not route requests to a half-loaded store.
+   */
+  private final CountDownLatch recoveryLatch = new CountDownLatch( 1 );
+  private volatile boolean recovered;
+  private volatile Exception recoveryFailure;
+  //set when readiness was turned back to REFUSING_TRAFFIC because recovery had not finished
+  private boolean readinessDeferred;
+  
+  /**
+   * Null unless an eviction policy and a budget are configured, so an unbounded store pays nothing for bookkeeping
+   */
+  private EvictionTracker evictionTracker;
+  
+  private ExpiryWheel expiryWheel;
+  
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  
+  //entries and value bytes chosen for eviction whose removal is still queued on their shard
+  private final LongAdder pendingEvictions = new LongAdder();
+  private final LongAdder pendingEvictionBytes = new LongAdder();
+  
+  @PostConstruct
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void init() throws IOException {
+    int shardCount = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+    shardMaps = new ConcurrentHashMap[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shardMaps[i] = new ConcurrentHashMap<>();
+    }
+    writer = new ShardedWriter( "memstore", shardCount );
+    if (orderedIndex) {
+      keyIndex = new ConcurrentSkipListSet<>();
+    }
+    setWriteIsolation( writer );
+    if (evictionPolicy != EvictionPolicyEnum.None && (maxEntries > 0 || maxBytes > 0)) {
+      evictionTracker = new EvictionTracker( createEvictionPolicy() );
+    }
+    expiryWheel = new ExpiryWheel( "memstore-expiry", ttlTickMillis, this::expire );
+    if (persistenceEnabled) {
+      persistence = new StorePersistence( Paths.get( persistenceDir ), fsyncPolicy, fsyncIntervalMillis, snapshotIntervalSeconds );
+      meterRegistry.gauge( "keyvaluestore.memstore.recovery.records", persistence, StorePersistence::getRecoveredRecords );
+      //recovery runs in the background so startup, the liveness probe and the actuator are not held up by it
+      Thread recovery = new Thread( this::recover, "memstore-recovery" );
+      recovery.setDaemon( true );
+      recovery.start();
+    } else {
+      expiryWheel.start();
+      recoveryFinished( null );
+    }
+    
+    meterRegistry.gauge( "keyvaluestore.memstore.entries", this, MemStoreKeyValueRepository::size );
+    meterRegistry.gauge( "keyvaluestore.memstore.write.queue", writer, ShardedWriter::getQueuedWrites );
+    meterRegistry.gauge( "keyvaluestore.memstore.value.bytes", valueBytes, LongAdder::sum );
+    meterRegistry.more().counter( "keyvaluestore.memstore.hits", Tags.empty(), hits, LongAdder::sum );
+    meterRegistry.more().counter( "keyvaluestore.memstore.misses", Tags.empty(), misses, LongAdder::sum );
+    meterRegistry.more().counter( "keyvaluestore.memstore.evictions", Tags.empty(), evictions, LongAdder::sum );
+    meterRegistry.gauge( "keyvaluestore.memstore.hit.ratio", this, MemStoreKeyValueRepository::getHitRatio );
+  }
+  
+  @PreDestroy
+  public void close() throws IOException {
+    expiryWheel.close();
+    writer.close();
+    if (persistence != null) {
+      persistence.close();
+    }
+  }
+  
+  private void recover() {
+    Exception failure = null;
+    try {
+      persistence.recover( this::restore );
+      //keys restored with a time to live are queued on the wheel, their expiry now goes through the shard writers
+      expiryWheel.start();
+      if (evictionTracker != null) {
+        //the budget may have been lowered since the data was written
+        evictIfOverBudget();
+      }
+      persistence.startSnapshots( this::liveRecords );
+    } catch (Exception e) {
+      failure = e;
+    }
+    recoveryFinished( failure );
+  }
+  
+  private synchronized void recoveryFinished(Exception failure) {
+    recoveryFailure = failure;
+    recovered = failure == null;
+    recoveryLatch.countDown();
+    if (recovered && readinessDeferred) {
+      readinessDeferred = false;
+      AvailabilityChangeEvent.publish( eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC );
+    }
+  }
+  
+  /**
+   * Spring Boot reports the application as ready once the context has started. While the store is still being
+   * recovered that is turned back to REFUSING_TRAFFIC; recoveryFinished accepts traffic again.
+   */
+  @EventListener
+  public synchronized void onReadinessChange(AvailabilityChangeEvent<ReadinessState> event) {
+    if (event.getState() == ReadinessState.ACCEPTING_TRAFFIC && !recovered) {
+      readinessDeferred = true;
+      AvailabilityChangeEvent.publish( eventPublisher, this, ReadinessState.REFUSING_TRAFFIC );
+    }
+  }
+  
+  /*
+   * Blocks a request that arrives before recovery has finished, for example through a port that bypasses the
+   * load balancer
+   */
+  private void awaitRecovery() throws InterruptedException {
+    recoveryLatch.await();
+    if (recoveryFailure != null) {
+      throw new IllegalStateException( "MemStore recovery failed", recoveryFailure );
+    }
+  }
+  
+  private EvictionPolicy createEvictionPolicy() {
+    switch (evictionPolicy) {
+      case LRU:
+        return new LruEvictionPolicy();
+      case LFU:
+        return new LfuEvictionPolicy();
+      default:
+        return new WTinyLfuEvictionPolicy( maxEntries > 0 ? (int) Math.min( maxEntries, Integer.MAX_VALUE ) : 65536 );
+    }
+  }
+  
+  /**
+   * @return fraction of searches that found their key since startup
+   */
+  public double getHitRatio() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+  
+  private long size() {
+    long size = 0;
+    for (Map<String, MemStoreEntry> map : shardMaps) {
+      size += map.size();
+    }
+    return size;
+  }
+  
+  private ConcurrentHashMap<String, MemStoreEntry> mapFor(String key) {
+    return shardMaps[writer.shardOf( key )];
+  }
 
   @Override
   public KeyValueStoreResponse search( String key, Connection conn, boolean closeConnection ) throws Exception
   {
-    String value = dataMap.get( key );
+    awaitRecovery();
+    return readCommitted( key, this::lookup );
+  }
+  
+  /**
+   * Looks the keys up in parallel across cores once there are PARALLEL_SEARCH_THRESHOLD or more of them
+   */
+  @Override
+  public List<KeyValueStoreResponse> searchAll( List<String> keys ) throws Exception
+  {
+    awaitRecovery();
+    KeyValueStoreResponse[] responses = new KeyValueStoreResponse[keys.size()];
+    IntStream indexes = IntStream.range( 0, responses.length );
+    if (responses.length >= PARALLEL_SEARCH_THRESHOLD) {
+      indexes = indexes.parallel();
+    }
+    indexes.forEach( i -> responses[i] = readCommitted( keys.get( i ), this::lookup ) );
+    return Arrays.asList( responses );
+  }
+  
+  /**
+   * Walks the ordered key index, or without it every shard map, and reads each key from its shard map. Keys
+   * saved or deleted while the scan runs may or may not be listed.
+   */
+  @Override
+  public List<KeyValueStoreResponse> scan( String from, String to, String after, int limit ) throws Exception
+  {
+    awaitRecovery();
+    long now = System.currentTimeMillis();
+    if (keyIndex != null) {
+      return scanIndex( keyIndex, from, to, after, limit, key -> scanned( key, now ) );
+    }
+    Iterable<String> keys = () -> Arrays.stream( shardMaps ).flatMap( map -> map.keySet().stream() ).iterator();
+    return scanUnordered( keys, from, to, after, limit, key -> scanned( key, now ) );
+  }
+  
+  /*
+   * The scan response of a key, null if it is missing or expired
+   */
+  private KeyValueStoreResponse scanned( String key, long now )
+  {
+    MemStoreEntry entry = mapFor( key ).get( key );
+    if (entry == null || entry.isExpired( now )) {
+      return null;
+    }
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    resp.setStatus( StatusEnum.OK );
+    resp.setRawResult( entry.value );
+    resp.setVersion( entry.version );
+    resp.setExpiresAt( entry.expiresAt );
+    return resp;
+  }
+  
+  private KeyValueStoreResponse lookup( String key )
+  {
+    MemStoreEntry entry = mapFor( key ).get( key );
     KeyValueStoreResponse resp = new KeyValueStoreResponse();
-    if (value == null) {
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    //an expired entry is left for the expiry wheel, searches never change the maps
+    if (entry == null || entry.isExpired( System.currentTimeMillis() )) {
+      misses.increment();
       resp.setStatus( StatusEnum.Error );
-      throw new RuntimeException(KeyValueStoreResponse.MSG_KEY_NOT_FOUND);
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      return resp;
+    }
+    hits.increment();
+    if (evictionTracker != null) {
+      evictionTracker.recordAccess( key );
     }
     
-    resp.setResult( value );
     resp.setStatus( StatusEnum.OK );
-    resp.setAction( ActionEnum.Search );
-    resp.setKey( key );
-    resp.setResult( value );
+    resp.setRawResult( entry.value );
+    resp.setVersion( entry.version );
+    resp.setExpiresAt( entry.expiresAt );
     
     return resp;
   }
 
   @Override
-  public KeyValueStoreResponse save( String key, String value, Connection conn, boolean closeConnection ) throws Exception
+  protected KeyValueStoreResponse applySave( String key, String value, long ttlSeconds, long expectedVersion ) throws Exception
   {
+    awaitRecovery();
     KeyValueStoreResponse resp = new KeyValueStoreResponse();
-    dataMap.put( key, value ); 
-    resp.setStatus( StatusEnum.OK );
     resp.setAction( ActionEnum.Save );
     resp.setKey( key );
     resp.setOriginalPayload( value );
+    byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+    long expiresAt = ttlSeconds > 0 ? System.currentTimeMillis() + ttlSeconds * 1000 : 0;
+    MemStoreEntry[] result = putEntry( key, bytes, expiresAt, expectedVersion );
+    MemStoreEntry entry = result[1];
+    if (entry == null) {
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_VERSION_CONFLICT );
+      return resp;
+    }
+    stored( key, result[0], entry );
+    if (evictionTracker != null) {
+      evictIfOverBudget();
+    }
+    resp.setStatus( StatusEnum.OK );
+    resp.setVersion( entry.version );
+    resp.setExpiresAt( entry.expiresAt );
     
     return resp;
   }
 
   @Override
-  public KeyValueStoreResponse deleteById( String key, Connection conn, boolean closeConnection ) throws Exception
+  protected KeyValueStoreResponse applyDelete( String key ) throws Exception
   {
-    String value = dataMap.get( key );
+    awaitRecovery();
+    MemStoreEntry entry = removeEntry( key );
     KeyValueStoreResponse resp = new KeyValueStoreResponse();
-    if (value == null) {
+    resp.setAction( ActionEnum.Delete );
+    resp.setKey( key );
+    if (entry != null) {
+      removed( key, entry );
+    }
+    if (entry == null || entry.isExpired( System.currentTimeMillis() )) {
       resp.setStatus( StatusEnum.Error );
-      throw new RuntimeException(KeyValueStoreResponse.MSG_KEY_NOT_FOUND);
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      return resp;
     }
     
-    dataMap.remove( key );
     resp.setStatus( StatusEnum.OK );
-    resp.setAction( ActionEnum.Delete );
-    resp.setKey( key );
     
     return resp;
   }
-
+  
   @Override
-  public List<KeyValueStoreResponse> processComposite( List<KeyValueStoreRequest> requests ) throws Exception
+  protected Object snapshotEntry( String key ) throws Exception
   {
-    List<KeyValueStoreResponse> respList = new LinkedList<>();
-    int sequence = 1;
-    KeyValueStoreResponse searchOldValue;
-    List<Transaction> transactionList = new ArrayList<>();
-    
-    for (KeyValueStoreRequest request : requests) {
-      
-      ActionEnum action = request.getAction();
-      
-      Transaction transaction = new Transaction();
-      transaction.setRequest( request );
-      transaction.setTransactionOrder( sequence++ );
-      transactionList.add( transaction );
-      
-      switch (action) {
-        case Save:
-            try {
-              searchOldValue = search(request.getKey(), null, false);
-              transaction.setOldValue( searchOldValue.getResult() );
-              transactionList.add( transaction );
-            } catch (Exception e) {
-              if (KeyValueStoreResponse.MSG_KEY_NOT_FOUND.equalsIgnoreCase(e.getMessage())) {
-                continue;
-              }
-            }
-            break;
-        case Delete:
-            try {
-              searchOldValue = search(request.getKey(), null, false);
-              transaction.setOldValue( searchOldValue.getResult() );
-            } catch (Exception e) {
-              if (KeyValueStoreResponse.MSG_KEY_NOT_FOUND.equalsIgnoreCase(e.getMessage())) {
-                continue;
-              }
-            }
-            break;
-      }
+    awaitRecovery();
+    MemStoreEntry entry = mapFor( key ).get( key );
+    //entries are immutable, so the undo log keeps a reference instead of a copy
+    return entry == null || entry.isExpired( System.currentTimeMillis() ) ? null : entry;
+  }
+  
+  @Override
+  protected KeyValueStoreResponse readSnapshot( String key, Object snapshot )
+  {
+    MemStoreEntry entry = (MemStoreEntry) snapshot;
+    if (entry == null || entry.isExpired( System.currentTimeMillis() )) {
+      return null;
     }
-    
-    if (processTransactions( transactionList )) {
-      for (Transaction transaction: transactionList) {
-        respList.add(transaction.getResponse());
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    resp.setStatus( StatusEnum.OK );
+    resp.setRawResult( entry.value );
+    resp.setVersion( entry.version );
+    resp.setExpiresAt( entry.expiresAt );
+    return resp;
+  }
+  
+  @Override
+  protected void restoreEntry( String key, Object snapshot ) throws Exception
+  {
+    if (snapshot == null) {
+      MemStoreEntry old = removeEntry( key );
+      if (old != null) {
+        removed( key, old );
       }
-      return respList;
-      
-    } else {
-      throw new RuntimeException("Error processing composite requests");
+      return;
     }
+    MemStoreEntry entry = (MemStoreEntry) snapshot;
+    stored( key, replaceEntry( key, entry ), entry );
   }
   
   /*
-   * This function processes the sequence of transactions in the order they are received. 
-   */
-  private boolean processTransactions(List<Transaction> transactionList) throws Exception {
-    boolean hasExecutionError = false;
-    Comparator<Transaction> minComparator = new Comparator<Transaction>() {
-      @Override
-      public int compare( Transaction t1, Transaction t2 )
-      {
-        return Integer.compare( t1.getTransactionOrder() , t2.getTransactionOrder());
+   * Evicts the keys chosen by the eviction policy until the store is back within its entry and byte budget.
+   * With W-TinyLFU the key that was just saved may be the one evicted if it is used less than the keys it competes with.
+   * A victim is removed by the writer of its shard, which may be busy or be the caller, so the removal is queued
+   * and counted as pending until it has been applied.
+   */
+  private void evictIfOverBudget() {
+    while ((maxEntries > 0 && size() - pendingEvictions.sum() > maxEntries)
+        || (maxBytes > 0 && valueBytes.sum() - pendingEvictionBytes.sum() > maxBytes)) {
+      String victim = evictionTracker.evict();
+      if (victim == null) {
+        return;
       }
-    };
-    
-    //commit transactions in order using min heap
-    PriorityQueue<Transaction> orderedTransactionList = new PriorityQueue<>(minComparator);
-    orderedTransactionList.addAll( transactionList );
-    
-    for (Transaction eachTransaction  : orderedTransactionList) {
-      
-      ActionEnum action = eachTransaction.getRequest().getAction();
-      switch (action) {
-        case Search:
-          try {
-            KeyValueStoreResponse resp = this.search( eachTransaction.getRequest().getKey(), null, false );
-            eachTransaction.setResponse( resp );
-          } catch (Exception e) {
-            hasExecutionError = true;
-          }
-          break;
-        case Save:
-            try {
-              KeyValueStoreResponse resp = save( eachTransaction.getRequest().getKey(), eachTransaction.getRequest().getPayload().toString(),null, false );
-              eachTransaction.setResponse( resp );
-            } catch (Exception e) {
-              hasExecutionError = true;
-            }
-            break;
-        case Delete:
-            try {
-              KeyValueStoreResponse resp = deleteById( eachTransaction.getRequest().getKey(), null, false );
-              eachTransaction.setResponse( resp );
-            } catch (Exception e) {
-              hasExecutionError = true;
-            }
-            break;
+      MemStoreEntry entry = mapFor( victim ).get( victim );
+      if (entry == null) {
+        continue;
       }
-    } // done processing all
-    
-    
-    if (hasExecutionError) {
-      rollback(transactionList);
-      return false;
-    } else {
-      return true;
+      pendingEvictions.increment();
+      pendingEvictionBytes.add( entry.value.length );
+      writer.submit( victim, () -> evict( victim, entry ) );
     }
   }
   
-  public StatusEnum commit(List<Transaction> list) {
-    
-    Comparator<Transaction> minComparator = new Comparator<Transaction>() {
-      @Override
-      public int compare( Transaction t1, Transaction t2 )
-      {
-        return Integer.compare( t1.getTransactionOrder() , t2.getTransactionOrder());
+  private void evict(String victim, MemStoreEntry entry) {
+    MemStoreEntry current = mapFor( victim ).get( victim );
+    if (current == entry) {
+      removeEntry( victim );
+      if (keyIndex != null) {
+        keyIndex.remove( victim );
+      }
+      valueBytes.add( -entry.value.length );
+      evictions.increment();
+    } else if (current != null) {
+      //saved again since it was chosen, keep tracking the new entry
+      evictionTracker.recordInsert( victim );
+    }
+    pendingEvictions.decrement();
+    pendingEvictionBytes.add( -entry.value.length );
+  }
+  
+  /*
+   * Called by the expiry wheel once the expiry time of a key has passed. The removal is left to the writer of
+   * the key's shard.
+   */
+  private void expire(String key) {
+    writer.submit( key, () -> {
+      MemStoreEntry entry = mapFor( key ).get( key );
+      //only removes the entry if it has not been replaced by a new save in the meantime.
+      //Expiry is not logged: recovery drops records whose expiry time has passed.
+      if (entry != null && entry.isExpired( System.currentTimeMillis() ) && mapFor( key ).remove( key, entry )) {
+        removed( key, entry );
       }
-    };
-    
-    //commit transactions in order using min heap
-    PriorityQueue<Transaction> orderedTransactionList = new PriorityQueue<>(minComparator);
-    orderedTransactionList.addAll( list );
-    
-    orderedTransactionList.forEach( transaction -> {
-      KeyValueStoreRequest request = transaction.getRequest();
-      
-      request.getAction();
-      
     } );
-    
-    return StatusEnum.OK;
   }
   
-  public StatusEnum rollback(List<Transaction> transactionList) throws Exception {
-    
-    Comparator<Transaction> maxComparator = new Comparator<Transaction>() {
-      @Override
-      public int compare( Transaction t1, Transaction t2 )
-      {
-        //the value 0 if x == y;a value less than 0 if x < y; anda value greater than 0 if x > y
-        if (t1.getTransactionOrder() == t2.getTransactionOrder()) {
-          return 0;
-        } else if (t1.getTransactionOrder() < t2.getTransactionOrder())  { //this is the max heap part
-          return 1;
-        } else {
-          return -1;
-        }
-          
+  /*
+   * Checks the version and puts a new entry, and logs it if persistence is enabled. Called by the writer of the
+   * key's shard, so nothing can change the key in between.
+   * The entry is published before it is logged: a snapshot rotates the log and then reads the maps, so a record
+   * that still lands in the segment the snapshot replaces is already visible to the snapshot.
+   * Returns the previous entry (null if there was none) and the new entry (null if the version did not match).
+   */
+  private MemStoreEntry[] putEntry(String key, byte[] value, long expiresAt, long expectedVersion) {
+    Map<String, MemStoreEntry> map = mapFor( key );
+    MemStoreEntry current = map.get( key );
+    //an expired entry that has not been reclaimed yet counts as absent
+    long currentVersion = current == null || current.isExpired( System.currentTimeMillis() ) ? 0 : current.version;
+    if (expectedVersion != ANY_VERSION && expectedVersion != currentVersion) {
+      return new MemStoreEntry[] { current, null };
+    }
+    MemStoreEntry entry = new MemStoreEntry( value, expiresAt, currentVersion + 1 );
+    map.put( key, entry );
+    if (persistence != null) {
+      persistence.append( LogRecord.put( key, value, expiresAt, entry.version ) );
+    }
+    return new MemStoreEntry[] { current, entry };
+  }
+  
+  /*
+   * Puts back an entry captured by snapshotEntry, with its original version, and logs it. Published before it
+   * is logged, see putEntry.
+   */
+  private MemStoreEntry replaceEntry(String key, MemStoreEntry entry) {
+    MemStoreEntry old = mapFor( key ).put( key, entry );
+    if (persistence != null) {
+      persistence.append( LogRecord.put( key, entry.value, entry.expiresAt, entry.version ) );
+    }
+    return old;
+  }
+  
+  /*
+   * Removes the key and logs the delete if it was present. Removed before it is logged, see putEntry.
+   */
+  private MemStoreEntry removeEntry(String key) {
+    MemStoreEntry old = mapFor( key ).remove( key );
+    if (old != null && persistence != null) {
+      persistence.append( LogRecord.delete( key ) );
+    }
+    return old;
+  }
+  
+  /**
+   * With FsyncPolicyEnum.Always, waits until the log records of the write are on disk. The writer appends them
+   * and moves on to the next write; waiting here lets the requests of all shards share an fsync.
+   */
+  @Override
+  protected void afterWrite() {
+    if (persistence != null && fsyncPolicy == FsyncPolicyEnum.Always) {
+      persistence.awaitDurable( persistence.getAppendedSequence() );
+    }
+  }
+  
+  /*
+   * Accounting for an entry that replaced old (null for a new key)
+   */
+  private void stored(String key, MemStoreEntry old, MemStoreEntry entry) {
+    valueBytes.add( old == null ? entry.value.length : entry.value.length - old.value.length );
+    if (old == null && keyIndex != null) {
+      keyIndex.add( key );
+    }
+    if (entry.expiresAt != 0) {
+      expiryWheel.schedule( key, entry.expiresAt );
+    }
+    if (evictionTracker != null) {
+      if (old == null) {
+        evictionTracker.recordInsert( key );
+      } else {
+        evictionTracker.recordAccess( key );
       }
-    };
-    
-    //rollback transactions in reverse order using max heap
-    PriorityQueue<Transaction> orderedTransactionList = new PriorityQueue<>(maxComparator);
-    orderedTransactionList.addAll( transactionList );
-    
-    for (Transaction transaction : orderedTransactionList) {
-      ActionEnum action = transaction.getRequest().getAction();
-      switch (action) {
-        case Save:
-            save( transaction.getRequest().getKey(), transaction.getOldValue(),null, false );
-            break;
-        case Delete:
-            save( transaction.getRequest().getKey(), transaction.getOldValue() ,null, false );
-            break;
-        }
-    }
-    return StatusEnum.OK;
+    }
+  }
+  
+  /*
+   * Applies a record read back from a snapshot or the write-ahead log during recovery. Snapshot records are
+   * applied from several threads at once. Requests wait for recovery and the expiry wheel is only started once
+   * it has finished, so nothing else changes the maps and they are written directly.
+   */
+  private void restore(LogRecord record) {
+    String key = record.getKey();
+    long expiresAt = record.getExpiresAt();
+    if (record.getOperation() == LogRecord.DELETE || (expiresAt != 0 && expiresAt <= System.currentTimeMillis())) {
+      MemStoreEntry old = mapFor( key ).remove( key );
+      if (old != null) {
+        removed( key, old );
+      }
+      return;
+    }
+    MemStoreEntry entry = new MemStoreEntry( record.getValue(), expiresAt, record.getVersion() );
+    stored( key, mapFor( key ).put( key, entry ), entry );
+  }
+  
+  /*
+   * A PUT record for every live key, for snapshots
+   */
+  private Iterator<LogRecord> liveRecords() {
+    long now = System.currentTimeMillis();
+    return Arrays.stream( shardMaps )
+        .flatMap( map -> map.entrySet().stream() )
+        .filter( e -> !e.getValue().isExpired( now ) )
+        .map( e -> LogRecord.put( e.getKey(), e.getValue().value, e.getValue().expiresAt, e.getValue().version ) )
+        .iterator();
+  }
+  
+  private void removed(String key, MemStoreEntry entry) {
+    valueBytes.add( -entry.value.length );
+    if (keyIndex != null) {
+      keyIndex.remove( key );
+    }
+    if (evictionTracker != null) {
+      evictionTracker.recordRemove( key );
+    }
   }
 
 }
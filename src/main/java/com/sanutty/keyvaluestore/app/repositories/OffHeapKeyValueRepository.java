@@ -0,0 +1,408 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * A repository that keeps the keys in an on-heap index and the values in off-heap memory managed by a
+ * SlabAllocator. Only the small index entries are visible to the garbage collector, so the size of the working
+ * set does not drive GC pause times or old generation size.
+ *
+ * A key is guarded by one of LOCK_STRIPES read/write locks. Searches copy the value out under the read lock, so a
+ * chunk can not be freed and reused by a concurrent save or delete of the same key while it is being read.
+ *
+ * Like the MemStore, the keys are also kept in an ordered index for scans unless
+ * repository.offheap.ordered-index=false; it is changed under the write lock of the key, together with the index.
+ */
+public class OffHeapKeyValueRepository extends AbstractMemoryKeyValueRepository
+{
+  private static final int LOCK_STRIPES = 64;
+
+  @Value("${repository.offheap.capacity-bytes:268435456}")
+  private long capacityBytes;
+
+  @Value("${repository.offheap.slab-bytes:4194304}")
+  private int slabBytes;
+
+  @Value("${repository.ttl.tick-millis:100}")
+  private long ttlTickMillis;
+
+  @Value("${repository.offheap.ordered-index:true}")
+  private boolean orderedIndex;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private SlabAllocator allocator;
+
+  private ExpiryWheel expiryWheel;
+
+  private final Map<String, OffHeapSlot> index = new ConcurrentHashMap<>();
+
+  //the keys in ascending order, for scans; null if the ordered index is disabled, scans then read every key
+  private NavigableSet<String> keyIndex;
+
+  private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+  public OffHeapKeyValueRepository() {
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  @PostConstruct
+  public void init() {
+    setWriteIsolation( new StripedWriteLocks() );
+    if (orderedIndex) {
+      keyIndex = new ConcurrentSkipListSet<>();
+    }
+    allocator = new SlabAllocator( slabBytes, capacityBytes );
+    expiryWheel = new ExpiryWheel( "offheap-expiry", ttlTickMillis, this::expire );
+    expiryWheel.start();
+    meterRegistry.gauge( "keyvaluestore.offheap.entries", index, Map::size );
+    meterRegistry.gauge( "keyvaluestore.offheap.capacity.bytes", allocator, SlabAllocator::getCapacity );
+    meterRegistry.gauge( "keyvaluestore.offheap.reserved.bytes", allocator, SlabAllocator::getReservedBytes );
+    meterRegistry.gauge( "keyvaluestore.offheap.used.bytes", allocator, SlabAllocator::getUsedBytes );
+  }
+
+  @PreDestroy
+  public void close() {
+    expiryWheel.close();
+  }
+
+  @Override
+  public KeyValueStoreResponse search( String key, Connection conn, boolean closeConnection ) throws Exception
+  {
+    return readCommitted( key, this::lookup );
+  }
+
+  private KeyValueStoreResponse lookup( String key )
+  {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+
+    ReentrantReadWriteLock.ReadLock lock = lockFor( key ).readLock();
+    lock.lock();
+    try {
+      OffHeapSlot slot = index.get( key );
+      //expired slots are left for the expiry wheel, which frees them under the write lock
+      if (slot == null || slot.isExpired( System.currentTimeMillis() )) {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+        return resp;
+      }
+      resp.setRawResult( allocator.read( slot.address, slot.length ) );
+      resp.setVersion( slot.version );
+      resp.setExpiresAt( slot.expiresAt );
+    } finally {
+      lock.unlock();
+    }
+    resp.setStatus( StatusEnum.OK );
+
+    return resp;
+  }
+
+  @Override
+  public List<KeyValueStoreResponse> scan( String from, String to, String after, int limit ) throws Exception
+  {
+    if (keyIndex != null) {
+      return scanIndex( keyIndex, from, to, after, limit, this::scanned );
+    }
+    return scanUnordered( index.keySet(), from, to, after, limit, this::scanned );
+  }
+
+  /*
+   * The scan response of a key, with its value copied out under the read lock. Null if it is missing or expired.
+   */
+  private KeyValueStoreResponse scanned( String key )
+  {
+    ReentrantReadWriteLock.ReadLock lock = lockFor( key ).readLock();
+    lock.lock();
+    try {
+      OffHeapSlot slot = index.get( key );
+      if (slot == null || slot.isExpired( System.currentTimeMillis() )) {
+        return null;
+      }
+      KeyValueStoreResponse resp = new KeyValueStoreResponse();
+      resp.setAction( ActionEnum.Search );
+      resp.setKey( key );
+      resp.setStatus( StatusEnum.OK );
+      resp.setRawResult( allocator.read( slot.address, slot.length ) );
+      resp.setVersion( slot.version );
+      resp.setExpiresAt( slot.expiresAt );
+      return resp;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected KeyValueStoreResponse applySave( String key, String value, long ttlSeconds, long expectedVersion ) throws Exception
+  {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Save );
+    resp.setKey( key );
+    resp.setOriginalPayload( value );
+
+    byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+    long version;
+    ReentrantReadWriteLock.WriteLock lock = lockFor( key ).writeLock();
+    lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      OffHeapSlot current = index.get( key );
+      long currentVersion = current == null || current.isExpired( now ) ? 0 : current.version;
+      if (expectedVersion != ANY_VERSION && expectedVersion != currentVersion) {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_VERSION_CONFLICT );
+        return resp;
+      }
+      version = currentVersion + 1;
+
+      long address = allocate( key, current, bytes.length );
+      if (address < 0) {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_CAPACITY_EXCEEDED );
+        return resp;
+      }
+      allocator.write( address, bytes );
+
+      long expiresAt = ttlSeconds > 0 ? now + ttlSeconds * 1000 : 0;
+      OffHeapSlot old = index.put( key, new OffHeapSlot( address, bytes.length, expiresAt, version ) );
+      if (old == null) {
+        if (keyIndex != null) {
+          keyIndex.add( key );
+        }
+      } else if (old.address != address) {
+        allocator.free( old.address, old.length );
+      }
+      if (expiresAt != 0) {
+        expiryWheel.schedule( key, expiresAt );
+      }
+    } finally {
+      lock.unlock();
+    }
+    resp.setStatus( StatusEnum.OK );
+    resp.setVersion( version );
+
+    return resp;
+  }
+
+  /*
+   * Finds a chunk for the new value of a key, called under its write lock. A value that rounds up to the size of
+   * the current chunk is written over it, since no reader can see the key meanwhile. When the store is full the
+   * current chunk is freed before a new one is taken, and the key is taken out of the index until the new slot is
+   * put, so an overwrite does not need the space of both values; if it still does not fit the old value is put
+   * back and -1 returned.
+   */
+  private long allocate( String key, OffHeapSlot current, int length )
+  {
+    if (current == null) {
+      return allocator.allocate( length );
+    }
+    if (SlabAllocator.fitsChunk( length, current.length )) {
+      return current.address;
+    }
+    long address = allocator.allocate( length );
+    if (address >= 0) {
+      return address;
+    }
+    byte[] previous = allocator.read( current.address, current.length );
+    allocator.free( current.address, current.length );
+    address = allocator.allocate( length );
+    if (address < 0) {
+      //always fits: the memory it had was just freed
+      long restored = allocator.allocate( previous.length );
+      allocator.write( restored, previous );
+      index.put( key, new OffHeapSlot( restored, previous.length, current.expiresAt, current.version ) );
+    } else {
+      index.remove( key );
+    }
+    return address;
+  }
+
+  @Override
+  protected KeyValueStoreResponse applyDelete( String key ) throws Exception
+  {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Delete );
+    resp.setKey( key );
+
+    ReentrantReadWriteLock.WriteLock lock = lockFor( key ).writeLock();
+    lock.lock();
+    try {
+      OffHeapSlot old = index.remove( key );
+      if (old != null) {
+        allocator.free( old.address, old.length );
+        unindex( key );
+      }
+      if (old == null || old.isExpired( System.currentTimeMillis() )) {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+        return resp;
+      }
+    } finally {
+      lock.unlock();
+    }
+    resp.setStatus( StatusEnum.OK );
+
+    return resp;
+  }
+
+  /**
+   * Copies the value out of off-heap memory, since the chunk it occupies is freed when the key is overwritten
+   */
+  @Override
+  protected Object snapshotEntry( String key )
+  {
+    ReentrantReadWriteLock.ReadLock lock = lockFor( key ).readLock();
+    lock.lock();
+    try {
+      OffHeapSlot slot = index.get( key );
+      if (slot == null || slot.isExpired( System.currentTimeMillis() )) {
+        return null;
+      }
+      return new OffHeapSnapshot( allocator.read( slot.address, slot.length ), slot.expiresAt, slot.version );
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The snapshot holds its own copy of the value, so it is read without the lock
+   */
+  @Override
+  protected KeyValueStoreResponse readSnapshot( String key, Object snapshot )
+  {
+    OffHeapSnapshot entry = (OffHeapSnapshot) snapshot;
+    if (entry == null || (entry.expiresAt != 0 && entry.expiresAt <= System.currentTimeMillis())) {
+      return null;
+    }
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    resp.setStatus( StatusEnum.OK );
+    resp.setRawResult( entry.value );
+    resp.setVersion( entry.version );
+    resp.setExpiresAt( entry.expiresAt );
+    return resp;
+  }
+
+  @Override
+  protected void restoreEntry( String key, Object snapshot )
+  {
+    ReentrantReadWriteLock.WriteLock lock = lockFor( key ).writeLock();
+    lock.lock();
+    try {
+      OffHeapSlot current = index.remove( key );
+      //freed first, so the restored value can reuse the chunk the rolled back value occupied
+      if (current != null) {
+        allocator.free( current.address, current.length );
+      }
+      if (snapshot == null) {
+        unindex( key );
+        return;
+      }
+      OffHeapSnapshot entry = (OffHeapSnapshot) snapshot;
+      long address = allocator.allocate( entry.value.length );
+      if (address < 0) {
+        throw new IllegalStateException( KeyValueStoreResponse.MSG_CAPACITY_EXCEEDED );
+      }
+      allocator.write( address, entry.value );
+      index.put( key, new OffHeapSlot( address, entry.value.length, entry.expiresAt, entry.version ) );
+      //a key that stays is never taken out of the ordered index, so a scan running meanwhile does not miss it
+      if (keyIndex != null) {
+        keyIndex.add( key );
+      }
+      if (entry.expiresAt != 0) {
+        expiryWheel.schedule( key, entry.expiresAt );
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Called by the expiry wheel once the expiry time of a key has passed
+   */
+  private void expire(String key) {
+    ReentrantReadWriteLock.WriteLock lock = lockFor( key ).writeLock();
+    lock.lock();
+    try {
+      OffHeapSlot slot = index.get( key );
+      if (slot != null && slot.isExpired( System.currentTimeMillis() )) {
+        index.remove( key );
+        allocator.free( slot.address, slot.length );
+        unindex( key );
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void unindex(String key) {
+    if (keyIndex != null) {
+      keyIndex.remove( key );
+    }
+  }
+
+  private ReentrantReadWriteLock lockFor(String key) {
+    int h = key.hashCode();
+    return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+  }
+
+  /*
+   * A value copied out of off-heap memory for the undo log of a composite request
+   */
+  private static final class OffHeapSnapshot {
+    final byte[] value;
+    final long expiresAt;
+    final long version;
+
+    OffHeapSnapshot(byte[] value, long expiresAt, long version) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.version = version;
+    }
+  }
+
+  /*
+   * Location of a value in off-heap memory
+   */
+  private static final class OffHeapSlot {
+    final long address;
+    final int length;
+    final long expiresAt;
+    final long version;
+
+    OffHeapSlot(long address, int length, long expiresAt, long version) {
+      this.address = address;
+      this.length = length;
+      this.expiresAt = expiresAt;
+      this.version = version;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt != 0 && expiresAt <= now;
+    }
+  }
+
+}
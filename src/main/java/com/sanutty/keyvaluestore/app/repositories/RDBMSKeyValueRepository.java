@@ -1,37 +1,153 @@
 package com.sanutty.keyvaluestore.app.repositories;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.LinkedList;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import com.sanutty.keyvaluestore.app.entities.ActionEnum;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
 import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+import com.sanutty.keyvaluestore.app.repositories.WriteBehindBuffer.PendingWrite;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 public class RDBMSKeyValueRepository implements KeyValueRepository {
   
-  @Value("${spring.datasource.driver-class-name}")
-  private String JDBC_DRIVER;
+  /**
+   * The pooled DataSource configured through the spring.datasource.hikari.* properties. Connections are borrowed
+   * per request and handed back to the pool on close instead of being opened with DriverManager every time.
+   */
+  @Autowired
+  private DataSource dataSource;
+  
+  @Value("${repository.ttl.tick-millis:100}")
+  private long ttlTickMillis;
+  
+  /**
+   * Number of requests allowed to hold a connection at the same time, 0 for no limit beyond the pool itself.
+   * With request threads that are cheap to block, such as virtual threads, thousands of requests can reach the
+   * repository at once; the excess then queue here in arrival order instead of timing out in the pool.
+   */
+  @Value("${repository.rdbms.max-concurrency:0}")
+  private int maxConcurrency;
+  
+  /**
+   * Longest time a request waits for a permit before it fails
+   */
+  @Value("${repository.rdbms.acquire-timeout-ms:30000}")
+  private long acquireTimeoutMillis;
+  
+  /**
+   * With write-behind, unconditional saves and deletes are acknowledged once they are buffered in memory and
+   * written to the table by a background flusher. Writes that were acknowledged but not flushed are lost if the
+   * process dies.
+   */
+  @Value("${repository.rdbms.write-behind.enabled:false}")
+  private boolean writeBehindEnabled;
+  
+  /**
+   * Most keys with a buffered write. Writers of new keys wait for a flush once it is reached.
+   */
+  @Value("${repository.rdbms.write-behind.max-pending:100000}")
+  private int writeBehindMaxPending;
+  
+  @Value("${repository.rdbms.write-behind.batch-size:1000}")
+  private int writeBehindBatchSize;
+  
+  @Value("${repository.rdbms.write-behind.flush-interval-ms:100}")
+  private long writeBehindFlushIntervalMillis;
   
-  @Value("${spring.datasource.url}")
-  private String DB_URL;
+  @Autowired
+  private MeterRegistry meterRegistry;
   
-  @Value("${spring.datasource.username}")
-  private String USER;
+  private ExpiryWheel expiryWheel;
   
-  @Value("${spring.datasource.password}")
-  private String PASS;
+  //null unless write-behind is enabled
+  private WriteBehindBuffer writeBehind;
   
-  private static final String GET_VALUE_FROM_KEY_SQL = "select search_value from keyvaluepairs where search_key = ?";
-  private static final String UPDATE_VALUE_FROM_KEY_SQL = "update keyvaluepairs set search_value = ? where search_key = ?";
-  private static final String INSERT_VALUE_SQL = "insert into keyvaluepairs (search_key, search_value) values(?,?)";
-  private static final String DELETE_VALUE_SQL = "delete from keyvaluepairs where search_key = ?";
+  //null unless maxConcurrency is set
+  private Semaphore connectionPermits;
+  
+  private static final String GET_VALUE_FROM_KEY_SQL = "select search_value, expires_at, version from keyvaluepairs where search_key = ?";
+  private static final String GET_VERSION_SQL = "select version from keyvaluepairs where search_key = ? and (expires_at is null or expires_at > ?)";
+  private static final String INSERT_VALUE_SQL = "insert into keyvaluepairs (search_key, search_value, expires_at, version) values(?,?,?,1)";
+  //an unconditional save in one statement; an expired row that has not been reclaimed yet starts again at version 1
+  private static final String MERGE_VALUE_SQL = "select version from final table (merge into keyvaluepairs t "
+      + "using (values (cast(? as varchar(125)), cast(? as varchar(2048)), cast(? as bigint))) s (search_key, search_value, expires_at) "
+      + "on t.search_key = s.search_key "
+      + "when matched then update set search_value = s.search_value, expires_at = s.expires_at, "
+      + "version = case when t.expires_at <= ? then 1 else t.version + 1 end "
+      + "when not matched then insert (search_key, search_value, expires_at, version) values (s.search_key, s.search_value, s.expires_at, 1))";
+  private static final String UPDATE_IF_VERSION_SQL = "update keyvaluepairs set search_value = ?, expires_at = ?, version = version + 1 "
+      + "where search_key = ? and version = ? and (expires_at is null or expires_at > ?)";
+  private static final String DELETE_VALUE_SQL = "delete from keyvaluepairs where search_key = ? and (expires_at is null or expires_at > ?)";
+  private static final String DELETE_EXPIRED_SQL = "delete from keyvaluepairs where search_key = ? and expires_at <= ?";
+  
+  //the column sizes of KeyValueEntity
+  static final int MAX_KEY_LENGTH = 125;
+  static final int MAX_VALUE_LENGTH = 2048;
+  
+  //statements of the composite and bulk paths
+  private static final int PREFETCH_CHUNK = 500;
+  private static final String PREFETCH_SQL_PREFIX = "select search_key, search_value, expires_at, version from keyvaluepairs where search_key in (";
+  private static final String DELETE_ROW_SQL = "delete from keyvaluepairs where search_key = ?";
+  private static final String UPDATE_ROW_SQL = "update keyvaluepairs set search_value = ?, expires_at = ?, version = ? where search_key = ? and version = ?";
+  private static final String INSERT_ROW_SQL = "insert into keyvaluepairs (search_key, search_value, expires_at, version) values(?,?,?,?)";
+  
+  //range conditions and the row limit are appended by scan
+  private static final String SCAN_SQL_PREFIX = "select search_key, search_value, expires_at, version from keyvaluepairs "
+      + "where (expires_at is null or expires_at > ?)";
+  
+  @PostConstruct
+  public void init() {
+    expiryWheel = new ExpiryWheel( "rdbms-expiry", ttlTickMillis, this::expire );
+    expiryWheel.start();
+    if (maxConcurrency > 0) {
+      connectionPermits = new Semaphore( maxConcurrency, true );
+      meterRegistry.gauge( "keyvaluestore.rdbms.permits.waiting", connectionPermits, Semaphore::getQueueLength );
+      meterRegistry.gauge( "keyvaluestore.rdbms.permits.available", connectionPermits, Semaphore::availablePermits );
+    }
+    if (writeBehindEnabled) {
+      writeBehind = new WriteBehindBuffer( "rdbms-write-behind", this::writePending, writeBehindMaxPending,
+          writeBehindBatchSize, writeBehindFlushIntervalMillis, acquireTimeoutMillis );
+      meterRegistry.gauge( "keyvaluestore.rdbms.write-behind.pending", writeBehind, WriteBehindBuffer::getPendingCount );
+      meterRegistry.gauge( "keyvaluestore.rdbms.write-behind.lag.ms", writeBehind, WriteBehindBuffer::getLagMillis );
+      meterRegistry.more().counter( "keyvaluestore.rdbms.write-behind.dropped", Tags.empty(), writeBehind, WriteBehindBuffer::getDroppedCount );
+    }
+  }
+  
+  @PreDestroy
+  public void close() {
+    if (writeBehind != null) {
+      //flushes what is still buffered; the data source is closed after this bean
+      writeBehind.close();
+    }
+    expiryWheel.close();
+  }
   
   
   /**
@@ -39,10 +155,15 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
    * @param key string key to be searched
    * @param conn Connection to database, passed in if from another method
    * @param closeConnection boolean to indicate whether to close the connection. False if the caller will handle connection closing. 
-   * @return KeyValueStoreResponse
+   * @return KeyValueStoreResponse, with status Error and message MSG_KEY_NOT_FOUND if the key does not exist
    * @throws Exception during processing
    */
   public KeyValueStoreResponse search(String key, Connection conn, boolean closeConnection) throws Exception {
+    PendingWrite pendingWrite = writeBehind == null ? null : writeBehind.get( key );
+    if (pendingWrite != null) {
+      release( conn, closeConnection );
+      return pendingResponse( key, pendingWrite );
+    }
     ResultSet rs = null;
     PreparedStatement stmt = null;
     KeyValueStoreResponse resp = new KeyValueStoreResponse();
@@ -50,7 +171,7 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
     try {
       
       if (conn == null) {
-        conn = DriverManager.getConnection(DB_URL, USER, PASS);
+        conn = getConnection();
       }
       stmt = conn.prepareStatement(GET_VALUE_FROM_KEY_SQL);
       
@@ -58,19 +179,28 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
       stmt.setString(1, key);        
       //execute the query
       rs = stmt.executeQuery();
+      resp.setAction( ActionEnum.Search );
+      resp.setKey( key );
       
       if (rs.next()) {
         String value = rs.getString("search_value");
+        long expiresAt = rs.getLong("expires_at");
+        long version = rs.getLong("version");
         rs.close();
-        resp.setResult( value );
-        resp.setStatus( StatusEnum.OK );
-        resp.setAction( ActionEnum.Search );
-        resp.setKey( key );
-        return resp;
-      } else {
-        rs.close();
-        throw new RuntimeException (KeyValueStoreResponse.MSG_KEY_NOT_FOUND);
+        if (expiresAt == 0 || expiresAt > System.currentTimeMillis()) {
+          resp.setResult( value );
+          resp.setVersion( version );
+          resp.setExpiresAt( expiresAt );
+          resp.setStatus( StatusEnum.OK );
+          return resp;
+        }
+        //the key has expired, remove it while we are here
+        deleteExpired( key, conn );
       }
+      rs.close();
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      return resp;
     } catch (Exception e) {
       throw e;
     } finally {
@@ -89,54 +219,70 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
   }
   
   /**
-   * Save either updates or inserts a row to the table depending on whether the key exists already
+   * Save either updates or inserts a row to the table depending on whether the key exists already. The version
+   * check is part of the statement: a conditional save is a single UPDATE ... WHERE version = ?, or an INSERT
+   * that fails on the primary key when the key must not exist. An unconditional save is a single MERGE that
+   * inserts the key at version 1 or overwrites it and increments its version, starting an expired row that has
+   * not been reclaimed yet over at version 1.
    * @param key string key to be saved
    * @param value string value to be saved
+   * @param ttlSeconds time to live of the key, NO_TTL to keep it until it is deleted
+   * @param expectedVersion ANY_VERSION, 0 if the key must not exist, or the version the key must be at
    * @param conn Connection to database, passed in if from another method
    * @param closeConnection boolean to indicate whether to close the connection. False if the caller will handle connection closing. 
-   * @return KeyValueStoreResponse
+   * @return KeyValueStoreResponse with the new version, or with message MSG_VERSION_CONFLICT, or MSG_TOO_LONG if
+   * the key or value does not fit its column
    * @throws Exception during processing
    */
-  public KeyValueStoreResponse save(String key, String value, Connection conn, boolean closeConnection) throws Exception {
-    PreparedStatement stmt = null;
+  public KeyValueStoreResponse save(String key, String value, long ttlSeconds, long expectedVersion, Connection conn, boolean closeConnection) throws Exception {
     KeyValueStoreResponse resp = new KeyValueStoreResponse();
-    boolean exists = false;
+    resp.setKey( key );
+    resp.setOriginalPayload( value );
+    resp.setAction( ActionEnum.Save);
+    
+    //checked before a write-behind save is acknowledged, the flusher could never write it
+    if (key.length() > MAX_KEY_LENGTH || value.length() > MAX_VALUE_LENGTH) {
+      release( conn, closeConnection );
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_TOO_LONG );
+      return resp;
+    }
+    
+    if (writeBehind != null) {
+      if (expectedVersion == ANY_VERSION) {
+        //the version is assigned when the write is flushed
+        writeBehind.save( key, value, ttlSeconds > 0 ? System.currentTimeMillis() + ttlSeconds * 1000 : 0 );
+        release( conn, closeConnection );
+        resp.setStatus( StatusEnum.OK );
+        return resp;
+      }
+      //the version check needs the latest write of the key in the table
+      writeBehind.flush( List.of( key ) );
+    }
     
     try {
       
       if (conn == null) {
-        conn = DriverManager.getConnection(DB_URL, USER, PASS);
+        conn = getConnection();
       }
-      //Does the key exist
-      try {
-        KeyValueStoreResponse searchResp = search(key, conn, false);
-        if (searchResp.getStatus() == StatusEnum.OK) {
-          exists = true;
-        }
-      } catch (Exception e) {
-        if (KeyValueStoreResponse.MSG_KEY_NOT_FOUND.equalsIgnoreCase(e.getMessage())) {
-          exists = false;
-        } else {
-          throw e;
+      long expiresAt = ttlSeconds > 0 ? System.currentTimeMillis() + ttlSeconds * 1000 : 0;
+      long version;
+      if (expectedVersion == ANY_VERSION) {
+        version = merge( key, value, expiresAt, conn );
+      } else {
+        boolean written = expectedVersion == 0 ? insert( key, value, expiresAt, conn ) : update( key, value, expiresAt, expectedVersion, conn );
+        if (!written) {
+          resp.setStatus( StatusEnum.Error );
+          resp.setMessage( KeyValueStoreResponse.MSG_VERSION_CONFLICT );
+          return resp;
         }
+        version = expectedVersion + 1;
+      }
+      if (expiresAt != 0) {
+        expiryWheel.schedule( key, expiresAt );
       }
-      
-      if (!exists) {        
-        //insert
-        stmt = conn.prepareStatement( INSERT_VALUE_SQL );
-        stmt.setString(1, key);
-        stmt.setString(2, value);        
-      } else {
-        //update
-        stmt = conn.prepareStatement( UPDATE_VALUE_FROM_KEY_SQL );
-        stmt.setString(1, value);
-        stmt.setString(2, key); 
-      }      
-      stmt.execute();      
       resp.setStatus( StatusEnum.OK );
-      resp.setKey( key );
-      resp.setOriginalPayload( value );
-      resp.setAction( ActionEnum.Save);
+      resp.setVersion( version );
       return resp;
     } catch (Exception e) {
       if (closeConnection) {
@@ -144,60 +290,126 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
       }
       throw e;
     } finally {
-      try {       
-        stmt.close();
-        if (closeConnection) {
-          conn.close();
-        }        
-      } catch (Exception e) {
-        throw e;
+      if (closeConnection) {
+        conn.close();
+      }        
+    }
+  }
+  
+  /*
+   * Version of a live key, 0 if it does not exist or has expired
+   */
+  private long currentVersion(String key, Connection conn) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement( GET_VERSION_SQL )) {
+      stmt.setString(1, key);
+      stmt.setLong(2, System.currentTimeMillis());
+      try (ResultSet rs = stmt.executeQuery()) {
+        return rs.next() ? rs.getLong(1) : 0;
       }
     }
   }
   
+  /*
+   * Inserts or overwrites the key with a single MERGE. Returns the new version.
+   */
+  private long merge(String key, String value, long expiresAt, Connection conn) throws SQLException {
+    try {
+      return mergeOnce( key, value, expiresAt, conn );
+    } catch (SQLIntegrityConstraintViolationException e) {
+      //a concurrent save inserted the key between the match and the insert, so it is matched now; a second
+      //violation is a real constraint failure
+      return mergeOnce( key, value, expiresAt, conn );
+    }
+  }
+  
+  private long mergeOnce(String key, String value, long expiresAt, Connection conn) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement( MERGE_VALUE_SQL )) {
+      stmt.setString(1, key);
+      stmt.setString(2, value);
+      setExpiresAt( stmt, 3, expiresAt );
+      stmt.setLong(4, System.currentTimeMillis());
+      try (ResultSet rs = stmt.executeQuery()) {
+        rs.next();
+        return rs.getLong(1);
+      }
+    }
+  }
+  
+  /*
+   * Inserts the key at version 1. Returns false if the key already exists.
+   */
+  private boolean insert(String key, String value, long expiresAt, Connection conn) throws SQLException {
+    //an expired row that has not been reclaimed yet would block the insert
+    deleteExpired( key, conn );
+    try (PreparedStatement stmt = conn.prepareStatement( INSERT_VALUE_SQL )) {
+      stmt.setString(1, key);
+      stmt.setString(2, value);
+      setExpiresAt( stmt, 3, expiresAt );
+      stmt.executeUpdate();
+      return true;
+    } catch (SQLIntegrityConstraintViolationException e) {
+      return false;
+    }
+  }
+  
+  /*
+   * Overwrites the key and increments its version if it is live and at the given version
+   */
+  private boolean update(String key, String value, long expiresAt, long version, Connection conn) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement( UPDATE_IF_VERSION_SQL )) {
+      stmt.setString(1, value);
+      setExpiresAt( stmt, 2, expiresAt );
+      stmt.setString(3, key);
+      stmt.setLong(4, version);
+      stmt.setLong(5, System.currentTimeMillis());
+      return stmt.executeUpdate() == 1;
+    }
+  }
+  
+  private static void setExpiresAt(PreparedStatement stmt, int index, long expiresAt) throws SQLException {
+    if (expiresAt != 0) {
+      stmt.setLong(index, expiresAt);
+    } else {
+      stmt.setNull(index, Types.BIGINT);
+    }
+  }
+  
   /**
-   * Deletes the record of a given key
+   * Deletes the record of a given key. The update count of the DELETE tells whether the key existed, so no
+   * separate lookup is issued.
    * @param key string key to be deleted
    * @param conn Connection to database, passed in if from another method
    * @param closeConnection boolean to indicate whether to close the connection. False if the caller will handle connection closing. 
-   * @return KeyValueStoreResponse
-   * @throws Exception during processing or key not found
+   * @return KeyValueStoreResponse, with status Error and message MSG_KEY_NOT_FOUND if the key does not exist
+   * @throws Exception during processing
    */
   public KeyValueStoreResponse deleteById(String key, Connection conn, boolean closeConnection) throws Exception  {
+      if (writeBehind != null) {
+        return bufferDelete( key, conn, closeConnection );
+      }
       PreparedStatement stmt = null;
       KeyValueStoreResponse resp = new KeyValueStoreResponse();
-      boolean exists = false;
       
       try {
         
         if (conn == null) {
-          conn = DriverManager.getConnection(DB_URL, USER, PASS);
-        }
-        //Does the key exist
-        try {
-          KeyValueStoreResponse searchResp = search(key, conn, false);
-          if (searchResp.getStatus() == StatusEnum.OK) {
-            exists = true;
-          }
-        } catch (Exception e) {
-          if (KeyValueStoreResponse.MSG_KEY_NOT_FOUND.equalsIgnoreCase(e.getMessage())) {
-            exists = false;
-          } else {
-            throw e;
-          }
+          conn = getConnection();
         }
+        //an expired key that has not been reclaimed yet counts as a miss
+        stmt = conn.prepareStatement(DELETE_VALUE_SQL) ;
+        stmt.setString(1, key);
+        stmt.setLong(2, System.currentTimeMillis());
         
-        if (exists) {
-          stmt = conn.prepareStatement(DELETE_VALUE_SQL) ;
-          stmt.setString(1, key);
-          stmt.execute();
+        resp.setAction( ActionEnum.Delete );
+        resp.setKey( key );
+        
+        if (stmt.executeUpdate() > 0) {
           resp.setStatus( StatusEnum.OK );
-          resp.setAction( ActionEnum.Delete );
-          resp.setKey( key );
-          return resp;
         } else {
-          throw new RuntimeException (KeyValueStoreResponse.MSG_KEY_NOT_FOUND);
+          resp.setStatus( StatusEnum.Error );
+          resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
         }
+        return resp;
       } catch (Exception e) {
         if (closeConnection) {
           conn.rollback();
@@ -220,74 +432,587 @@ public class RDBMSKeyValueRepository implements KeyValueRepository {
   /**
    * This function processes multiple requests at the same time. The requests are processed in a transaction in all or nothing fashion.
    * If one request fails, the entire process will fail. 
+   *
+   * The rows of all keys in the batch are read up front with one SELECT ... WHERE search_key IN (...) FOR UPDATE per
+   * PREFETCH_CHUNK keys, which also locks them until the transaction ends. The requests are then played in order
+   * against that in-memory copy to produce the per-request responses, and only the net change per key is written
+   * back: one JDBC batch of DELETEs, one of version-checked UPDATEs and one of INSERTs. A 1,000 step composite
+   * therefore takes a handful of round trips instead of one or two per step.
    * @param requests a list of KeyValueStoreRequest, one for each action to take. 
    * @return List<KeyValueStoreResponse> 
    * @throws Exception
    */
-  
   public List<KeyValueStoreResponse> processComposite(List<KeyValueStoreRequest> requests) throws Exception {
     Connection conn = null;
-    boolean hasExecutionError = false;
-    List<KeyValueStoreResponse> respList = new LinkedList<>();
+    List<KeyValueStoreResponse> respList = new ArrayList<>( requests.size() );
+    List<String> keys = new ArrayList<>( requests.size() );
+    for (KeyValueStoreRequest request : requests) {
+      keys.add( request.getKey() );
+    }
+    if (writeBehind != null) {
+      //the composite reads and locks the rows, which must hold the latest writes
+      writeBehind.flush( keys );
+    }
     
     try {
-      conn = DriverManager.getConnection(DB_URL, USER, PASS);      
+      conn = getConnection();
       //auto commit set to false to allow multiple executions to commit or rollback together
       conn.setAutoCommit( false );
       
-        for (KeyValueStoreRequest request : requests) {
-          ActionEnum action = request.getAction();
-          
-          switch (action) {
-            case Search:
-                KeyValueStoreResponse searchResp = null;
-                try {
-                  searchResp = search( request.getKey(), conn, false );
-                  respList.add( searchResp );
-                } catch (Exception e) {
-                  hasExecutionError = true;
-                }
-                break;
-            case Save:
-                try {
-                  KeyValueStoreResponse saveResp = save( request.getKey(), request.getPayload().toString(), conn, false );
-                  respList.add( saveResp );
-                } catch (Exception e) {
-                  hasExecutionError = true;
-                }
-                break;
-            case Delete:
-                try {
-                  KeyValueStoreResponse deleteResp = deleteById( request.getKey(), conn, false);
-                  respList.add( deleteResp );
-                } catch (Exception e) {
-                  hasExecutionError = true;
-                }
-                break;
-          }
-        }        
-        
-        //roll back if any errors occurred 
-        if (hasExecutionError) {
-          conn.rollback();
-          throw new RuntimeException (KeyValueStoreResponse.MSG_EXECUTION_ERROR);
-        } else {
-          //everything was successful, now commit all transactions
-          conn.commit();
-          return respList;
+      long now = System.currentTimeMillis();
+      Map<String, Row> original = prefetch( keys, true, conn );
+      Map<String, Row> current = new HashMap<>();
+      for (Map.Entry<String, Row> entry : original.entrySet()) {
+        Row row = entry.getValue();
+        current.put( entry.getKey(), row == null || row.isExpired( now ) ? null : row );
+      }
+      
+      for (KeyValueStoreRequest request : requests) {
+        String key = request.getKey();
+        Row row = current.get( key );
+        KeyValueStoreResponse resp = new KeyValueStoreResponse();
+        resp.setKey( key );
+        resp.setAction( request.getAction() );
+        switch (request.getAction()) {
+          case Search:
+              if (row == null) {
+                throw new RuntimeException (KeyValueStoreResponse.MSG_EXECUTION_ERROR);
+              }
+              resp.setResult( row.value );
+              resp.setVersion( row.version );
+              resp.setExpiresAt( row.expiresAt );
+              break;
+          case Save:
+              String value = request.getPayload().toString();
+              long ttlSeconds = request.getTtlSeconds();
+              row = new Row( value, ttlSeconds > 0 ? now + ttlSeconds * 1000 : 0, row == null ? 1 : row.version + 1 );
+              current.put( key, row );
+              resp.setOriginalPayload( value );
+              resp.setVersion( row.version );
+              break;
+          case Delete:
+              if (row == null) {
+                throw new RuntimeException (KeyValueStoreResponse.MSG_EXECUTION_ERROR);
+              }
+              current.put( key, null );
+              break;
+        }
+        resp.setStatus( StatusEnum.OK );
+        respList.add( resp );
+      }
+      
+      writeChanges( original, current, now, conn );
+      //everything was successful, now commit all transactions
+      conn.commit();
+      for (Map.Entry<String, Row> entry : current.entrySet()) {
+        Row row = entry.getValue();
+        if (row != null && row.expiresAt != 0 && row != original.get( entry.getKey() )) {
+          expiryWheel.schedule( entry.getKey(), row.expiresAt );
         }
+      }
+      return respList;
     }//try
     catch (Exception e) {
-      conn.rollback();
+      if (conn != null) {
+        conn.rollback();
+      }
+      throw e;
+    } finally {
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+  
+  /**
+   * Looks the keys up with one SELECT ... WHERE search_key IN (...) per PREFETCH_CHUNK keys instead of one query
+   * per key. Expired rows are reported as misses and left to the expiry wheel.
+   * @param keys keys to look up, duplicates allowed
+   * @return one response per key, in the order of keys
+   * @throws Exception during processing
+   */
+  @Override
+  public List<KeyValueStoreResponse> searchAll(List<String> keys) throws Exception {
+    Map<String, PendingWrite> pendingWrites = new HashMap<>();
+    List<String> stored = keys;
+    if (writeBehind != null) {
+      stored = new ArrayList<>( keys.size() );
+      for (String key : keys) {
+        PendingWrite pendingWrite = writeBehind.get( key );
+        if (pendingWrite != null) {
+          pendingWrites.put( key, pendingWrite );
+        } else {
+          stored.add( key );
+        }
+      }
+    }
+    Map<String, Row> rows = Map.of();
+    if (!stored.isEmpty()) {
+      try (Connection conn = getConnection()) {
+        rows = prefetch( stored, false, conn );
+      }
+    }
+    long now = System.currentTimeMillis();
+    List<KeyValueStoreResponse> respList = new ArrayList<>( keys.size() );
+    for (String key : keys) {
+      PendingWrite pendingWrite = pendingWrites.get( key );
+      if (pendingWrite != null) {
+        respList.add( pendingResponse( key, pendingWrite ) );
+        continue;
+      }
+      Row row = rows.get( key );
+      KeyValueStoreResponse resp = new KeyValueStoreResponse();
+      resp.setAction( ActionEnum.Search );
+      resp.setKey( key );
+      if (row != null && !row.isExpired( now )) {
+        resp.setResult( row.value );
+        resp.setVersion( row.version );
+        resp.setExpiresAt( row.expiresAt );
+        resp.setStatus( StatusEnum.OK );
+      } else {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      }
+      respList.add( resp );
+    }
+    return respList;
+  }
+  
+  /**
+   * Answers a scan with one range query on search_key, the primary key, so the database walks its index from
+   * the lower bound instead of sorting the table. In write-behind mode the buffered writes of keys in the range
+   * are flushed first.
+   * @param from lowest key, inclusive, null for no lower bound
+   * @param to highest key, exclusive, null for no upper bound
+   * @param after cursor, the last key of the previous page, exclusive, null for the first page
+   * @param limit most keys returned
+   * @return the live keys in the range in key order
+   * @throws Exception during processing
+   */
+  @Override
+  public List<KeyValueStoreResponse> scan(String from, String to, String after, int limit) throws Exception {
+    boolean afterCursor = after != null && (from == null || after.compareTo( from ) >= 0);
+    String lower = afterCursor ? after : from;
+    if (lower != null && to != null && lower.compareTo( to ) >= 0) {
+      return List.of();
+    }
+    if (writeBehind != null) {
+      List<String> pendingKeys = new ArrayList<>();
+      for (String key : writeBehind.getPendingKeys()) {
+        if ((lower == null || key.compareTo( lower ) >= 0) && (to == null || key.compareTo( to ) < 0)) {
+          pendingKeys.add( key );
+        }
+      }
+      writeBehind.flush( pendingKeys );
+    }
+    
+    StringBuilder sql = new StringBuilder( SCAN_SQL_PREFIX );
+    if (lower != null) {
+      sql.append( afterCursor ? " and search_key > ?" : " and search_key >= ?" );
+    }
+    if (to != null) {
+      sql.append( " and search_key < ?" );
+    }
+    sql.append( " order by search_key fetch first ? rows only" );
+    
+    List<KeyValueStoreResponse> respList = new ArrayList<>( Math.min( limit, PREFETCH_CHUNK ) );
+    try (Connection conn = getConnection();
+         PreparedStatement stmt = conn.prepareStatement( sql.toString() )) {
+      int param = 1;
+      stmt.setLong( param++, System.currentTimeMillis() );
+      if (lower != null) {
+        stmt.setString( param++, lower );
+      }
+      if (to != null) {
+        stmt.setString( param++, to );
+      }
+      stmt.setInt( param, limit );
+      stmt.setFetchSize( Math.min( limit, PREFETCH_CHUNK ) );
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          KeyValueStoreResponse resp = new KeyValueStoreResponse();
+          resp.setAction( ActionEnum.Search );
+          resp.setKey( rs.getString( 1 ) );
+          resp.setResult( rs.getString( 2 ) );
+          resp.setVersion( rs.getLong( 4 ) );
+          resp.setExpiresAt( rs.getLong( 3 ) );
+          resp.setStatus( StatusEnum.OK );
+          respList.add( resp );
+        }
+      }
+    }
+    return respList;
+  }
+  
+  /**
+   * Saves all entries in one transaction made of the same prefetch and batched writes as a composite request.
+   * Every save of a bulk request succeeds, so running them together costs nothing in isolation and saves the
+   * round trips of saving them one by one.
+   * @param entries key to JSON value
+   * @param ttlSeconds time to live of every key, NO_TTL to keep them until they are deleted
+   * @return one response per key, in the iteration order of entries
+   * @throws Exception during processing
+   */
+  @Override
+  public List<KeyValueStoreResponse> saveAll(Map<String, String> entries, long ttlSeconds) throws Exception {
+    if (writeBehind != null) {
+      return KeyValueRepository.super.saveAll( entries, ttlSeconds );
+    }
+    Connection conn = null;
+    List<KeyValueStoreResponse> respList = new ArrayList<>( entries.size() );
+    
+    try {
+      conn = getConnection();
+      conn.setAutoCommit( false );
+      
+      long now = System.currentTimeMillis();
+      long expiresAt = ttlSeconds > 0 ? now + ttlSeconds * 1000 : 0;
+      Map<String, Row> original = prefetch( entries.keySet(), true, conn );
+      Map<String, Row> current = new HashMap<>();
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        String key = entry.getKey();
+        Row before = original.get( key );
+        Row row = new Row( entry.getValue(), expiresAt, before == null || before.isExpired( now ) ? 1 : before.version + 1 );
+        current.put( key, row );
+        
+        KeyValueStoreResponse resp = new KeyValueStoreResponse();
+        resp.setKey( key );
+        resp.setAction( ActionEnum.Save );
+        resp.setOriginalPayload( entry.getValue() );
+        resp.setVersion( row.version );
+        resp.setStatus( StatusEnum.OK );
+        respList.add( resp );
+      }
+      
+      writeChanges( original, current, now, conn );
+      conn.commit();
+      if (expiresAt != 0) {
+        for (String key : current.keySet()) {
+          expiryWheel.schedule( key, expiresAt );
+        }
+      }
+      return respList;
+    } catch (Exception e) {
+      if (conn != null) {
+        conn.rollback();
+      }
       throw e;
     } finally {
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+  
+  /**
+   * Deletes the keys with a single JDBC batch of DELETEs. The update count of each statement tells whether its
+   * key existed.
+   * @param keys keys to delete
+   * @return one response per key, in the order of keys
+   * @throws Exception during processing
+   */
+  @Override
+  public List<KeyValueStoreResponse> deleteAll(List<String> keys) throws Exception {
+    if (writeBehind != null) {
+      return KeyValueRepository.super.deleteAll( keys );
+    }
+    int[] counts;
+    try (Connection conn = getConnection();
+         PreparedStatement stmt = conn.prepareStatement( DELETE_VALUE_SQL )) {
+      long now = System.currentTimeMillis();
+      for (String key : keys) {
+        stmt.setString( 1, key );
+        stmt.setLong( 2, now );
+        stmt.addBatch();
+      }
+      counts = keys.isEmpty() ? new int[0] : stmt.executeBatch();
+    }
+    List<KeyValueStoreResponse> respList = new ArrayList<>( keys.size() );
+    for (int i = 0; i < keys.size(); i++) {
+      KeyValueStoreResponse resp = new KeyValueStoreResponse();
+      resp.setAction( ActionEnum.Delete );
+      resp.setKey( keys.get( i ) );
+      if (counts[i] > 0 || counts[i] == PreparedStatement.SUCCESS_NO_INFO) {
+        resp.setStatus( StatusEnum.OK );
+      } else {
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      }
+      respList.add( resp );
+    }
+    return respList;
+  }
+  
+  /*
+   * Reads the rows of the given keys, PREFETCH_CHUNK keys per query. With forUpdate the rows are also locked
+   * until the transaction ends. Keys without a row map to null.
+   */
+  private Map<String, Row> prefetch(Collection<String> requestedKeys, boolean forUpdate, Connection conn) throws SQLException {
+    Map<String, Row> rows = new HashMap<>();
+    List<String> keys = new ArrayList<>( new LinkedHashSet<>( requestedKeys ) );
+    for (String key : keys) {
+      rows.put( key, null );
+    }
+    for (int start = 0; start < keys.size(); start += PREFETCH_CHUNK) {
+      List<String> chunk = keys.subList( start, Math.min( keys.size(), start + PREFETCH_CHUNK ) );
+      StringBuilder sql = new StringBuilder( PREFETCH_SQL_PREFIX );
+      for (int i = 0; i < chunk.size(); i++) {
+        sql.append( i == 0 ? "?" : ",?" );
+      }
+      sql.append( forUpdate ? ") for update" : ")" );
+      try (PreparedStatement stmt = conn.prepareStatement( sql.toString() )) {
+        for (int i = 0; i < chunk.size(); i++) {
+          stmt.setString( i + 1, chunk.get( i ) );
+        }
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            rows.put( rs.getString( 1 ), new Row( rs.getString( 2 ), rs.getLong( 3 ), rs.getLong( 4 ) ) );
+          }
+        }
+      }
+    }
+    return rows;
+  }
+  
+  /*
+   * Writes the difference between the prefetched rows and the final state of each key as three JDBC batches.
+   * Deletes go first, so an expired row is gone before a new row for its key is inserted.
+   */
+  private void writeChanges(Map<String, Row> original, Map<String, Row> current, long now, Connection conn) throws SQLException {
+    try (PreparedStatement delete = conn.prepareStatement( DELETE_ROW_SQL );
+         PreparedStatement update = conn.prepareStatement( UPDATE_ROW_SQL );
+         PreparedStatement insert = conn.prepareStatement( INSERT_ROW_SQL )) {
+      int deletes = 0;
+      int updates = 0;
+      int inserts = 0;
+      for (Map.Entry<String, Row> entry : current.entrySet()) {
+        String key = entry.getKey();
+        Row before = original.get( key );
+        Row after = entry.getValue();
+        if (after == before) {
+          continue;
+        }
+        boolean live = before != null && !before.isExpired( now );
+        if (before != null && (after == null || !live)) {
+          delete.setString( 1, key );
+          delete.addBatch();
+          deletes++;
+        }
+        if (after != null && live) {
+          update.setString( 1, after.value );
+          setExpiresAt( update, 2, after.expiresAt );
+          update.setLong( 3, after.version );
+          update.setString( 4, key );
+          update.setLong( 5, before.version );
+          update.addBatch();
+          updates++;
+        } else if (after != null) {
+          insert.setString( 1, key );
+          insert.setString( 2, after.value );
+          setExpiresAt( insert, 3, after.expiresAt );
+          insert.setLong( 4, after.version );
+          insert.addBatch();
+          inserts++;
+        }
+      }
+      if (deletes > 0) {
+        delete.executeBatch();
+      }
+      if (updates > 0) {
+        for (int count : update.executeBatch()) {
+          //the rows are locked, so this only happens if the table was changed outside this repository
+          if (count == 0) {
+            throw new SQLException( KeyValueStoreResponse.MSG_VERSION_CONFLICT );
+          }
+        }
+      }
+      if (inserts > 0) {
+        insert.executeBatch();
+      }
+    }
+  }
+  
+  /*
+   * Write-behind delete. Whether the key exists is answered from its buffered write or, if it has none, from the
+   * table; only a delete of an existing key is buffered.
+   */
+  private KeyValueStoreResponse bufferDelete(String key, Connection conn, boolean closeConnection) throws Exception {
+    PendingWrite pendingWrite = writeBehind.get( key );
+    boolean exists;
+    if (pendingWrite != null) {
+      exists = !pendingWrite.isDelete() && !pendingWrite.isExpired( System.currentTimeMillis() );
+      release( conn, closeConnection );
+    } else {
+      if (conn == null) {
+        conn = getConnection();
+      }
       try {
+        exists = currentVersion( key, conn ) != 0;
+      } finally {
+        release( conn, closeConnection );
+      }
+    }
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Delete );
+    resp.setKey( key );
+    if (!exists) {
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+      return resp;
+    }
+    writeBehind.delete( key );
+    resp.setStatus( StatusEnum.OK );
+    return resp;
+  }
+  
+  /*
+   * The search response for a key with a buffered write. It has no version until the write is flushed.
+   */
+  private static KeyValueStoreResponse pendingResponse(String key, PendingWrite pendingWrite) {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    if (pendingWrite.isDelete() || pendingWrite.isExpired( System.currentTimeMillis() )) {
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+    } else {
+      resp.setResult( pendingWrite.value );
+      resp.setExpiresAt( pendingWrite.expiresAt );
+      resp.setStatus( StatusEnum.OK );
+    }
+    return resp;
+  }
+  
+  /*
+   * Flushes a batch of buffered writes in one transaction, made of the same prefetch and batched writes as a
+   * composite request. Repeated saves of a key between two flushes raise its version by one.
+   */
+  private void writePending(Map<String, PendingWrite> batch) throws Exception {
+    Connection conn = null;
+    try {
+      conn = getConnection();
+      conn.setAutoCommit( false );
+      
+      long now = System.currentTimeMillis();
+      Map<String, Row> original = prefetch( batch.keySet(), true, conn );
+      Map<String, Row> current = new HashMap<>();
+      for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+        PendingWrite pendingWrite = entry.getValue();
+        Row before = original.get( entry.getKey() );
+        current.put( entry.getKey(), pendingWrite.isDelete() ? null
+            : new Row( pendingWrite.value, pendingWrite.expiresAt, before == null || before.isExpired( now ) ? 1 : before.version + 1 ) );
+      }
+      
+      writeChanges( original, current, now, conn );
+      conn.commit();
+      for (Map.Entry<String, Row> entry : current.entrySet()) {
+        Row row = entry.getValue();
+        if (row != null && row.expiresAt != 0) {
+          expiryWheel.schedule( entry.getKey(), row.expiresAt );
+        }
+      }
+    } catch (Exception e) {
+      if (conn != null) {
+        conn.rollback();
+      }
+      throw e;
+    } finally {
+      if (conn != null) {
         conn.close();
-      } catch (Exception e) {
-        throw e;
       }
     }
   }
   
+  private static void release(Connection conn, boolean closeConnection) throws SQLException {
+    if (conn != null && closeConnection) {
+      conn.close();
+    }
+  }
+  
+  /*
+   * Called by the expiry wheel once the expiry time of a key has passed. Only the row of that key is touched,
+   * through its primary key, and only if it still holds the expired value.
+   */
+  private void expire(String key) {
+    try (Connection conn = getConnection()) {
+      deleteExpired( key, conn );
+    } catch (SQLException e) {
+      throw new RuntimeException( e );
+    }
+  }
+  
+  private void deleteExpired(String key, Connection conn) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement( DELETE_EXPIRED_SQL )) {
+      stmt.setString(1, key);
+      stmt.setLong(2, System.currentTimeMillis());
+      stmt.executeUpdate();
+    }
+  }
+  
+  /*
+   * A row as read by the composite prefetch, or the state of a key after a step of the composite
+   */
+  private static final class Row {
+    final String value;
+    final long expiresAt;
+    final long version;
+    
+    Row(String value, long expiresAt, long version) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.version = version;
+    }
+    
+    boolean isExpired(long now) {
+      return expiresAt != 0 && expiresAt <= now;
+    }
+  }
+  
+  /**
+   * Borrows a connection from the pool. Closing the returned connection releases it back to the pool, and the
+   * concurrency permit taken for it, if repository.rdbms.max-concurrency is set.
+   * @return Connection
+   * @throws SQLException if no permit or connection could be obtained in time
+   */
+  private Connection getConnection() throws SQLException {
+    if (connectionPermits == null) {
+      return dataSource.getConnection();
+    }
+    try {
+      if (!connectionPermits.tryAcquire( acquireTimeoutMillis, TimeUnit.MILLISECONDS )) {
+        throw new SQLTransientConnectionException( "Timed out waiting for a database connection permit" );
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLTransientConnectionException( "Interrupted waiting for a database connection permit", e );
+    }
+    Connection conn;
+    try {
+      conn = dataSource.getConnection();
+    } catch (SQLException | RuntimeException e) {
+      connectionPermits.release();
+      throw e;
+    }
+    return permitReleasing( conn );
+  }
+  
+  /*
+   * Wraps the connection so that closing it also returns the permit, once, however many times close is called
+   */
+  private Connection permitReleasing(Connection conn) {
+    AtomicBoolean released = new AtomicBoolean();
+    return (Connection) Proxy.newProxyInstance( Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        ( proxy, method, args ) -> {
+          try {
+            return method.invoke( conn, args );
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          } finally {
+            if (method.getName().equals( "close" ) && released.compareAndSet( false, true )) {
+              connectionPermits.release();
+            }
+          }
+        } );
+  }
+  
 }
-
@@ -0,0 +1,220 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Partitions keys into shards by hash and gives each shard a single writer thread. Writes are handed to the
+ * owning thread through a lock-free multi-producer queue and applied one at a time in arrival order, so the data
+ * of a shard is only ever changed by one thread and needs no locks.
+ *
+ * A composite parks the writers of the shards its keys fall in, in ascending shard order so two composites can
+ * never wait on each other in a cycle, and runs on the calling thread until it has committed or rolled back.
+ */
+class ShardedWriter implements WriteIsolation
+{
+  private static final Log log = LogFactory.getLog( ShardedWriter.class );
+
+  private final Shard[] shards;
+
+  private volatile boolean running = true;
+
+  /**
+   * @param name prefix of the writer thread names
+   * @param shardCount number of shards
+   */
+  ShardedWriter(String name, int shardCount) {
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard( name + "-shard-" + i );
+    }
+    for (Shard shard : shards) {
+      shard.thread.start();
+    }
+  }
+
+  /**
+   * @return the shard that owns the key, between 0 and getShardCount() - 1
+   */
+  int shardOf(String key) {
+    int h = key.hashCode();
+    return Math.floorMod( h ^ (h >>> 16), shards.length );
+  }
+
+  int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * @return number of writes waiting in the queues of all shards
+   */
+  int getQueuedWrites() {
+    int queued = 0;
+    for (Shard shard : shards) {
+      queued += shard.queued.get();
+    }
+    return queued;
+  }
+
+  /**
+   * Queues a write on the owner of the key without waiting for it. Used for housekeeping such as expiry and
+   * eviction, which may be triggered from another shard's writer and must not wait on it.
+   */
+  void submit(String key, Runnable task) {
+    shards[shardOf( key )].offer( task );
+  }
+
+  @Override
+  public <V> V forKey(String key, WriteAction<V> action) throws Exception {
+    return execute( shards[shardOf( key )], action );
+  }
+
+  @Override
+  public <V> V forKeys(List<String> keys, WriteAction<V> action) throws Exception {
+    int[] owners = keys.stream().mapToInt( this::shardOf ).sorted().distinct().toArray();
+    //a park task that only runs after the composite has finished finds the latch open and returns at once
+    CountDownLatch release = new CountDownLatch( 1 );
+    try {
+      for (int owner : owners) {
+        if (Thread.currentThread() == shards[owner].thread) {
+          //a writer already has its own shard to itself, parking it would wait on itself
+          continue;
+        }
+        CountDownLatch parked = new CountDownLatch( 1 );
+        shards[owner].offer( () -> {
+          parked.countDown();
+          awaitUninterruptibly( release );
+        } );
+        parked.await();
+      }
+      return action.run();
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /**
+   * Stops the writers once they have applied the writes already queued
+   */
+  @Override
+  public void close() {
+    running = false;
+    for (Shard shard : shards) {
+      LockSupport.unpark( shard.thread );
+    }
+    for (Shard shard : shards) {
+      try {
+        shard.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /*
+   * Runs the action on the shard's writer and waits for its result. A writer that calls back into its own shard
+   * runs the action directly, queueing it would wait on itself.
+   */
+  private <V> V execute(Shard shard, WriteAction<V> action) throws Exception {
+    if (Thread.currentThread() == shard.thread) {
+      return action.run();
+    }
+    CompletableFuture<V> result = new CompletableFuture<>();
+    shard.offer( () -> {
+      try {
+        result.complete( action.run() );
+      } catch (Throwable t) {
+        result.completeExceptionally( t );
+      }
+    } );
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (Exception) cause;
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private final class Shard
+  {
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    //set while the writer is about to park or parked, so producers only unpark a writer that needs it
+    private volatile boolean idle;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    Shard(String name) {
+      thread = new Thread( this::run, name );
+      thread.setDaemon( true );
+    }
+
+    void offer(Runnable task) {
+      if (!running) {
+        throw new IllegalStateException( thread.getName() + " has been stopped" );
+      }
+      queued.incrementAndGet();
+      queue.offer( task );
+      if (idle) {
+        LockSupport.unpark( thread );
+      }
+      if (!thread.isAlive() && queue.remove( task )) {
+        //lost a race with close, the writer has already drained its queue and stopped
+        queued.decrementAndGet();
+        throw new IllegalStateException( thread.getName() + " has been stopped" );
+      }
+    }
+
+    private void run() {
+      while (true) {
+        Runnable task = queue.poll();
+        if (task == null) {
+          if (!running) {
+            return;
+          }
+          //idle is published before the queue is checked again and a producer offers before it reads idle,
+          //so either the writer sees the new task or the producer sees idle and unparks it
+          idle = true;
+          if (queue.isEmpty() && running) {
+            LockSupport.park( this );
+          }
+          idle = false;
+          continue;
+        }
+        queued.decrementAndGet();
+        try {
+          task.run();
+        } catch (Throwable t) {
+          log.error( "Write task failed on " + thread.getName(), t );
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hands out chunks of off-heap memory for the OffHeapKeyValueRepository. Memory is reserved from the operating
+ * system in direct ByteBuffer slabs of a fixed size, up to a capacity cap. Chunks are power of two sized between
+ * MIN_CHUNK_SIZE and the slab size and are managed as a buddy system: a chunk is cut from the smallest larger free
+ * chunk by halving it, and a freed chunk is merged with its buddy (the other half of the chunk it was cut from)
+ * whenever that is free too. Freed memory is therefore available to values of any size again once its neighbours
+ * are freed, instead of staying on the free list of the size it was last used for. A chunk still wastes up to
+ * half its size to rounding, and live chunks scattered over a slab can keep a large value from fitting even
+ * though enough bytes are free in total.
+ *
+ * The free chunks of each size form a doubly linked list kept in the chunks themselves, so freeing and merging
+ * take constant time per size. An on-heap byte per MIN_CHUNK_SIZE of slab records which free chunk starts there.
+ *
+ * An address packs the slab index in the upper 32 bits and the offset within the slab in the lower 32 bits.
+ * Allocation and free are synchronized; reads and writes of chunk contents use absolute ByteBuffer access and
+ * need no locking here. Callers must make sure a chunk is not freed while it is being read.
+ */
+class SlabAllocator
+{
+  static final int MIN_CHUNK_SIZE = 64;
+  private static final int MIN_CHUNK_SHIFT = Integer.numberOfTrailingZeros( MIN_CHUNK_SIZE );
+  private static final int MAX_SLAB_SIZE = 1 << 30;
+  private static final long NONE = -1;
+
+  private final int slabSize;
+  private final ByteBuffer[] slabs;
+
+  //per slab and MIN_CHUNK_SIZE block: 0, or the size class + 1 of the free chunk starting there
+  private final byte[][] freeHeads;
+  //first free chunk of each size class, NONE if there is none
+  private final long[] freeLists;
+
+  private int slabCount;
+  private long usedBytes;
+
+  /**
+   * @param slabSize size of each direct buffer, rounded up to a power of two
+   * @param capacity maximum number of bytes reserved across all slabs, rounded down to whole slabs
+   * @throws IllegalArgumentException if the capacity is smaller than one slab
+   */
+  SlabAllocator(int slabSize, long capacity) {
+    this.slabSize = chunkSize( Math.min( Math.max( slabSize, MIN_CHUNK_SIZE ), MAX_SLAB_SIZE ) );
+    if (capacity < this.slabSize) {
+      throw new IllegalArgumentException( "The off-heap capacity of " + capacity + " bytes is smaller than a slab of "
+          + this.slabSize + " bytes" );
+    }
+    this.slabs = new ByteBuffer[(int) Math.min( Integer.MAX_VALUE, capacity / this.slabSize )];
+    this.freeHeads = new byte[slabs.length][];
+    this.freeLists = new long[sizeClass( this.slabSize ) + 1];
+    Arrays.fill( freeLists, NONE );
+  }
+
+  /**
+   * @return bytes reserved from the operating system
+   */
+  synchronized long getReservedBytes() {
+    return (long) slabCount * slabSize;
+  }
+
+  /**
+   * @return bytes held by live chunks, including the rounding up to the chunk size
+   */
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  long getCapacity() {
+    return (long) slabs.length * slabSize;
+  }
+
+  /**
+   * @param length number of bytes needed
+   * @return the address of a chunk of at least length bytes, or -1 if the capacity is exhausted
+   */
+  synchronized long allocate(int length) {
+    if (length > slabSize) {
+      return -1;
+    }
+    int sizeClass = sizeClass( chunkSize( Math.max( length, MIN_CHUNK_SIZE ) ) );
+
+    int from = sizeClass;
+    while (from < freeLists.length && freeLists[from] == NONE) {
+      from++;
+    }
+    if (from == freeLists.length) {
+      if (slabCount == slabs.length) {
+        return -1;
+      }
+      slabs[slabCount] = ByteBuffer.allocateDirect( slabSize );
+      freeHeads[slabCount] = new byte[slabSize / MIN_CHUNK_SIZE];
+      slabCount++;
+      from = freeLists.length - 1;
+      pushFree( from, address( slabCount - 1, 0 ) );
+    }
+
+    long address = freeLists[from];
+    unlinkFree( from, address );
+    //the upper halves of the chunk are left on the free lists of the smaller sizes
+    while (from > sizeClass) {
+      from--;
+      pushFree( from, address + sizeOf( from ) );
+    }
+    usedBytes += sizeOf( sizeClass );
+    return address;
+  }
+
+  /**
+   * Returns a chunk, merged with its free buddies, to the free list of its size.
+   * @param address address returned by allocate
+   * @param length the length that was passed to allocate
+   */
+  synchronized void free(long address, int length) {
+    int sizeClass = sizeClass( chunkSize( Math.max( length, MIN_CHUNK_SIZE ) ) );
+    usedBytes -= sizeOf( sizeClass );
+    int slab = (int) (address >>> 32);
+    int offset = (int) address;
+    while (sizeClass < freeLists.length - 1) {
+      int buddy = offset ^ sizeOf( sizeClass );
+      if (freeHeads[slab][buddy >>> MIN_CHUNK_SHIFT] != sizeClass + 1) {
+        break;
+      }
+      unlinkFree( sizeClass, address( slab, buddy ) );
+      offset = Math.min( offset, buddy );
+      sizeClass++;
+    }
+    pushFree( sizeClass, address( slab, offset ) );
+  }
+
+  void write(long address, byte[] value) {
+    slabs[(int) (address >>> 32)].put( (int) address, value, 0, value.length );
+  }
+
+  byte[] read(long address, int length) {
+    byte[] value = new byte[length];
+    slabs[(int) (address >>> 32)].get( (int) address, value, 0, length );
+    return value;
+  }
+
+  /**
+   * @return whether a value of length bytes fits the chunk a value of allocatedLength bytes was given, so it can be
+   * written over it
+   */
+  static boolean fitsChunk(int length, int allocatedLength) {
+    return chunkSize( Math.max( length, MIN_CHUNK_SIZE ) ) == chunkSize( Math.max( allocatedLength, MIN_CHUNK_SIZE ) );
+  }
+
+  /*
+   * The links of a free chunk are its first two longs: the previous and the next free chunk of the same size
+   */
+  private void pushFree(int sizeClass, long address) {
+    long next = freeLists[sizeClass];
+    setLinks( address, NONE, next );
+    if (next != NONE) {
+      slabs[(int) (next >>> 32)].putLong( (int) next, address );
+    }
+    freeLists[sizeClass] = address;
+    freeHeads[(int) (address >>> 32)][(int) address >>> MIN_CHUNK_SHIFT] = (byte) (sizeClass + 1);
+  }
+
+  private void unlinkFree(int sizeClass, long address) {
+    ByteBuffer slab = slabs[(int) (address >>> 32)];
+    long prev = slab.getLong( (int) address );
+    long next = slab.getLong( (int) address + 8 );
+    if (prev == NONE) {
+      freeLists[sizeClass] = next;
+    } else {
+      slabs[(int) (prev >>> 32)].putLong( (int) prev + 8, next );
+    }
+    if (next != NONE) {
+      slabs[(int) (next >>> 32)].putLong( (int) next, prev );
+    }
+    freeHeads[(int) (address >>> 32)][(int) address >>> MIN_CHUNK_SHIFT] = 0;
+  }
+
+  private void setLinks(long address, long prev, long next) {
+    ByteBuffer slab = slabs[(int) (address >>> 32)];
+    slab.putLong( (int) address, prev );
+    slab.putLong( (int) address + 8, next );
+  }
+
+  private static long address(int slab, int offset) {
+    return ((long) slab << 32) | offset;
+  }
+
+  private static int sizeOf(int sizeClass) {
+    return MIN_CHUNK_SIZE << sizeClass;
+  }
+
+  private static int chunkSize(int length) {
+    int size = Integer.highestOneBit( length );
+    return size == length ? size : size << 1;
+  }
+
+  private static int sizeClass(int chunkSize) {
+    return Integer.numberOfTrailingZeros( chunkSize ) - MIN_CHUNK_SHIFT;
+  }
+
+}
@@ -0,0 +1,54 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Isolates writers with WRITE_LOCK_STRIPES striped locks. A single-key write holds the stripe of its key on the
+ * calling thread. A composite takes the stripes of all its keys in ascending stripe order, so two composites can
+ * never wait on each other in a cycle, and holds them until the action returns. Writes on keys in different
+ * stripes run in parallel.
+ */
+class StripedWriteLocks implements WriteIsolation
+{
+  private static final int WRITE_LOCK_STRIPES = 1024;
+
+  private final ReentrantLock[] writeLocks = new ReentrantLock[WRITE_LOCK_STRIPES];
+
+  StripedWriteLocks() {
+    for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+      writeLocks[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public <V> V forKey(String key, WriteAction<V> action) throws Exception {
+    ReentrantLock lock = writeLocks[stripe( key )];
+    lock.lock();
+    try {
+      return action.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public <V> V forKeys(List<String> keys, WriteAction<V> action) throws Exception {
+    int[] stripes = keys.stream().mapToInt( StripedWriteLocks::stripe ).sorted().distinct().toArray();
+    for (int stripe : stripes) {
+      writeLocks[stripe].lock();
+    }
+    try {
+      return action.run();
+    } finally {
+      for (int i = stripes.length - 1; i >= 0; i--) {
+        writeLocks[stripes[i]].unlock();
+      }
+    }
+  }
+
+  private static int stripe(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (WRITE_LOCK_STRIPES - 1);
+  }
+}
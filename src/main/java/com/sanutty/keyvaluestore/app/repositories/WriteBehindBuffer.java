@@ -0,0 +1,435 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLTransientException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds acknowledged writes that have not reached the database yet and flushes them in batches from a background
+ * thread. Only the latest write of a key is kept, so a key saved many times between two flushes is written once.
+ *
+ * The buffer holds at most maxPending keys. A write of a key that is not buffered yet waits for a flush once it
+ * is full, which slows writers down to the rate the database accepts instead of letting the buffer grow.
+ *
+ * A flushed write stays readable from the buffer until its transaction has committed, and is only removed if it
+ * has not been replaced by a newer write in the meantime, so a search that misses the buffer always finds the
+ * write in the database.
+ *
+ * A batch the database rejects is written again key by key, so one write the database can never take does not
+ * hold back the others. A key whose own write is rejected while the database takes other keys, or with an error
+ * about the row itself, is dropped and counted; callers validate writes against the table before buffering them,
+ * so that is a last resort. If every key fails the database is taken to be unavailable and they are kept.
+ */
+class WriteBehindBuffer
+{
+  private static final Log log = LogFactory.getLog( WriteBehindBuffer.class );
+
+  /**
+   * Writes a batch of buffered writes to the database in one transaction
+   */
+  @FunctionalInterface
+  interface BatchWriter
+  {
+    void write(Map<String, PendingWrite> batch) throws Exception;
+  }
+
+  /**
+   * The latest buffered write of a key: a save, or a delete if value is null
+   */
+  static final class PendingWrite
+  {
+    final String value;
+    final long expiresAt;
+    //System.nanoTime of the oldest write of the key that has not been flushed
+    final long bufferedAt;
+    //position of the key in the flush order, kept by the writes that replace it
+    final long sequence;
+
+    private PendingWrite(String value, long expiresAt, long bufferedAt, long sequence) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.bufferedAt = bufferedAt;
+      this.sequence = sequence;
+    }
+
+    boolean isDelete() {
+      return value == null;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt != 0 && expiresAt <= now;
+    }
+  }
+
+  private final Map<String, PendingWrite> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Buffered keys by the sequence of their pending write, so the oldest writes are flushed first. A key stays
+   * in it until its write is flushed or dropped, so a batch that fails keeps its place at the front.
+   */
+  private final NavigableMap<Long, String> order = new ConcurrentSkipListMap<>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final AtomicInteger pendingCount = new AtomicInteger();
+
+  private final LongAdder droppedCount = new LongAdder();
+
+  private final BatchWriter writer;
+  private final int maxPending;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final long maxWaitMillis;
+
+  //held while a batch is written, so two flushes of the same key can not commit out of order
+  private final ReentrantLock flushLock = new ReentrantLock();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition flushNeeded = lock.newCondition();
+  private final Condition spaceAvailable = lock.newCondition();
+
+  private final Thread flusher;
+  private volatile boolean running = true;
+  //writers between checking running and buffering their write; the final flush waits for them
+  private final AtomicInteger buffering = new AtomicInteger();
+
+  /**
+   * @param name name of the flusher thread
+   * @param writer writes a batch to the database
+   * @param maxPending most keys held before writers wait
+   * @param batchSize most keys written per transaction; a flush starts early once this many are buffered
+   * @param flushIntervalMillis longest time between two flushes
+   * @param maxWaitMillis longest time a writer waits for room before its write fails
+   */
+  WriteBehindBuffer(String name, BatchWriter writer, int maxPending, int batchSize, long flushIntervalMillis, long maxWaitMillis) {
+    this.writer = writer;
+    this.maxPending = maxPending;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.maxWaitMillis = maxWaitMillis;
+    flusher = new Thread( this::run, name );
+    flusher.setDaemon( true );
+    flusher.start();
+  }
+
+  /**
+   * @return the buffered write of the key, null if the database has its latest state
+   */
+  PendingWrite get(String key) {
+    return pending.get( key );
+  }
+
+  /**
+   * Buffers a save, replacing a write of the key that is still buffered
+   * @throws SQLTransientException if the buffer stayed full for maxWaitMillis
+   * @throws IllegalStateException if the buffer is closed
+   */
+  void save(String key, String value, long expiresAt) throws SQLTransientException, InterruptedException {
+    buffer( key, value, expiresAt );
+  }
+
+  /**
+   * Buffers a delete, replacing a write of the key that is still buffered
+   * @throws SQLTransientException if the buffer stayed full for maxWaitMillis
+   * @throws IllegalStateException if the buffer is closed
+   */
+  void delete(String key) throws SQLTransientException, InterruptedException {
+    buffer( key, null, 0 );
+  }
+
+  /**
+   * Writes the buffered writes of the given keys on the calling thread, for operations that go to the database
+   * directly and must see them
+   */
+  void flush(Collection<String> keys) throws Exception {
+    Map<String, PendingWrite> batch = new LinkedHashMap<>();
+    flushLock.lock();
+    try {
+      for (String key : keys) {
+        PendingWrite write = pending.get( key );
+        if (write != null) {
+          batch.put( key, write );
+        }
+      }
+      if (!batch.isEmpty()) {
+        write( batch );
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * @return a weakly consistent view of the keys with a buffered write
+   */
+  Collection<String> getPendingKeys() {
+    return pending.keySet();
+  }
+
+  /**
+   * @return number of keys with a buffered write
+   */
+  int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * @return number of buffered writes dropped because the database rejected them
+   */
+  double getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  /**
+   * @return age in milliseconds of the oldest buffered write, 0 if nothing is buffered
+   */
+  double getLagMillis() {
+    for (Map.Entry<Long, String> oldest : order.entrySet()) {
+      PendingWrite write = pending.get( oldest.getValue() );
+      //skips a key whose write was removed a moment ago and is about to leave the order
+      if (write != null && write.sequence == oldest.getKey()) {
+        return (System.nanoTime() - write.bufferedAt) / 1e6;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Stops the flusher and writes everything still buffered before returning. Writes buffered after this has
+   * been called are rejected.
+   */
+  void close() {
+    running = false;
+    signal( flushNeeded );
+    signal( spaceAvailable );
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void buffer(String key, String value, long expiresAt) throws SQLTransientException, InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( maxWaitMillis );
+    while (true) {
+      boolean[] full = new boolean[1];
+      boolean[] fillsBatch = new boolean[1];
+      PendingWrite added = null;
+      buffering.incrementAndGet();
+      try {
+        if (!running) {
+          throw new IllegalStateException( "Write-behind buffer is closed" );
+        }
+        PendingWrite write = pending.compute( key, (k, current) -> {
+          if (current != null) {
+            return new PendingWrite( value, expiresAt, current.bufferedAt, current.sequence );
+          }
+          //checked per key, so concurrent writers of new keys may take it a few keys over maxPending
+          if (pendingCount.get() >= maxPending) {
+            full[0] = true;
+            return null;
+          }
+          //the write that fills a batch wakes the flusher up early
+          fillsBatch[0] = pendingCount.incrementAndGet() == batchSize;
+          return new PendingWrite( value, expiresAt, System.nanoTime(), sequence.incrementAndGet() );
+        } );
+        if (write != null && !full[0]) {
+          order.putIfAbsent( write.sequence, key );
+          added = write;
+        }
+      } finally {
+        buffering.decrementAndGet();
+      }
+      if (added != null) {
+        if (fillsBatch[0]) {
+          signal( flushNeeded );
+        }
+        return;
+      }
+      signal( flushNeeded );
+      lock.lock();
+      try {
+        long remaining = deadline - System.nanoTime();
+        while (running && pendingCount.get() >= maxPending) {
+          if (remaining <= 0) {
+            throw new SQLTransientException( "Write-behind buffer is full, the database is not keeping up" );
+          }
+          remaining = spaceAvailable.awaitNanos( remaining );
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void run() {
+    while (true) {
+      lock.lock();
+      try {
+        if (running && pendingCount.get() < batchSize) {
+          flushNeeded.await( flushIntervalMillis, TimeUnit.MILLISECONDS );
+        }
+      } catch (InterruptedException e) {
+        running = false;
+      } finally {
+        lock.unlock();
+      }
+      boolean stopping = !running;
+      if (stopping) {
+        //a writer that saw the buffer running finishes buffering before the last flush
+        while (buffering.get() > 0) {
+          Thread.onSpinWait();
+        }
+      }
+      try {
+        //a full batch means more are waiting; once stopping, everything is flushed before the thread ends
+        int flushed;
+        do {
+          flushed = flushBatch();
+        } while (flushed == batchSize || (stopping && flushed > 0));
+      } catch (Exception e) {
+        log.error( "Write-behind flush failed, " + pendingCount.get() + " writes are kept for the next attempt", e );
+        if (stopping) {
+          log.error( "Stopping with " + pendingCount.get() + " writes that were not flushed" );
+          return;
+        }
+      }
+      if (stopping) {
+        return;
+      }
+    }
+  }
+
+  /*
+   * Writes up to batchSize of the oldest buffered keys. Returns the number of keys taken.
+   */
+  private int flushBatch() throws Exception {
+    flushLock.lock();
+    try {
+      Map<String, PendingWrite> batch = new LinkedHashMap<>();
+      for (Map.Entry<Long, String> entry : order.entrySet()) {
+        if (batch.size() == batchSize) {
+          break;
+        }
+        PendingWrite write = pending.get( entry.getValue() );
+        if (write != null && write.sequence == entry.getKey()) {
+          batch.put( entry.getValue(), write );
+        } else {
+          //flushed by flush(keys) before its writer got to put it in the order
+          order.remove( entry.getKey(), entry.getValue() );
+        }
+      }
+      if (!batch.isEmpty()) {
+        write( batch );
+      }
+      return batch.size();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /*
+   * Writes the batch in one transaction, or key by key if the database rejects it. Called with flushLock held.
+   * Throws if keys were kept because the database looks unavailable.
+   */
+  private void write(Map<String, PendingWrite> batch) throws Exception {
+    try {
+      writer.write( batch );
+      removed( batch );
+      return;
+    } catch (Exception e) {
+      if (batch.size() == 1) {
+        Map.Entry<String, PendingWrite> only = batch.entrySet().iterator().next();
+        if (!rejectsRow( e )) {
+          throw e;
+        }
+        dropped( only.getKey(), only.getValue(), e );
+        return;
+      }
+      log.warn( "Write-behind batch of " + batch.size() + " keys failed, writing them one by one", e );
+    }
+    Map<String, Exception> failed = new LinkedHashMap<>();
+    for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+      Map<String, PendingWrite> single = Collections.singletonMap( entry.getKey(), entry.getValue() );
+      try {
+        writer.write( single );
+        removed( single );
+      } catch (Exception e) {
+        failed.put( entry.getKey(), e );
+      }
+    }
+    boolean databaseAvailable = failed.size() < batch.size();
+    Exception kept = null;
+    for (Map.Entry<String, Exception> entry : failed.entrySet()) {
+      if (databaseAvailable || rejectsRow( entry.getValue() )) {
+        dropped( entry.getKey(), batch.get( entry.getKey() ), entry.getValue() );
+      } else {
+        kept = entry.getValue();
+      }
+    }
+    if (kept != null) {
+      throw kept;
+    }
+  }
+
+  /*
+   * An error about the row itself, such as a value too long for its column, that writing it again will not fix
+   */
+  private static boolean rejectsRow(Exception e) {
+    return e instanceof SQLNonTransientException && !(e instanceof SQLNonTransientConnectionException);
+  }
+
+  /*
+   * The database rejected the write. It is dropped like a flushed write, so the key is not retried forever.
+   */
+  private void dropped(String key, PendingWrite write, Exception e) {
+    droppedCount.increment();
+    log.error( "Dropping the buffered " + (write.isDelete() ? "delete" : "save") + " of key " + key
+        + ", the database rejected it", e );
+    removed( Collections.singletonMap( key, write ) );
+  }
+
+  /*
+   * Drops writes that are now in the database, or were dropped. A key written again meanwhile keeps its newer
+   * write buffered and its place in the order.
+   */
+  private void removed(Map<String, PendingWrite> batch) {
+    int removed = 0;
+    for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+      PendingWrite write = entry.getValue();
+      if (pending.remove( entry.getKey(), write )) {
+        order.remove( write.sequence, entry.getKey() );
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      pendingCount.addAndGet( -removed );
+      signal( spaceAvailable );
+    }
+  }
+
+  private void signal(Condition condition) {
+    lock.lock();
+    try {
+      condition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.util.List;
+
+/**
+ * Keeps writers of the in-memory repositories from interfering with each other. A write to a single key runs
+ * with no other writer on that key, and a composite write runs with no other writer on any of its keys.
+ * Searches do not go through it.
+ */
+interface WriteIsolation
+{
+  /**
+   * Runs the action as the only writer of the key
+   * @param key the key the action writes
+   * @param action the write
+   * @return the value returned by the action
+   * @throws Exception the exception thrown by the action
+   */
+  <V> V forKey(String key, WriteAction<V> action) throws Exception;
+
+  /**
+   * Runs the action as the only writer of all the keys. The action runs on the calling thread.
+   * @param keys the keys the action writes, in any order and possibly with duplicates
+   * @param action the write
+   * @return the value returned by the action
+   * @throws Exception the exception thrown by the action
+   */
+  <V> V forKeys(List<String> keys, WriteAction<V> action) throws Exception;
+
+  /**
+   * Releases threads held by the isolation. Writes submitted before the call are still applied.
+   */
+  default void close() {
+  }
+
+  @FunctionalInterface
+  interface WriteAction<V>
+  {
+    V run() throws Exception;
+  }
+}
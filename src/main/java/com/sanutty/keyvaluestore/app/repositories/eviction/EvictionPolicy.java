@@ -0,0 +1,30 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+/**
+ * Keeps the bookkeeping needed to choose which key to evict. Implementations are not thread safe, the
+ * EvictionTracker calls them while holding its lock.
+ */
+public interface EvictionPolicy
+{
+  /**
+   * A key was added to the store
+   */
+  public void onInsert(String key);
+
+  /**
+   * A key was read or overwritten. Keys that are not tracked (for example because they were removed after the
+   * access was buffered) must be ignored.
+   */
+  public void onAccess(String key);
+
+  /**
+   * A key was removed from the store
+   */
+  public void onRemove(String key);
+
+  /**
+   * Chooses the next key to evict and stops tracking it.
+   * @return the key to evict, or null if no key is tracked
+   */
+  public String evict();
+}
@@ -0,0 +1,12 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+/**
+ * Eviction policies available for a bounded MemStoreKeyValueRepository
+ */
+public enum EvictionPolicyEnum
+{
+  None,
+  LRU,
+  LFU,
+  WTinyLFU
+}
@@ -0,0 +1,127 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds the events of a store to an EvictionPolicy without making reads contend on a lock. Reads are recorded in
+ * one of several striped ring buffers with a single compare-and-set. The buffers are lossy: when a buffer is full
+ * or contended the access is dropped, which only makes the policy slightly less precise. A full buffer is drained
+ * into the policy by whichever reader manages to take the lock with tryLock, so readers never wait.
+ *
+ * Inserts, removals and evictions are rare compared to reads and must not be lost, so they are applied to the
+ * policy under the lock after draining the buffered reads.
+ */
+public class EvictionTracker
+{
+  private static final int BUFFER_SIZE = 32;
+  private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+  private final EvictionPolicy policy;
+  private final ReadBuffer[] readBuffers;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  public EvictionTracker(EvictionPolicy policy) {
+    this.policy = policy;
+    int stripes = Integer.highestOneBit( Runtime.getRuntime().availableProcessors() * 2 - 1 ) << 1;
+    this.readBuffers = new ReadBuffer[stripes];
+    for (int i = 0; i < stripes; i++) {
+      readBuffers[i] = new ReadBuffer();
+    }
+  }
+
+  /**
+   * Records a read of the key. Never blocks.
+   */
+  public void recordAccess(String key) {
+    long threadId = Thread.currentThread().threadId();
+    ReadBuffer buffer = readBuffers[(int) (threadId ^ (threadId >>> 16)) & (readBuffers.length - 1)];
+    if (!buffer.offer( key ) && lock.tryLock()) {
+      try {
+        drainReadBuffers();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public void recordInsert(String key) {
+    lock.lock();
+    try {
+      drainReadBuffers();
+      policy.onInsert( key );
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void recordRemove(String key) {
+    lock.lock();
+    try {
+      drainReadBuffers();
+      policy.onRemove( key );
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the key chosen by the policy for eviction, or null if nothing is tracked
+   */
+  public String evict() {
+    lock.lock();
+    try {
+      drainReadBuffers();
+      return policy.evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drainReadBuffers() {
+    for (ReadBuffer buffer : readBuffers) {
+      buffer.drainTo( policy );
+    }
+  }
+
+  /*
+   * A bounded ring buffer with many producers and a single consumer that holds the tracker lock
+   */
+  private static final class ReadBuffer {
+    private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>( BUFFER_SIZE );
+    private final AtomicLong writeIndex = new AtomicLong();
+    private volatile long readIndex;
+
+    /**
+     * @return false if the buffer is full and should be drained
+     */
+    boolean offer(String key) {
+      long write = writeIndex.get();
+      if (write - readIndex >= BUFFER_SIZE) {
+        return false;
+      }
+      if (writeIndex.compareAndSet( write, write + 1 )) {
+        slots.lazySet( (int) (write & BUFFER_MASK), key );
+      }
+      return true;
+    }
+
+    void drainTo(EvictionPolicy policy) {
+      long read = readIndex;
+      long write = writeIndex.get();
+      for (; read < write; read++) {
+        int index = (int) (read & BUFFER_MASK);
+        String key = slots.get( index );
+        if (key == null) {
+          //the producer claimed the slot but has not published the key yet
+          break;
+        }
+        slots.lazySet( index, null );
+        policy.onAccess( key );
+      }
+      readIndex = read;
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+/**
+ * A count-min sketch of 4 bit counters, sixteen packed into each long, that estimates how often a key has been
+ * seen. Once the number of recorded
+ * events reaches ten times the width of the sketch, all counters are halved so that keys which were popular in
+ * the past slowly lose their weight.
+ */
+class FrequencySketch
+{
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = { 0x97cb3127, 0xe9f85f89, 0x85ebca6b, 0xc2b2ae35 };
+  //clears the bit each counter receives from its neighbour when a long is shifted right by one
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param expectedEntries number of keys the sketch should tell apart
+   */
+  FrequencySketch(int expectedEntries) {
+    int width = Integer.highestOneBit( Math.max( 64, expectedEntries ) - 1 ) << 1;
+    //16 counters per long, the width is a power of two of at least 64
+    this.table = new long[width * DEPTH / 16];
+    this.mask = width - 1;
+    this.sampleSize = 10 * width;
+  }
+
+  int frequency(String key) {
+    int hash = key.hashCode();
+    int frequency = MAX_COUNT;
+    for (int row = 0; row < DEPTH; row++) {
+      frequency = Math.min( frequency, counter( indexOf( hash, row ) ) );
+    }
+    return frequency;
+  }
+
+  void increment(String key) {
+    int hash = key.hashCode();
+    int frequency = frequency( key );
+    if (frequency == MAX_COUNT) {
+      return;
+    }
+    //conservative update: only the counters holding the current estimate are raised
+    for (int row = 0; row < DEPTH; row++) {
+      int index = indexOf( hash, row );
+      if (counter( index ) == frequency) {
+        table[index >>> 4] += 1L << offset( index );
+      }
+    }
+    if (++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions >>>= 1;
+  }
+
+  private int counter(int index) {
+    return (int) (table[index >>> 4] >>> offset( index )) & MAX_COUNT;
+  }
+
+  /*
+   * Bit offset of a counter within its long
+   */
+  private static int offset(int index) {
+    return (index & 15) << 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    int h = hash * SEEDS[row];
+    h ^= h >>> 16;
+    return (row * (mask + 1)) + (h & mask);
+  }
+
+}
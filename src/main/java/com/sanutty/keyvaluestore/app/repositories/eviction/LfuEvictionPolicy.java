@@ -0,0 +1,76 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evicts the least frequently used key. Keys with the same frequency are evicted in the order they reached it.
+ */
+public class LfuEvictionPolicy implements EvictionPolicy
+{
+  private final Map<String, Integer> frequencies = new HashMap<>();
+
+  //keys grouped by frequency, lowest frequency first
+  private final TreeMap<Integer, LinkedHashSet<String>> buckets = new TreeMap<>();
+
+  @Override
+  public void onInsert( String key )
+  {
+    if (frequencies.containsKey( key )) {
+      onAccess( key );
+      return;
+    }
+    frequencies.put( key, 1 );
+    buckets.computeIfAbsent( 1, f -> new LinkedHashSet<>() ).add( key );
+  }
+
+  @Override
+  public void onAccess( String key )
+  {
+    Integer frequency = frequencies.get( key );
+    if (frequency == null) {
+      return;
+    }
+    removeFromBucket( key, frequency );
+    frequencies.put( key, frequency + 1 );
+    buckets.computeIfAbsent( frequency + 1, f -> new LinkedHashSet<>() ).add( key );
+  }
+
+  @Override
+  public void onRemove( String key )
+  {
+    Integer frequency = frequencies.remove( key );
+    if (frequency != null) {
+      removeFromBucket( key, frequency );
+    }
+  }
+
+  @Override
+  public String evict()
+  {
+    Map.Entry<Integer, LinkedHashSet<String>> lowest = buckets.firstEntry();
+    if (lowest == null) {
+      return null;
+    }
+    Iterator<String> keys = lowest.getValue().iterator();
+    String key = keys.next();
+    keys.remove();
+    if (lowest.getValue().isEmpty()) {
+      buckets.remove( lowest.getKey() );
+    }
+    frequencies.remove( key );
+    return key;
+  }
+
+  private void removeFromBucket(String key, int frequency) {
+    LinkedHashSet<String> bucket = buckets.get( frequency );
+    bucket.remove( key );
+    if (bucket.isEmpty()) {
+      buckets.remove( frequency );
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key
+ */
+public class LruEvictionPolicy implements EvictionPolicy
+{
+  //access ordered, so the eldest entry is the least recently used key
+  private final LinkedHashMap<String, Boolean> accessOrder = new LinkedHashMap<>( 16, 0.75f, true );
+
+  @Override
+  public void onInsert( String key )
+  {
+    accessOrder.put( key, Boolean.TRUE );
+  }
+
+  @Override
+  public void onAccess( String key )
+  {
+    accessOrder.get( key );
+  }
+
+  @Override
+  public void onRemove( String key )
+  {
+    accessOrder.remove( key );
+  }
+
+  @Override
+  public String evict()
+  {
+    Iterator<String> eldest = accessOrder.keySet().iterator();
+    if (!eldest.hasNext()) {
+      return null;
+    }
+    String key = eldest.next();
+    eldest.remove();
+    return key;
+  }
+
+}
@@ -0,0 +1,106 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Window TinyLFU. New keys enter a small LRU admission window (1% of the tracked keys). Keys leaving the window
+ * move to the probation segment of a segmented LRU main area, and keys read while on probation are promoted to the
+ * protected segment (80% of the main area). When something has to be evicted, the key most recently admitted from
+ * the window competes with the eldest probation key, and the one with the lower estimated access frequency in the
+ * FrequencySketch is evicted. This keeps one-hit keys from pushing out keys that are read often.
+ */
+public class WTinyLfuEvictionPolicy implements EvictionPolicy
+{
+  private static final double WINDOW_RATIO = 0.01;
+  private static final double PROTECTED_RATIO = 0.8;
+
+  private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>( 16, 0.75f, true );
+  private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>( 16, 0.75f, true );
+  private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<>( 16, 0.75f, true );
+  private final FrequencySketch sketch;
+
+  //the key most recently moved from the window to probation, the admission candidate
+  private String candidate;
+
+  /**
+   * @param expectedEntries expected number of keys in the store, used to size the frequency sketch
+   */
+  public WTinyLfuEvictionPolicy(int expectedEntries) {
+    this.sketch = new FrequencySketch( expectedEntries );
+  }
+
+  @Override
+  public void onInsert( String key )
+  {
+    if (window.containsKey( key ) || probation.containsKey( key ) || protectedSegment.containsKey( key )) {
+      onAccess( key );
+      return;
+    }
+    sketch.increment( key );
+    window.put( key, Boolean.TRUE );
+
+    int total = window.size() + probation.size() + protectedSegment.size();
+    if (window.size() > Math.max( 1, (int) (total * WINDOW_RATIO) )) {
+      candidate = removeEldest( window );
+      probation.put( candidate, Boolean.TRUE );
+    }
+  }
+
+  @Override
+  public void onAccess( String key )
+  {
+    if (window.get( key ) != null || protectedSegment.get( key ) != null) {
+      sketch.increment( key );
+      return;
+    }
+    if (probation.remove( key ) != null) {
+      sketch.increment( key );
+      protectedSegment.put( key, Boolean.TRUE );
+      int mainSize = probation.size() + protectedSegment.size();
+      if (protectedSegment.size() > Math.max( 1, (int) (mainSize * PROTECTED_RATIO) )) {
+        probation.put( removeEldest( protectedSegment ), Boolean.TRUE );
+      }
+    }
+  }
+
+  @Override
+  public void onRemove( String key )
+  {
+    if (window.remove( key ) == null && probation.remove( key ) == null) {
+      protectedSegment.remove( key );
+    }
+  }
+
+  @Override
+  public String evict()
+  {
+    if (probation.isEmpty() && protectedSegment.isEmpty()) {
+      return removeEldest( window );
+    }
+    if (probation.isEmpty()) {
+      return removeEldest( protectedSegment );
+    }
+
+    String victim = probation.keySet().iterator().next();
+    if (candidate != null && !candidate.equals( victim ) && probation.containsKey( candidate )
+        && sketch.frequency( candidate ) <= sketch.frequency( victim )) {
+      //the newcomer is not used more often than the eldest probation key, so it is not admitted
+      victim = candidate;
+    }
+    probation.remove( victim );
+    candidate = null;
+    return victim;
+  }
+
+  private static String removeEldest(LinkedHashMap<String, Boolean> segment) {
+    Iterator<String> eldest = segment.keySet().iterator();
+    if (!eldest.hasNext()) {
+      return null;
+    }
+    String key = eldest.next();
+    eldest.remove();
+    return key;
+  }
+
+}
@@ -0,0 +1,20 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+/**
+ * When the write-ahead log forces its writes to disk
+ */
+public enum FsyncPolicyEnum
+{
+  /**
+   * A write is acknowledged only after it has been forced to disk. Concurrent writes share one fsync.
+   */
+  Always,
+  /**
+   * The log is forced to disk every fsync-interval-ms. Up to that interval of acknowledged writes can be lost on a crash.
+   */
+  Interval,
+  /**
+   * The log is written but never forced, the operating system decides when the data reaches the disk
+   */
+  OS
+}
@@ -0,0 +1,168 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * One change to the store as it is written to the write-ahead log and to snapshots.
+ *
+ * On disk a record is framed as [int payload length][int CRC32 of the payload][payload], where the payload is
+ * [byte operation][long expiresAt][int key length][key UTF-8][int value length, -1 for none][value], followed by
+ * [long version] for a versioned PUT. A record whose frame is cut short or whose checksum does not match marks
+ * the end of the readable data.
+ */
+public final class LogRecord
+{
+  public static final byte PUT = 1;
+  public static final byte DELETE = 2;
+
+  //operation byte on disk of a PUT that carries a version. PUT records written before versions existed are read
+  //back as version 1.
+  private static final byte VERSIONED_PUT = 3;
+
+  private static final int HEADER_SIZE = 8;
+  private static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+
+  private final byte operation;
+  private final String key;
+  private final byte[] value;
+  private final long expiresAt;
+  private final long version;
+
+  private LogRecord(byte operation, String key, byte[] value, long expiresAt, long version) {
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+    this.expiresAt = expiresAt;
+    this.version = version;
+  }
+
+  public static LogRecord put(String key, byte[] value, long expiresAt, long version) {
+    return new LogRecord( PUT, key, value, expiresAt, version );
+  }
+
+  public static LogRecord delete(String key) {
+    return new LogRecord( DELETE, key, null, 0, 0 );
+  }
+
+  public byte getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the framed record
+   */
+  byte[] encode() {
+    byte[] keyBytes = key.getBytes( StandardCharsets.UTF_8 );
+    boolean versioned = operation == PUT;
+    int payloadSize = 1 + 8 + 4 + keyBytes.length + 4 + (value == null ? 0 : value.length) + (versioned ? 8 : 0);
+    ByteBuffer buf = ByteBuffer.allocate( HEADER_SIZE + payloadSize );
+    buf.putInt( payloadSize );
+    buf.putInt( 0 );
+    buf.put( versioned ? VERSIONED_PUT : operation );
+    buf.putLong( expiresAt );
+    buf.putInt( keyBytes.length );
+    buf.put( keyBytes );
+    buf.putInt( value == null ? -1 : value.length );
+    if (value != null) {
+      buf.put( value );
+    }
+    if (versioned) {
+      buf.putLong( version );
+    }
+    CRC32 crc = new CRC32();
+    crc.update( buf.array(), HEADER_SIZE, payloadSize );
+    buf.putInt( 4, (int) crc.getValue() );
+    return buf.array();
+  }
+
+  /**
+   * @return the next record, or null at the end of the stream or at the first incomplete or corrupt record
+   */
+  static LogRecord read(DataInputStream in) throws IOException {
+    try {
+      int payloadSize = in.readInt();
+      int checksum = in.readInt();
+      if (payloadSize < 17 || payloadSize > MAX_PAYLOAD_SIZE) {
+        return null;
+      }
+      byte[] payload = new byte[payloadSize];
+      in.readFully( payload );
+      CRC32 crc = new CRC32();
+      crc.update( payload );
+      if ((int) crc.getValue() != checksum) {
+        return null;
+      }
+      return decode( ByteBuffer.wrap( payload ) );
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the next record from a buffer, such as a memory-mapped snapshot segment.
+   * @return the next record, or null at the end of the buffer or at an incomplete or corrupt record, in which
+   * case the position of the buffer is left at the start of that record
+   */
+  static LogRecord read(ByteBuffer in) {
+    int start = in.position();
+    if (in.remaining() < HEADER_SIZE) {
+      return null;
+    }
+    int payloadSize = in.getInt();
+    int checksum = in.getInt();
+    if (payloadSize < 17 || payloadSize > in.remaining()) {
+      in.position( start );
+      return null;
+    }
+    ByteBuffer payload = in.slice( in.position(), payloadSize );
+    CRC32 crc = new CRC32();
+    crc.update( payload.duplicate() );
+    if ((int) crc.getValue() != checksum) {
+      in.position( start );
+      return null;
+    }
+    in.position( in.position() + payloadSize );
+    return decode( payload );
+  }
+
+  static LogRecord decode(ByteBuffer payload) {
+    byte operation = payload.get();
+    long expiresAt = payload.getLong();
+    byte[] keyBytes = new byte[payload.getInt()];
+    payload.get( keyBytes );
+    int valueLength = payload.getInt();
+    byte[] value = null;
+    if (valueLength >= 0) {
+      value = new byte[valueLength];
+      payload.get( value );
+    }
+    long version = 1;
+    if (operation == VERSIONED_PUT) {
+      operation = PUT;
+      version = payload.getLong();
+    }
+    return new LogRecord( operation, new String( keyBytes, StandardCharsets.UTF_8 ), value, expiresAt, version );
+  }
+
+}
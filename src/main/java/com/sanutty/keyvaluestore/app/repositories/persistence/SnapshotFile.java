@@ -0,0 +1,217 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A compact image of the store: one PUT LogRecord per live key, framed the same way as in the write-ahead log.
+ * snapshot-&lt;segment&gt;.dat holds the state of the store as of the start of WAL segment &lt;segment&gt;, so recovery
+ * loads it and then replays that segment and the ones after it.
+ *
+ * The records are split into segments of about SEGMENT_BYTES. An index of the segments sits at the end of the
+ * file: [segment count] x ([long offset][long length][int record count]), followed by the footer
+ * [long index offset][int segment count][int MAGIC]. Every key appears in exactly one record, so the segments can
+ * be memory-mapped and loaded by several threads at once in any order.
+ *
+ * A snapshot is written to a temporary file, forced to disk and then renamed into place, so a snapshot file that
+ * exists is always complete.
+ */
+class SnapshotFile
+{
+  private static final int MAGIC = 0x4b565350; //KVSP
+  static final int FORMAT_VERSION = 2;
+
+  private static final int HEADER_SIZE = 8;
+  private static final int FOOTER_SIZE = 16;
+  private static final int INDEX_ENTRY_SIZE = 20;
+  static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  private final Path file;
+  private final int version;
+  private final List<Segment> segments;
+
+  private SnapshotFile(Path file, int version, List<Segment> segments) {
+    this.file = file;
+    this.version = version;
+    this.segments = segments;
+  }
+
+  static Path snapshotPath(Path dir, long segment) {
+    return dir.resolve( String.format( "snapshot-%016d.dat", segment ) );
+  }
+
+  /**
+   * @return number of records written
+   */
+  static long write(Path dir, long segment, Iterator<LogRecord> records) throws IOException {
+    Path target = snapshotPath( dir, segment );
+    Path temp = dir.resolve( target.getFileName() + ".tmp" );
+    long count = 0;
+    try (FileChannel channel = FileChannel.open( temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING )) {
+      OutputStream channelOut = Channels.newOutputStream( channel );
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream( channelOut, 256 * 1024 ) );
+      out.writeInt( MAGIC );
+      out.writeInt( FORMAT_VERSION );
+
+      List<Segment> segments = new ArrayList<>();
+      long position = HEADER_SIZE;
+      long segmentStart = position;
+      int segmentRecords = 0;
+      while (records.hasNext()) {
+        byte[] encoded = records.next().encode();
+        out.write( encoded );
+        position += encoded.length;
+        segmentRecords++;
+        count++;
+        if (position - segmentStart >= SEGMENT_BYTES) {
+          segments.add( new Segment( segmentStart, position - segmentStart, segmentRecords ) );
+          segmentStart = position;
+          segmentRecords = 0;
+        }
+      }
+      if (segmentRecords > 0) {
+        segments.add( new Segment( segmentStart, position - segmentStart, segmentRecords ) );
+      }
+
+      for (Segment s : segments) {
+        out.writeLong( s.offset );
+        out.writeLong( s.length );
+        out.writeInt( s.records );
+      }
+      out.writeLong( position );
+      out.writeInt( segments.size() );
+      out.writeInt( MAGIC );
+      out.flush();
+      channel.force( true );
+    }
+    Files.move( temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+    return count;
+  }
+
+  /**
+   * Reads the header and segment index of a snapshot.
+   * @throws IOException if the file is not a snapshot or its index is damaged
+   */
+  static SnapshotFile open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ )) {
+      long size = channel.size();
+      ByteBuffer header = readFully( channel, 0, HEADER_SIZE );
+      if (header.getInt() != MAGIC) {
+        throw new IOException( "Not a snapshot file: " + file );
+      }
+      int version = header.getInt();
+      if (version == 1) {
+        //a single unindexed run of records, read sequentially
+        return new SnapshotFile( file, version, List.of( new Segment( HEADER_SIZE, size - HEADER_SIZE, -1 ) ) );
+      }
+      if (version != FORMAT_VERSION || size < HEADER_SIZE + FOOTER_SIZE) {
+        throw new IOException( "Unsupported snapshot format " + version + ": " + file );
+      }
+
+      ByteBuffer footer = readFully( channel, size - FOOTER_SIZE, FOOTER_SIZE );
+      long indexOffset = footer.getLong();
+      int segmentCount = footer.getInt();
+      if (footer.getInt() != MAGIC || indexOffset + (long) segmentCount * INDEX_ENTRY_SIZE != size - FOOTER_SIZE) {
+        throw new IOException( "Damaged snapshot index: " + file );
+      }
+      ByteBuffer index = readFully( channel, indexOffset, segmentCount * INDEX_ENTRY_SIZE );
+      List<Segment> segments = new ArrayList<>( segmentCount );
+      for (int i = 0; i < segmentCount; i++) {
+        segments.add( new Segment( index.getLong(), index.getLong(), index.getInt() ) );
+      }
+      return new SnapshotFile( file, version, segments );
+    }
+  }
+
+  int getSegmentCount() {
+    return segments.size();
+  }
+
+  long getSize() throws IOException {
+    return Files.size( file );
+  }
+
+  /**
+   * Memory-maps one segment and hands its records to the consumer. Segments may be read concurrently.
+   * @return number of records read
+   * @throws IOException if a record of the segment is damaged
+   */
+  long readSegment(int number, Consumer<LogRecord> consumer) throws IOException {
+    Segment segment = segments.get( number );
+    if (version == 1) {
+      return readSequential( consumer );
+    }
+    MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open( file, StandardOpenOption.READ )) {
+      mapped = channel.map( FileChannel.MapMode.READ_ONLY, segment.offset, segment.length );
+    }
+    long count = 0;
+    LogRecord record;
+    while ((record = LogRecord.read( mapped )) != null) {
+      consumer.accept( record );
+      count++;
+    }
+    if (mapped.hasRemaining() || count != segment.records) {
+      throw new IOException( "Corrupt record in snapshot " + file + " segment " + number + " after " + count + " records" );
+    }
+    return count;
+  }
+
+  private long readSequential(Consumer<LogRecord> consumer) throws IOException {
+    try (InputStream fileIn = Files.newInputStream( file );
+         DataInputStream in = new DataInputStream( new BufferedInputStream( fileIn, 256 * 1024 ) )) {
+      in.skipNBytes( HEADER_SIZE );
+      long count = 0;
+      LogRecord record;
+      while ((record = LogRecord.read( in )) != null) {
+        consumer.accept( record );
+        count++;
+      }
+      if (in.read() != -1) {
+        throw new IOException( "Corrupt record in snapshot " + file + " after " + count + " records" );
+      }
+      return count;
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate( length );
+    while (buf.hasRemaining()) {
+      if (channel.read( buf, position + buf.position() ) < 0) {
+        throw new IOException( "Unexpected end of snapshot file" );
+      }
+    }
+    return buf.flip();
+  }
+
+  private static final class Segment {
+    final long offset;
+    final long length;
+    final int records;
+
+    Segment(long offset, long length, int records) {
+      this.offset = offset;
+      this.length = length;
+      this.records = records;
+    }
+  }
+
+}
@@ -0,0 +1,254 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Durability for an in-memory repository: a WriteAheadLog of every change plus periodic snapshots that let the
+ * log be truncated.
+ *
+ * The repository appends a LogRecord for each change while it holds whatever orders changes to the same key, so
+ * the log replays the key's changes in the order they were applied. The change must already be visible in the
+ * store when its record is appended. A snapshot rotates the log first and then iterates the live store, so every
+ * record left in a replaced segment belongs to a change the iteration sees. Changes made during the iteration
+ * may or may not be in the snapshot, but they are all in the new segment, and replaying them over the snapshot
+ * gives the same final state.
+ *
+ * The directory holds snapshot-&lt;n&gt;.dat files and wal-&lt;n&gt;.log segments. Recovery memory-maps the newest
+ * snapshot, loads its segments on one thread per core and then replays the log segments numbered from it upwards
+ * in order.
+ */
+public class StorePersistence
+{
+  private static final Log log = LogFactory.getLog( StorePersistence.class );
+
+  private final Path dir;
+  private final FsyncPolicyEnum fsyncPolicy;
+  private final long fsyncIntervalMillis;
+  private final long snapshotIntervalSeconds;
+
+  private WriteAheadLog wal;
+  private ScheduledExecutorService snapshotter;
+  private long sequenceAtLastSnapshot;
+  private final AtomicLong recoveredRecords = new AtomicLong();
+
+  /**
+   * @param dir directory for snapshots and log segments, created if missing
+   * @param fsyncPolicy when log writes are forced to disk
+   * @param fsyncIntervalMillis time between forces for FsyncPolicyEnum.Interval
+   * @param snapshotIntervalSeconds time between snapshots, 0 to take none automatically
+   */
+  public StorePersistence(Path dir, FsyncPolicyEnum fsyncPolicy, long fsyncIntervalMillis, long snapshotIntervalSeconds) {
+    this.dir = dir;
+    this.fsyncPolicy = fsyncPolicy;
+    this.fsyncIntervalMillis = fsyncIntervalMillis;
+    this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+  }
+
+  /**
+   * Hands every persisted record to apply and opens the log for new records. Must be called once before append.
+   * The snapshot records are applied concurrently from several threads; each key appears in only one of them.
+   * The log records are then applied on the calling thread, oldest first.
+   * @param apply applies a record to the store without logging it again. Must be thread safe.
+   * @return number of records applied
+   */
+  public long recover(Consumer<LogRecord> apply) throws IOException {
+    Files.createDirectories( dir );
+    TreeSet<Long> snapshots = new TreeSet<>();
+    TreeSet<Long> segments = new TreeSet<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream( dir )) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith( ".tmp" )) {
+          //an interrupted snapshot
+          Files.delete( file );
+        } else if (name.startsWith( "snapshot-" ) && name.endsWith( ".dat" )) {
+          snapshots.add( parseNumber( name, "snapshot-", ".dat" ) );
+        } else if (name.startsWith( "wal-" ) && name.endsWith( ".log" )) {
+          segments.add( parseNumber( name, "wal-", ".log" ) );
+        }
+      }
+    }
+
+    long base = 0;
+    if (!snapshots.isEmpty()) {
+      base = snapshots.last();
+      loadSnapshot( SnapshotFile.snapshotPath( dir, base ), apply );
+    }
+    long logStart = System.nanoTime();
+    long logRecords = 0;
+    for (long segment : segments.tailSet( base )) {
+      logRecords += WriteAheadLog.replay( WriteAheadLog.segmentPath( dir, segment ), apply );
+    }
+    recoveredRecords.addAndGet( logRecords );
+    log.info( String.format( "Replayed %d log records from %d segments in %d ms", logRecords,
+        segments.tailSet( base ).size(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - logStart ) ) );
+    deleteBefore( base );
+
+    long next = Math.max( base, segments.isEmpty() ? 0 : segments.last() ) + 1;
+    wal = new WriteAheadLog( dir, next, fsyncPolicy, fsyncIntervalMillis );
+    return recoveredRecords.get();
+  }
+
+  /**
+   * @return number of records applied so far by recover, for progress reporting while it runs
+   */
+  public long getRecoveredRecords() {
+    return recoveredRecords.get();
+  }
+
+  private void loadSnapshot(Path file, Consumer<LogRecord> apply) throws IOException {
+    long start = System.nanoTime();
+    SnapshotFile snapshot = SnapshotFile.open( file );
+    int segmentCount = snapshot.getSegmentCount();
+    int threads = Math.max( 1, Math.min( segmentCount, Runtime.getRuntime().availableProcessors() ) );
+    log.info( String.format( "Loading snapshot %s (%d MB, %d segments) with %d threads", file.getFileName(),
+        snapshot.getSize() >> 20, segmentCount, threads ) );
+
+    AtomicInteger loadedSegments = new AtomicInteger();
+    AtomicInteger threadNumber = new AtomicInteger();
+    ExecutorService loaders = Executors.newFixedThreadPool( threads, r -> {
+      Thread thread = new Thread( r, "memstore-recovery-" + threadNumber.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    try {
+      List<Future<Long>> loads = new ArrayList<>( segmentCount );
+      for (int i = 0; i < segmentCount; i++) {
+        int segment = i;
+        loads.add( loaders.submit( () -> {
+          long count = snapshot.readSegment( segment, apply );
+          recoveredRecords.addAndGet( count );
+          int done = loadedSegments.incrementAndGet();
+          //progress roughly every tenth of the snapshot
+          if (done * 10L / segmentCount != (done - 1) * 10L / segmentCount) {
+            log.info( String.format( "Snapshot recovery progress: %d/%d segments, %d records", done, segmentCount,
+                recoveredRecords.get() ) );
+          }
+          return count;
+        } ) );
+      }
+      for (Future<Long> load : loads) {
+        load.get();
+      }
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException( e.getCause() );
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while loading snapshot " + file, e );
+    } finally {
+      loaders.shutdownNow();
+    }
+    log.info( String.format( "Loaded %d records from snapshot in %d ms", recoveredRecords.get(),
+        TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ) );
+  }
+
+  /**
+   * Starts taking a snapshot every snapshotIntervalSeconds, skipping intervals in which nothing was logged.
+   * @param liveRecords supplies a PUT record for every live key. The iterator is weakly consistent: it runs while
+   * the store keeps changing.
+   */
+  public void startSnapshots(Supplier<Iterator<LogRecord>> liveRecords) {
+    if (snapshotIntervalSeconds <= 0) {
+      return;
+    }
+    snapshotter = Executors.newSingleThreadScheduledExecutor( r -> {
+      Thread thread = new Thread( r, "memstore-snapshot" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    snapshotter.scheduleWithFixedDelay( () -> {
+      try {
+        if (wal.getAppendedSequence() != sequenceAtLastSnapshot) {
+          snapshot( liveRecords.get() );
+        }
+      } catch (IOException | UncheckedIOException e) {
+        //the log still holds every change, the next interval tries again
+      }
+    }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS );
+  }
+
+  /**
+   * Writes a snapshot and deletes the snapshots and log segments it replaces.
+   */
+  public synchronized void snapshot(Iterator<LogRecord> liveRecords) throws IOException {
+    long sequence = wal.getAppendedSequence();
+    long segment = wal.rotate();
+    SnapshotFile.write( dir, segment, liveRecords );
+    deleteBefore( segment );
+    sequenceAtLastSnapshot = sequence;
+  }
+
+  /**
+   * @see WriteAheadLog#append(LogRecord)
+   */
+  public long append(LogRecord record) {
+    return wal.append( record );
+  }
+
+  /**
+   * @see WriteAheadLog#getAppendedSequence()
+   */
+  public long getAppendedSequence() {
+    return wal.getAppendedSequence();
+  }
+
+  /**
+   * @see WriteAheadLog#awaitDurable(long)
+   */
+  public void awaitDurable(long sequence) {
+    wal.awaitDurable( sequence );
+  }
+
+  public void close() throws IOException {
+    if (snapshotter != null) {
+      //a snapshot in progress is allowed to finish, so it does not leave a temporary file behind
+      snapshotter.shutdown();
+      try {
+        snapshotter.awaitTermination( 1, TimeUnit.MINUTES );
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (wal != null) {
+      wal.close();
+    }
+  }
+
+  private void deleteBefore(long segment) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream( dir )) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if ((name.startsWith( "snapshot-" ) && name.endsWith( ".dat" ) && parseNumber( name, "snapshot-", ".dat" ) < segment)
+            || (name.startsWith( "wal-" ) && name.endsWith( ".log" ) && parseNumber( name, "wal-", ".log" ) < segment)) {
+          Files.delete( file );
+        }
+      }
+    }
+  }
+
+  private static long parseNumber(String name, String prefix, String suffix) {
+    return Long.parseLong( name.substring( prefix.length(), name.length() - suffix.length() ) );
+  }
+
+}
@@ -0,0 +1,318 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log of LogRecords split into numbered segment files (wal-&lt;segment&gt;.log).
+ *
+ * append only encodes the record into an in-memory buffer and returns its sequence number. A single writer thread
+ * swaps the buffer out, writes it to the current segment with one write call and, depending on the FsyncPolicyEnum,
+ * forces it to disk with one fsync. Every record appended while a batch is being written lands in the next batch,
+ * so under load many writes share one fsync (group commit). With FsyncPolicyEnum.Always a caller waits in
+ * awaitDurable until the batch holding its record has been forced.
+ */
+public class WriteAheadLog
+{
+  private static final int MAGIC = 0x4b56574c; //KVWL
+  static final int FORMAT_VERSION = 1;
+
+  private final Path dir;
+  private final FsyncPolicyEnum fsyncPolicy;
+  private final long fsyncIntervalNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition dataAvailable = lock.newCondition();
+  private final Condition durable = lock.newCondition();
+
+  //guarded by lock
+  private ExposedBuffer pending = new ExposedBuffer( 64 * 1024 );
+  private ExposedBuffer spare = new ExposedBuffer( 64 * 1024 );
+  private long appendedSequence;
+  private long durableSequence;
+  private IOException failure;
+  private boolean running = true;
+
+  //guarded by ioMonitor, which is held while a batch is taken from pending and written
+  private final Object ioMonitor = new Object();
+  private long segment;
+  private FileChannel channel;
+  private boolean unforced;
+
+  private final Thread writer;
+
+  /**
+   * Opens a new segment after the segments already in the directory.
+   * @param dir directory of the log
+   * @param firstSegment number of the segment to open, higher than every existing segment
+   * @param fsyncPolicy when batches are forced to disk
+   * @param fsyncIntervalMillis time between forces for FsyncPolicyEnum.Interval
+   */
+  public WriteAheadLog(Path dir, long firstSegment, FsyncPolicyEnum fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+    this.dir = dir;
+    this.fsyncPolicy = fsyncPolicy;
+    this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 1, fsyncIntervalMillis ) );
+    this.segment = firstSegment;
+    this.channel = openSegment( firstSegment );
+    this.writer = new Thread( this::writeLoop, "memstore-wal" );
+    writer.setDaemon( true );
+    writer.start();
+  }
+
+  static Path segmentPath(Path dir, long segment) {
+    return dir.resolve( String.format( "wal-%016d.log", segment ) );
+  }
+
+  /**
+   * Buffers a record for the next batch.
+   * @return the sequence number of the record, to be passed to awaitDurable
+   * @throws UncheckedIOException if an earlier batch could not be written; the log accepts no more records
+   */
+  public long append(LogRecord record) {
+    byte[] encoded = record.encode();
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw new UncheckedIOException( "Write-ahead log failed", failure );
+      }
+      pending.write( encoded, 0, encoded.length );
+      dataAvailable.signal();
+      return ++appendedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * With FsyncPolicyEnum.Always, waits until the record with the given sequence number has been forced to disk.
+   * With the other policies the record is acknowledged once it is buffered and this returns immediately.
+   */
+  public void awaitDurable(long sequence) {
+    if (fsyncPolicy != FsyncPolicyEnum.Always) {
+      return;
+    }
+    lock.lock();
+    try {
+      while (durableSequence < sequence) {
+        if (failure != null) {
+          throw new UncheckedIOException( "Write-ahead log failed", failure );
+        }
+        durable.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of records appended since the log was opened
+   */
+  public long getAppendedSequence() {
+    lock.lock();
+    try {
+      return appendedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes and forces everything appended so far to the current segment and starts a new one. Every record
+   * appended before the call is in a segment below the returned number, every record appended after it in the
+   * returned segment or above.
+   * @return the number of the new segment
+   */
+  public long rotate() throws IOException {
+    synchronized (ioMonitor) {
+      lock.lock();
+      try {
+        writeBatch( true );
+        channel.close();
+        segment++;
+        channel = openSegment( segment );
+        return segment;
+      } catch (IOException e) {
+        fail( e );
+        throw e;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Writes and forces everything appended so far and closes the current segment.
+   */
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      running = false;
+      dataAvailable.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (ioMonitor) {
+      lock.lock();
+      try {
+        if (failure == null) {
+          writeBatch( true );
+        }
+        channel.close();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reads the records of one segment in order. A torn or corrupt record ends the segment, it and anything after
+   * it were never acknowledged as durable.
+   * @return number of records read
+   */
+  static long replay(Path file, Consumer<LogRecord> consumer) throws IOException {
+    try (InputStream fileIn = Files.newInputStream( file );
+         DataInputStream in = new DataInputStream( new BufferedInputStream( fileIn, 64 * 1024 ) )) {
+      if (in.available() < 8 || in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        return 0;
+      }
+      long count = 0;
+      LogRecord record;
+      while ((record = LogRecord.read( in )) != null) {
+        consumer.accept( record );
+        count++;
+      }
+      return count;
+    }
+  }
+
+  private FileChannel openSegment(long number) throws IOException {
+    FileChannel file = FileChannel.open( segmentPath( dir, number ),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+    ByteBuffer header = ByteBuffer.allocate( 8 ).putInt( MAGIC ).putInt( FORMAT_VERSION ).flip();
+    while (header.hasRemaining()) {
+      file.write( header );
+    }
+    return file;
+  }
+
+  private void writeLoop() {
+    long lastForce = System.nanoTime();
+    while (true) {
+      lock.lock();
+      try {
+        if (fsyncPolicy == FsyncPolicyEnum.Interval) {
+          //batches are written once per interval, or earlier when the log is closed
+          long remaining = fsyncIntervalNanos - (System.nanoTime() - lastForce);
+          while (running && remaining > 0) {
+            remaining = awaitNanos( remaining );
+          }
+        } else {
+          while (running && pending.size() == 0) {
+            dataAvailable.awaitUninterruptibly();
+          }
+        }
+        if (!running) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      synchronized (ioMonitor) {
+        lock.lock();
+        try {
+          writeBatch( fsyncPolicy != FsyncPolicyEnum.OS );
+        } catch (IOException e) {
+          fail( e );
+          return;
+        } finally {
+          lock.unlock();
+        }
+      }
+      lastForce = System.nanoTime();
+    }
+  }
+
+  private long awaitNanos(long nanos) {
+    try {
+      return dataAvailable.awaitNanos( nanos );
+    } catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  /*
+   * Takes the pending buffer and writes it. Called holding ioMonitor and lock; lock is released during the write
+   * so appends can continue into the other buffer.
+   */
+  private void writeBatch(boolean force) throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    ExposedBuffer batch = pending;
+    long batchSequence = appendedSequence;
+    pending = spare;
+    lock.unlock();
+    try {
+      if (batch.size() > 0) {
+        ByteBuffer buf = ByteBuffer.wrap( batch.buffer(), 0, batch.size() );
+        while (buf.hasRemaining()) {
+          channel.write( buf );
+        }
+        unforced = true;
+      }
+      if (force && unforced) {
+        channel.force( false );
+        unforced = false;
+      }
+    } finally {
+      lock.lock();
+    }
+    batch.reset();
+    spare = batch;
+    durableSequence = batchSequence;
+    durable.signalAll();
+  }
+
+  /*
+   * Called holding lock. Wakes the callers waiting in awaitDurable so they see the failure.
+   */
+  private void fail(IOException e) {
+    if (failure == null) {
+      failure = e;
+    }
+    durable.signalAll();
+  }
+
+  /*
+   * Gives the writer access to the buffer without the copy ByteArrayOutputStream.toByteArray makes
+   */
+  private static final class ExposedBuffer extends ByteArrayOutputStream {
+    ExposedBuffer(int size) {
+      super( size );
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+}
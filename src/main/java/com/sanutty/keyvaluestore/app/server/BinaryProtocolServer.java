@@ -0,0 +1,62 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Serves the BinaryProtocolSession protocol on its own port for internal callers that do not want to pay for HTTP
+ * parsing and JSON wrapping. Requests go through the same KeyValueStoreService, and so the same repository, as
+ * the REST controller. Enabled with protocol.binary.enabled=true.
+ */
+@Component
+@ConditionalOnProperty(name = "protocol.binary.enabled", havingValue = "true")
+public class BinaryProtocolServer
+{
+  @Value("${protocol.binary.port:9889}")
+  private int port;
+
+  /**
+   * Threads executing requests, 0 for one per core
+   */
+  @Value("${protocol.binary.worker-threads:0}")
+  private int workerThreads;
+
+  @Value("${protocol.binary.max-frame-bytes:16777216}")
+  private int maxFrameBytes;
+
+  @Autowired
+  private KeyValueStoreService keyValueStoreService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private NioServer<BinaryProtocolSession.Request> server;
+
+  @PostConstruct
+  public void start() throws IOException {
+    int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+    //the read buffer has to hold a whole frame including its length field
+    server = new NioServer<>( "binary", port, threads, maxFrameBytes + 4,
+        () -> new BinaryProtocolSession( keyValueStoreService, maxFrameBytes ) );
+    server.start();
+    meterRegistry.gauge( "keyvaluestore.binary.connections", server, NioServer::getConnectionCount );
+    meterRegistry.more().counter( "keyvaluestore.binary.requests", Tags.empty(), server, NioServer::getRequestCount );
+  }
+
+  @PreDestroy
+  public void close() {
+    server.close();
+  }
+
+}
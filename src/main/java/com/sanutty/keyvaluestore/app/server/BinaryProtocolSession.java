@@ -0,0 +1,254 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+/**
+ * The binary protocol. Every message is a frame [int length][length bytes], big endian. Strings are UTF-8; a key
+ * is [unsigned short length][bytes], a value is [int length][bytes] holding JSON text.
+ *
+ * Requests: [byte op] followed by
+ *   OP_GET, OP_DELETE: [key]
+ *   OP_PUT: [key][long ttl seconds, 0 for none][long expected version, -1 for any][value]
+ *   OP_COMPOSITE: [int count] and count steps of [byte OP_GET, OP_PUT or OP_DELETE][key], a PUT step followed
+ *   by [long ttl seconds][value]
+ *
+ * Responses: [byte op][int count] and count entries of [byte status][long version, 0 for none][int length][data].
+ * A composite has an entry per step, or a single error entry if it failed. The data is the value of a successful
+ * GET, the message of an error, and empty otherwise. Responses are encoded straight into the connection's pooled
+ * direct buffers; a large value is not copied into them but queued as a heap buffer wrapping the array the
+ * repository returned, which the JDK copies into a temporary direct buffer when it writes it.
+ */
+class BinaryProtocolSession implements ProtocolSession<BinaryProtocolSession.Request>
+{
+  static final byte OP_GET = 1;
+  static final byte OP_PUT = 2;
+  static final byte OP_DELETE = 3;
+  static final byte OP_COMPOSITE = 4;
+
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_NOT_FOUND = 1;
+  static final byte STATUS_VERSION_CONFLICT = 2;
+  static final byte STATUS_INVALID_JSON = 3;
+  static final byte STATUS_ERROR = 4;
+
+  private static final int ENTRY_HEADER_BYTES = 13;
+  private static final byte[] NO_DATA = new byte[0];
+
+  private final KeyValueStoreService service;
+  private final int maxFrameBytes;
+
+  BinaryProtocolSession(KeyValueStoreService service, int maxFrameBytes) {
+    this.service = service;
+    this.maxFrameBytes = maxFrameBytes;
+  }
+
+  @Override
+  public void decode(ByteBuffer in, List<Request> requests) throws ProtocolException {
+    while (in.remaining() >= 4) {
+      int length = in.getInt( in.position() );
+      if (length < 1 || length > maxFrameBytes) {
+        throw new ProtocolException( "Invalid frame length " + length );
+      }
+      if (in.remaining() < 4 + length) {
+        break;
+      }
+      int start = in.position() + 4;
+      ByteBuffer frame = in.duplicate();
+      frame.position( start ).limit( start + length );
+      in.position( start + length );
+      requests.add( parse( frame ) );
+    }
+  }
+
+  private static Request parse(ByteBuffer frame) throws ProtocolException {
+    byte op = frame.get();
+    try {
+      Request request;
+      switch (op) {
+        case OP_GET:
+        case OP_DELETE:
+          request = new Request( op, readKey( frame ), 0, 0, null, null );
+          break;
+        case OP_PUT:
+          request = new Request( op, readKey( frame ), frame.getLong(), frame.getLong(), readValue( frame ), null );
+          break;
+        case OP_COMPOSITE:
+          int count = frame.getInt();
+          if (count < 0 || count > frame.remaining()) {
+            throw new ProtocolException( "Invalid composite step count " + count );
+          }
+          List<Request> steps = new ArrayList<>( count );
+          for (int i = 0; i < count; i++) {
+            byte action = frame.get();
+            if (action == OP_PUT) {
+              steps.add( new Request( action, readKey( frame ), frame.getLong(), 0, readValue( frame ), null ) );
+            } else if (action == OP_GET || action == OP_DELETE) {
+              steps.add( new Request( action, readKey( frame ), 0, 0, null, null ) );
+            } else {
+              throw new ProtocolException( "Invalid composite step " + action );
+            }
+          }
+          request = new Request( op, null, 0, 0, null, steps );
+          break;
+        default:
+          //the frame is intact, so the client is told and the connection carries on
+          return new Request( op, null, 0, 0, null, null );
+      }
+      if (frame.hasRemaining()) {
+        throw new ProtocolException( "Trailing bytes in request " + op );
+      }
+      return request;
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException( "Truncated request " + op );
+    }
+  }
+
+  private static String readKey(ByteBuffer frame) {
+    byte[] key = new byte[frame.getShort() & 0xffff];
+    frame.get( key );
+    return new String( key, StandardCharsets.UTF_8 );
+  }
+
+  private static byte[] readValue(ByteBuffer frame) throws ProtocolException {
+    int length = frame.getInt();
+    if (length < 0 || length > frame.remaining()) {
+      throw new ProtocolException( "Invalid value length " + length );
+    }
+    byte[] value = new byte[length];
+    frame.get( value );
+    return value;
+  }
+
+  @Override
+  public void execute(Request request, ResponseOutput out) {
+    try {
+      switch (request.op) {
+        case OP_GET:
+          respond( request.op, List.of( service.search( request.key ) ), out );
+          break;
+        case OP_PUT:
+          respond( request.op, List.of( service.save( request.key, new String( request.value, StandardCharsets.UTF_8 ),
+              request.ttlSeconds, request.expectedVersion ) ), out );
+          break;
+        case OP_DELETE:
+          respond( request.op, List.of( service.delete( request.key ) ), out );
+          break;
+        case OP_COMPOSITE:
+          executeComposite( request, out );
+          break;
+        default:
+          respondError( request.op, STATUS_ERROR, "Unknown operation " + request.op, out );
+          break;
+      }
+    } catch (Exception e) {
+      respondError( request.op, STATUS_ERROR, String.valueOf( e.getMessage() ), out );
+    }
+  }
+
+  @Override
+  public boolean isClosing() {
+    //the client closes the connection itself
+    return false;
+  }
+
+  private void executeComposite(Request request, ResponseOutput out) throws Exception {
+    List<KeyValueStoreRequest> steps = new ArrayList<>( request.steps.size() );
+    for (Request step : request.steps) {
+      KeyValueStoreRequest kvRequest = new KeyValueStoreRequest();
+      kvRequest.setKey( step.key );
+      if (step.op == OP_PUT) {
+        if (!JSONUtilility.isJson( new String( step.value, StandardCharsets.UTF_8 ) )) {
+          respondError( request.op, STATUS_INVALID_JSON, KeyValueStoreResponse.MSG_INVALID_JSON, out );
+          return;
+        }
+        kvRequest.setAction( ActionEnum.Save );
+        kvRequest.setPayload( JSONUtilility.readTree( step.value ) );
+        if (step.ttlSeconds > 0) {
+          kvRequest.setTtl( step.ttlSeconds );
+        }
+      } else {
+        kvRequest.setAction( step.op == OP_GET ? ActionEnum.Search : ActionEnum.Delete );
+      }
+      steps.add( kvRequest );
+    }
+    respond( request.op, service.compositeRequest( steps ), out );
+  }
+
+  private static void respond(byte op, List<KeyValueStoreResponse> entries, ResponseOutput out) {
+    byte[][] data = new byte[entries.size()][];
+    int length = 5;
+    for (int i = 0; i < data.length; i++) {
+      data[i] = dataOf( entries.get( i ) );
+      length += ENTRY_HEADER_BYTES + data[i].length;
+    }
+    out.putInt( length ).put( op ).putInt( entries.size() );
+    for (int i = 0; i < data.length; i++) {
+      KeyValueStoreResponse entry = entries.get( i );
+      out.put( statusOf( entry ) ).putLong( entry.getVersion() == null ? 0 : entry.getVersion() ).putInt( data[i].length );
+      out.put( data[i] );
+    }
+  }
+
+  private static void respondError(byte op, byte status, String message, ResponseOutput out) {
+    byte[] data = message.getBytes( StandardCharsets.UTF_8 );
+    out.putInt( 5 + ENTRY_HEADER_BYTES + data.length ).put( op ).putInt( 1 );
+    out.put( status ).putLong( 0 ).putInt( data.length ).put( data );
+  }
+
+  private static byte statusOf(KeyValueStoreResponse resp) {
+    if (resp.getStatus() == StatusEnum.OK) {
+      return STATUS_OK;
+    }
+    String message = resp.getMessage();
+    if (KeyValueStoreResponse.MSG_KEY_NOT_FOUND.equals( message )) {
+      return STATUS_NOT_FOUND;
+    }
+    if (KeyValueStoreResponse.MSG_VERSION_CONFLICT.equals( message )) {
+      return STATUS_VERSION_CONFLICT;
+    }
+    if (KeyValueStoreResponse.MSG_INVALID_JSON.equals( message )) {
+      return STATUS_INVALID_JSON;
+    }
+    return STATUS_ERROR;
+  }
+
+  private static byte[] dataOf(KeyValueStoreResponse resp) {
+    if (resp.getStatus() != StatusEnum.OK) {
+      return resp.getMessage() == null ? NO_DATA : resp.getMessage().getBytes( StandardCharsets.UTF_8 );
+    }
+    if (resp.getRawResult() != null) {
+      return resp.getRawResult();
+    }
+    return resp.getResult() == null ? NO_DATA : resp.getResult().getBytes( StandardCharsets.UTF_8 );
+  }
+
+  static final class Request {
+    final byte op;
+    final String key;
+    final long ttlSeconds;
+    final long expectedVersion;
+    final byte[] value;
+    final List<Request> steps;
+
+    Request(byte op, String key, long ttlSeconds, long expectedVersion, byte[] value, List<Request> steps) {
+      this.op = op;
+      this.key = key;
+      this.ttlSeconds = ttlSeconds;
+      this.expectedVersion = expectedVersion;
+      this.value = value;
+      this.steps = steps;
+    }
+  }
+
+}
@@ -0,0 +1,430 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A non-blocking TCP server for the wire protocols that run next to the REST controller.
+ *
+ * One I/O thread owns the selector. It accepts connections, reads whatever bytes have arrived, lets the
+ * connection's ProtocolSession cut them into requests and writes responses back with gathering writes. Both sides
+ * use direct buffers owned by the connection, which the socket reads into and writes from without an extra copy
+ * through a temporary direct buffer: a read buffer kept for the life of the connection and the pooled chunks of
+ * its ResponseOutput. Requests
+ * are executed on a pool of worker threads, because a repository call may block (the RDBM repository waits on
+ * JDBC) and must not stall the other connections. The requests of one connection are executed one at a time in
+ * arrival order, so a client can pipeline many requests without waiting for each response and still receive the
+ * responses in order. Responses produced while more pipelined requests are queued are written together.
+ *
+ * A connection stops being read while MAX_PENDING_REQUESTS of its requests are waiting to be executed or
+ * MAX_WRITE_BACKLOG bytes of its responses are waiting to be sent, so a client that sends faster than it reads
+ * is throttled through TCP flow control instead of growing the heap.
+ *
+ * A session that asks for its connection to be closed, like the Redis QUIT, gets the responses written so far
+ * flushed first; the requests queued behind it are dropped.
+ * @param <T> a decoded request
+ */
+public class NioServer<T>
+{
+  private static final Log log = LogFactory.getLog( NioServer.class );
+
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  //response bytes after which a worker hands its output to the I/O thread, even if more requests are queued
+  private static final int FLUSH_BYTES = 4 * ResponseOutput.CHUNK_BYTES;
+  //written response chunks a connection keeps for reuse
+  private static final int MAX_POOLED_CHUNKS = 4;
+  private static final int MAX_PENDING_REQUESTS = 1024;
+  private static final long MAX_WRITE_BACKLOG = 4 * 1024 * 1024;
+  //buffers handed to one gathering write
+  private static final int MAX_GATHER = 64;
+
+  private final String name;
+  private final int port;
+  private final int workerThreads;
+  private final int maxRequestBytes;
+  private final Supplier<ProtocolSession<T>> sessionFactory;
+
+  private final Queue<Runnable> ioTasks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private final AtomicLong requestCount = new AtomicLong();
+
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private ExecutorService workers;
+  private Thread ioThread;
+  private volatile boolean running;
+
+  /**
+   * @param name prefix of the thread names
+   * @param port port to listen on, 0 for any free port
+   * @param workerThreads number of threads executing requests
+   * @param maxRequestBytes largest request a client may send; a connection sending a larger one is closed
+   * @param sessionFactory creates the protocol state of each new connection
+   */
+  public NioServer(String name, int port, int workerThreads, int maxRequestBytes, Supplier<ProtocolSession<T>> sessionFactory) {
+    this.name = name;
+    this.port = port;
+    this.workerThreads = workerThreads;
+    this.maxRequestBytes = maxRequestBytes;
+    this.sessionFactory = sessionFactory;
+  }
+
+  public void start() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind( new InetSocketAddress( port ), 1024 );
+    serverChannel.configureBlocking( false );
+    serverChannel.register( selector, SelectionKey.OP_ACCEPT );
+
+    AtomicInteger threadNumber = new AtomicInteger();
+    workers = Executors.newFixedThreadPool( workerThreads, r -> {
+      Thread thread = new Thread( r, name + "-worker-" + threadNumber.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    running = true;
+    ioThread = new Thread( this::run, name + "-io" );
+    ioThread.setDaemon( true );
+    ioThread.start();
+    log.info( String.format( "%s protocol listening on port %d", name, getLocalPort() ) );
+  }
+
+  /**
+   * Stops accepting, closes every connection and waits for the requests being executed to finish.
+   */
+  public void close() {
+    running = false;
+    if (selector == null) {
+      return;
+    }
+    selector.wakeup();
+    try {
+      ioThread.join( TimeUnit.SECONDS.toMillis( 10 ) );
+      workers.shutdown();
+      workers.awaitTermination( 10, TimeUnit.SECONDS );
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public int getLocalPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        selector.select();
+        Runnable task;
+        while ((task = ioTasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          @SuppressWarnings("unchecked")
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read( connection );
+            }
+            if (key.isValid() && key.isWritable()) {
+              write( connection );
+            }
+          } catch (IOException e) {
+            //a reset by the client or a request that can not be framed
+            closeConnection( connection );
+          }
+        }
+      }
+    } catch (IOException e) {
+      log.error( name + " protocol I/O loop failed", e );
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) {
+          @SuppressWarnings("unchecked")
+          Connection connection = (Connection) key.attachment();
+          closeConnection( connection );
+        }
+      }
+      try {
+        serverChannel.close();
+        selector.close();
+      } catch (IOException e) {
+        //shutting down
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.configureBlocking( false );
+      channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+      Connection connection = new Connection( channel, sessionFactory.get() );
+      connection.key = channel.register( selector, SelectionKey.OP_READ, connection );
+      connectionCount.incrementAndGet();
+    }
+  }
+
+  private void read(Connection connection) throws IOException {
+    int read = connection.channel.read( connection.readBuffer );
+    if (read < 0) {
+      //the client has sent everything; it still gets the responses to the requests that are queued
+      connection.inputClosed = true;
+      connection.key.interestOps( connection.key.interestOps() & ~SelectionKey.OP_READ );
+      closeIfDone( connection );
+      return;
+    }
+    ByteBuffer buffer = connection.readBuffer;
+    buffer.flip();
+    List<T> requests = connection.decoded;
+    connection.session.decode( buffer, requests );
+    buffer.compact();
+    if (!buffer.hasRemaining()) {
+      //the request being received does not fit the buffer
+      if (buffer.capacity() >= maxRequestBytes) {
+        throw new ProtocolException( "Request larger than " + maxRequestBytes + " bytes" );
+      }
+      ByteBuffer larger = ByteBuffer.allocateDirect( Math.min( maxRequestBytes, buffer.capacity() * 2 ) );
+      connection.readBuffer = larger.put( buffer.flip() );
+    } else if (buffer.position() == 0 && buffer != connection.baseReadBuffer) {
+      //the large request has been consumed, the connection goes back to its own buffer
+      connection.readBuffer = connection.baseReadBuffer.clear();
+    }
+    if (!requests.isEmpty()) {
+      connection.pending.addAll( requests );
+      connection.pendingCount.addAndGet( requests.size() );
+      requestCount.addAndGet( requests.size() );
+      requests.clear();
+      if (connection.draining.compareAndSet( false, true )) {
+        workers.execute( () -> drain( connection ) );
+      }
+    }
+    updateReadInterest( connection );
+  }
+
+  /*
+   * Executes the queued requests of a connection on a worker thread. Only one drain per connection runs at a time.
+   */
+  private void drain(Connection connection) {
+    ResponseOutput output = connection.output;
+    T request;
+    while (!connection.closed && !connection.quitting && (request = connection.pending.poll()) != null) {
+      connection.pendingCount.decrementAndGet();
+      try {
+        connection.session.execute( request, output );
+      } catch (RuntimeException e) {
+        log.error( name + " protocol request failed, closing the connection", e );
+        ioTasks.add( () -> closeConnection( connection ) );
+        selector.wakeup();
+        return;
+      }
+      connection.quitting = connection.session.isClosing();
+      if (output.getPendingBytes() >= FLUSH_BYTES) {
+        flush( connection );
+      }
+    }
+    flush( connection );
+    connection.draining.set( false );
+    if (connection.quitting) {
+      //queued after the flush, so the I/O thread writes the last responses before it closes
+      ioTasks.add( () -> quit( connection ) );
+      selector.wakeup();
+    } else if (!connection.pending.isEmpty() && connection.draining.compareAndSet( false, true )) {
+      //a request queued after the loop ended but before draining was cleared
+      try {
+        workers.execute( () -> drain( connection ) );
+      } catch (RejectedExecutionException e) {
+        //the server is shutting down
+      }
+    } else if (connection.inputClosed) {
+      ioTasks.add( () -> closeIfDone( connection ) );
+      selector.wakeup();
+    }
+  }
+
+  /*
+   * Queues the responses encoded so far for the I/O thread and has it write them
+   */
+  private void flush(Connection connection) {
+    if (connection.output.getPendingBytes() == 0) {
+      return;
+    }
+    connection.writeBacklog.addAndGet( connection.output.drainTo( connection.writes ) );
+    ioTasks.add( () -> {
+      try {
+        write( connection );
+      } catch (IOException e) {
+        closeConnection( connection );
+      }
+    } );
+    selector.wakeup();
+  }
+
+  /*
+   * Writes as much of the queued responses as the socket takes and waits for OP_WRITE for the rest.
+   * Runs on the I/O thread, which is the only thread removing from the write queue.
+   */
+  private void write(Connection connection) throws IOException {
+    if (connection.closed) {
+      return;
+    }
+    ByteBuffer[] batch = connection.gather;
+    while (true) {
+      int count = 0;
+      for (ByteBuffer buffer : connection.writes) {
+        if (count == MAX_GATHER) {
+          break;
+        }
+        batch[count++] = buffer;
+      }
+      if (count == 0) {
+        break;
+      }
+      long written = connection.channel.write( batch, 0, count );
+      connection.writeBacklog.addAndGet( -written );
+      while (!connection.writes.isEmpty() && !connection.writes.peek().hasRemaining()) {
+        connection.output.release( connection.writes.poll() );
+      }
+      boolean socketFull = batch[count - 1].hasRemaining();
+      Arrays.fill( batch, 0, count, null );
+      if (socketFull) {
+        break;
+      }
+    }
+    int ops = connection.key.interestOps();
+    connection.key.interestOps( connection.writes.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE );
+    updateReadInterest( connection );
+    closeIfDone( connection );
+  }
+
+  /*
+   * Stops reading a connection whose session asked to be closed, drops the requests it still had queued and
+   * closes it once its responses have been written
+   */
+  private void quit(Connection connection) {
+    if (connection.closed) {
+      return;
+    }
+    connection.inputClosed = true;
+    connection.pendingCount.addAndGet( -connection.pending.size() );
+    connection.pending.clear();
+    connection.key.interestOps( connection.key.interestOps() & ~SelectionKey.OP_READ );
+    closeIfDone( connection );
+  }
+
+  /*
+   * Closes a connection whose client has shut down its output once every queued response has been written
+   */
+  private void closeIfDone(Connection connection) {
+    if (connection.inputClosed && connection.pending.isEmpty() && !connection.draining.get() && connection.writes.isEmpty()) {
+      closeConnection( connection );
+    }
+  }
+
+  /*
+   * Stops reading a connection that has too much work or output queued and resumes once it has caught up
+   */
+  private void updateReadInterest(Connection connection) {
+    if (connection.closed || connection.inputClosed || !connection.key.isValid()) {
+      return;
+    }
+    boolean backlogged = connection.pendingCount.get() >= MAX_PENDING_REQUESTS
+        || connection.writeBacklog.get() >= MAX_WRITE_BACKLOG;
+    int ops = connection.key.interestOps();
+    if (backlogged && (ops & SelectionKey.OP_READ) != 0) {
+      connection.key.interestOps( ops & ~SelectionKey.OP_READ );
+      connection.readPaused = true;
+    } else if (!backlogged && connection.readPaused) {
+      connection.key.interestOps( ops | SelectionKey.OP_READ );
+      connection.readPaused = false;
+    }
+  }
+
+  private void closeConnection(Connection connection) {
+    if (connection.closed) {
+      return;
+    }
+    connection.closed = true;
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      //already gone
+    }
+    connectionCount.decrementAndGet();
+  }
+
+  private final class Connection {
+    final SocketChannel channel;
+    final ProtocolSession<T> session;
+    SelectionKey key;
+
+    //owned by the I/O thread
+    final ByteBuffer baseReadBuffer = ByteBuffer.allocateDirect( READ_BUFFER_BYTES );
+    //the base buffer, or a larger one while a request that does not fit it is received
+    ByteBuffer readBuffer = baseReadBuffer;
+    final List<T> decoded = new ArrayList<>();
+    final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    boolean readPaused;
+    //set by the I/O thread and read by the worker that finishes draining the connection
+    volatile boolean inputClosed;
+
+    final Queue<T> pending = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pendingCount = new AtomicInteger();
+    final AtomicBoolean draining = new AtomicBoolean();
+    //written by the worker draining the connection
+    final ResponseOutput output = new ResponseOutput( MAX_POOLED_CHUNKS );
+    final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+    final AtomicLong writeBacklog = new AtomicLong();
+    volatile boolean closed;
+    //set by the drain that executed a request closing the connection
+    volatile boolean quitting;
+
+    Connection(SocketChannel channel, ProtocolSession<T> session) {
+      this.channel = channel;
+      this.session = session;
+    }
+  }
+
+}
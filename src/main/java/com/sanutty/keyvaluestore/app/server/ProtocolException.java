@@ -0,0 +1,17 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.io.IOException;
+
+/**
+ * Thrown while decoding when a client sends bytes that can not be framed. The connection is closed, since the
+ * start of the next request can no longer be found.
+ */
+public class ProtocolException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  public ProtocolException(String message) {
+    super( message );
+  }
+
+}
@@ -0,0 +1,37 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The wire protocol of one client connection of an NioServer. A session is created per connection, so it may keep
+ * per connection state such as a transaction being queued.
+ * @param <T> a decoded request
+ */
+public interface ProtocolSession<T>
+{
+  /**
+   * Decodes every complete request between the position and the limit of the buffer and advances the position
+   * past them. An incomplete request at the end is left in the buffer and decoded once more bytes arrived.
+   * Called on the I/O thread, so it must not block.
+   * @param in bytes received from the client
+   * @param requests receives the decoded requests in order
+   * @throws ProtocolException if the bytes can not be framed
+   */
+  public void decode(ByteBuffer in, List<T> requests) throws ProtocolException;
+
+  /**
+   * Executes one request and encodes its response. Called on a worker thread, one request of the connection at
+   * a time and in the order they were decoded, so pipelined responses go out in request order.
+   * @param request a request produced by decode
+   * @param out the connection's output, which receives the response
+   */
+  public void execute(T request, ResponseOutput out);
+
+  /**
+   * @return true once a request asked for the connection to be closed. The connection is closed after the
+   * responses of the requests executed so far have been written, and no further requests are executed.
+   */
+  public boolean isClosing();
+
+}
@@ -0,0 +1,65 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Serves the Redis protocol (see RespProtocolSession) so Redis clients and benchmarking tools can be pointed at the
+ * store. It shares the NioServer event loop with the binary protocol and goes through the same
+ * KeyValueStoreService as the REST controller. Enabled with protocol.resp.enabled=true.
+ */
+@Component
+@ConditionalOnProperty(name = "protocol.resp.enabled", havingValue = "true")
+public class RespProtocolServer
+{
+  @Value("${protocol.resp.port:6380}")
+  private int port;
+
+  /**
+   * Threads executing requests, 0 for one per core
+   */
+  @Value("${protocol.resp.worker-threads:0}")
+  private int workerThreads;
+
+  /**
+   * Largest command a client may send, like proto-max-bulk-len in Redis
+   */
+  @Value("${protocol.resp.max-request-bytes:16777216}")
+  private int maxRequestBytes;
+
+  @Autowired
+  private KeyValueStoreService keyValueStoreService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private NioServer<List<byte[]>> server;
+
+  @PostConstruct
+  public void start() throws IOException {
+    int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+    server = new NioServer<>( "resp", port, threads, maxRequestBytes,
+        () -> new RespProtocolSession( keyValueStoreService, maxRequestBytes ) );
+    server.start();
+    meterRegistry.gauge( "keyvaluestore.resp.connections", server, NioServer::getConnectionCount );
+    meterRegistry.more().counter( "keyvaluestore.resp.requests", Tags.empty(), server, NioServer::getRequestCount );
+  }
+
+  @PreDestroy
+  public void close() {
+    server.close();
+  }
+
+}
@@ -0,0 +1,518 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+/**
+ * The Redis serialization protocol (RESP2), so Redis clients and tools such as redis-benchmark can talk to the
+ * store. Commands arrive as arrays of bulk strings, or as inline commands typed into telnet.
+ *
+ * Supported: GET, SET key value [EX seconds | PX milliseconds] [NX | XX], DEL, MGET, MSET, EXISTS, MULTI, EXEC,
+ * DISCARD, PING, ECHO, SELECT 0, QUIT, and empty replies to COMMAND and CONFIG GET for client handshakes. QUIT
+ * closes the connection once its reply has been sent; commands pipelined after it are not executed.
+ *
+ * The store only holds JSON, while Redis values are arbitrary strings. SET stores the value as a JSON string
+ * literal and GET returns the content of a string literal, so values round trip exactly through RESP. A JSON
+ * string holds text, so keys and values must be valid UTF-8; binary data is rejected with an error rather than
+ * stored altered. A value saved through REST that is not a string is returned as its JSON text.
+ *
+ * MULTI/EXEC runs the queued GET, SET, DEL, MGET and MSET commands as one composite request, which is all or
+ * nothing: unlike Redis, a GET or DEL of a missing key fails the whole transaction and EXEC replies with an
+ * error. MSET is a composite of saves, so it is atomic as in Redis.
+ */
+class RespProtocolSession implements ProtocolSession<List<byte[]>>
+{
+  private static final int MAX_LINE_BYTES = 64 * 1024;
+
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] OK = "+OK\r\n".getBytes( StandardCharsets.US_ASCII );
+  private static final byte[] QUEUED = "+QUEUED\r\n".getBytes( StandardCharsets.US_ASCII );
+  private static final byte[] PONG = "+PONG\r\n".getBytes( StandardCharsets.US_ASCII );
+  private static final byte[] NIL = "$-1\r\n".getBytes( StandardCharsets.US_ASCII );
+  private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes( StandardCharsets.US_ASCII );
+
+  private final KeyValueStoreService service;
+  private final int maxRequestBytes;
+
+  //commands queued since MULTI, null outside a transaction. Only touched by execute.
+  private List<List<byte[]>> transaction;
+  private boolean transactionFailed;
+  private volatile boolean closing;
+
+  RespProtocolSession(KeyValueStoreService service, int maxRequestBytes) {
+    this.service = service;
+    this.maxRequestBytes = maxRequestBytes;
+  }
+
+  @Override
+  public void decode(ByteBuffer in, List<List<byte[]>> requests) throws ProtocolException {
+    while (in.hasRemaining()) {
+      int start = in.position();
+      List<byte[]> command = in.get( start ) == '*' ? readArray( in ) : readInline( in );
+      if (command == null) {
+        in.position( start );
+        return;
+      }
+      if (!command.isEmpty()) {
+        requests.add( command );
+      }
+    }
+  }
+
+  private List<byte[]> readArray(ByteBuffer in) throws ProtocolException {
+    String header = readLine( in );
+    if (header == null) {
+      return null;
+    }
+    int count = parseLength( header.substring( 1 ) );
+    List<byte[]> command = new ArrayList<>( Math.max( 0, Math.min( count, 1024 ) ) );
+    for (int i = 0; i < count; i++) {
+      String bulkHeader = readLine( in );
+      if (bulkHeader == null) {
+        return null;
+      }
+      if (bulkHeader.isEmpty() || bulkHeader.charAt( 0 ) != '$') {
+        throw new ProtocolException( "Expected '$', got '" + bulkHeader + "'" );
+      }
+      int length = parseLength( bulkHeader.substring( 1 ) );
+      if (length < 0 || length > maxRequestBytes) {
+        throw new ProtocolException( "Invalid bulk length " + length );
+      }
+      if (in.remaining() < length + 2) {
+        return null;
+      }
+      byte[] arg = new byte[length];
+      in.get( arg );
+      if (in.get() != '\r' || in.get() != '\n') {
+        throw new ProtocolException( "Bulk string not terminated by CRLF" );
+      }
+      command.add( arg );
+    }
+    return command;
+  }
+
+  private List<byte[]> readInline(ByteBuffer in) throws ProtocolException {
+    String line = readLine( in );
+    if (line == null) {
+      return null;
+    }
+    List<byte[]> command = new ArrayList<>();
+    for (String arg : line.trim().split( "\\s+" )) {
+      if (!arg.isEmpty()) {
+        command.add( arg.getBytes( StandardCharsets.UTF_8 ) );
+      }
+    }
+    return command;
+  }
+
+  /*
+   * Reads up to the next CRLF and moves past it, or returns null if the line is not complete yet
+   */
+  private static String readLine(ByteBuffer in) throws ProtocolException {
+    int start = in.position();
+    int limit = Math.min( in.limit(), start + MAX_LINE_BYTES );
+    for (int i = start; i < limit - 1; i++) {
+      if (in.get( i ) == '\r' && in.get( i + 1 ) == '\n') {
+        byte[] line = new byte[i - start];
+        in.get( line );
+        in.position( i + 2 );
+        return new String( line, StandardCharsets.UTF_8 );
+      }
+    }
+    if (limit - start >= MAX_LINE_BYTES) {
+      throw new ProtocolException( "Line longer than " + MAX_LINE_BYTES + " bytes" );
+    }
+    return null;
+  }
+
+  private static int parseLength(String text) throws ProtocolException {
+    try {
+      return Integer.parseInt( text );
+    } catch (NumberFormatException e) {
+      throw new ProtocolException( "Invalid length '" + text + "'" );
+    }
+  }
+
+  @Override
+  public void execute(List<byte[]> command, ResponseOutput out) {
+    String name = new String( command.get( 0 ), StandardCharsets.UTF_8 ).toUpperCase( Locale.ROOT );
+    try {
+      if (transaction != null && !name.equals( "EXEC" ) && !name.equals( "DISCARD" ) && !name.equals( "MULTI" )) {
+        queue( name, command, out );
+        return;
+      }
+      switch (name) {
+        case "GET":
+          requireArgs( command, 2, 2 );
+          get( string( command.get( 1 ) ), out );
+          break;
+        case "SET":
+          set( command, out );
+          break;
+        case "DEL":
+          requireArgs( command, 2, Integer.MAX_VALUE );
+          int deleted = 0;
+          for (KeyValueStoreResponse resp : service.multiDelete( keys( command, 1 ) )) {
+            deleted += resp.getStatus() == StatusEnum.OK ? 1 : 0;
+          }
+          integer( deleted, out );
+          break;
+        case "EXISTS":
+          requireArgs( command, 2, Integer.MAX_VALUE );
+          int existing = 0;
+          for (KeyValueStoreResponse resp : service.multiGet( keys( command, 1 ) )) {
+            existing += resp.getStatus() == StatusEnum.OK ? 1 : 0;
+          }
+          integer( existing, out );
+          break;
+        case "MGET":
+          requireArgs( command, 2, Integer.MAX_VALUE );
+          List<KeyValueStoreResponse> values = service.multiGet( keys( command, 1 ) );
+          arrayHeader( values.size(), out );
+          for (KeyValueStoreResponse resp : values) {
+            value( resp, out );
+          }
+          break;
+        case "MSET":
+          if (command.size() < 3 || command.size() % 2 == 0) {
+            throw new RespException( "wrong number of arguments for 'mset' command" );
+          }
+          service.compositeRequest( saves( command ) );
+          out.put( OK );
+          break;
+        case "MULTI":
+          if (transaction != null) {
+            throw new RespException( "MULTI calls can not be nested" );
+          }
+          transaction = new ArrayList<>();
+          transactionFailed = false;
+          out.put( OK );
+          break;
+        case "EXEC":
+          if (transaction == null) {
+            throw new RespException( "EXEC without MULTI" );
+          }
+          exec( out );
+          break;
+        case "DISCARD":
+          if (transaction == null) {
+            throw new RespException( "DISCARD without MULTI" );
+          }
+          transaction = null;
+          out.put( OK );
+          break;
+        case "PING":
+          if (command.size() > 1) {
+            bulk( command.get( 1 ), out );
+          } else {
+            out.put( PONG );
+          }
+          break;
+        case "ECHO":
+          requireArgs( command, 2, 2 );
+          bulk( command.get( 1 ), out );
+          break;
+        case "SELECT":
+          requireArgs( command, 2, 2 );
+          if (!string( command.get( 1 ) ).equals( "0" )) {
+            throw new RespException( "DB index is out of range" );
+          }
+          out.put( OK );
+          break;
+        case "QUIT":
+          closing = true;
+          out.put( OK );
+          break;
+        case "COMMAND":
+        case "CONFIG":
+          out.put( EMPTY_ARRAY );
+          break;
+        default:
+          throw new RespException( "unknown command '" + name.toLowerCase( Locale.ROOT ) + "'" );
+      }
+    } catch (RespException e) {
+      error( e.getMessage(), out );
+    } catch (Exception e) {
+      error( String.valueOf( e.getMessage() ), out );
+    }
+  }
+
+  @Override
+  public boolean isClosing() {
+    return closing;
+  }
+
+  private void get(String key, ResponseOutput out) throws Exception {
+    value( service.search( key ), out );
+  }
+
+  /*
+   * SET key value [EX seconds | PX milliseconds] [NX | XX]. The store keeps times to live in whole seconds, so PX
+   * is rounded up.
+   */
+  private void set(List<byte[]> command, ResponseOutput out) throws Exception {
+    requireArgs( command, 3, 6 );
+    String key = string( command.get( 1 ) );
+    String value = JSONUtilility.toJsonString( string( command.get( 2 ) ) );
+    long ttlSeconds = KeyValueRepository.NO_TTL;
+    boolean nx = false;
+    boolean xx = false;
+    for (int i = 3; i < command.size(); i++) {
+      String option = string( command.get( i ) ).toUpperCase( Locale.ROOT );
+      if ((option.equals( "EX" ) || option.equals( "PX" )) && i + 1 < command.size() && ttlSeconds == KeyValueRepository.NO_TTL) {
+        long amount = parseLong( string( command.get( ++i ) ) );
+        if (amount <= 0) {
+          throw new RespException( "invalid expire time in 'set' command" );
+        }
+        ttlSeconds = option.equals( "EX" ) ? amount : (amount + 999) / 1000;
+      } else if (option.equals( "NX" ) && !xx) {
+        nx = true;
+      } else if (option.equals( "XX" ) && !nx) {
+        xx = true;
+      } else {
+        throw new RespException( "syntax error" );
+      }
+    }
+
+    if (!xx) {
+      KeyValueStoreResponse resp = service.save( key, value, ttlSeconds, nx ? 0 : KeyValueRepository.ANY_VERSION );
+      ok( resp, out );
+      return;
+    }
+    //XX: overwrite only an existing key, retried if another writer changes the key in between
+    while (true) {
+      KeyValueStoreResponse current = service.search( key );
+      if (current.getStatus() != StatusEnum.OK) {
+        out.put( NIL );
+        return;
+      }
+      //a write still buffered by the RDBMS write-behind has no version yet, the key exists so it is overwritten
+      long version = current.getVersion() == null ? KeyValueRepository.ANY_VERSION : current.getVersion();
+      KeyValueStoreResponse resp = service.save( key, value, ttlSeconds, version );
+      if (!resp.isVersionConflict()) {
+        ok( resp, out );
+        return;
+      }
+    }
+  }
+
+  /*
+   * Replies +OK, or nil if a conditional save found the key in the wrong state
+   */
+  private static void ok(KeyValueStoreResponse resp, ResponseOutput out) throws RespException {
+    if (resp.getStatus() == StatusEnum.OK) {
+      out.put( OK );
+    } else if (resp.isVersionConflict()) {
+      out.put( NIL );
+    } else {
+      throw new RespException( resp.getMessage() );
+    }
+  }
+
+  /*
+   * Commands inside MULTI are checked and queued. A command that can not be part of the composite marks the
+   * transaction as failed, and EXEC then discards it, as Redis does for errors while queuing.
+   */
+  private void queue(String name, List<byte[]> command, ResponseOutput out) {
+    String error = null;
+    switch (name) {
+      case "GET":
+        error = command.size() == 2 ? null : "wrong number of arguments for 'get' command";
+        break;
+      case "SET":
+        error = command.size() == 3 ? null : "only SET key value is supported inside MULTI";
+        break;
+      case "DEL":
+      case "MGET":
+        error = command.size() >= 2 ? null : "wrong number of arguments for '" + name.toLowerCase( Locale.ROOT ) + "' command";
+        break;
+      case "MSET":
+        error = command.size() >= 3 && command.size() % 2 == 1 ? null : "wrong number of arguments for 'mset' command";
+        break;
+      default:
+        error = "'" + name.toLowerCase( Locale.ROOT ) + "' is not supported inside MULTI";
+        break;
+    }
+    if (error != null) {
+      transactionFailed = true;
+      error( error, out );
+      return;
+    }
+    command.set( 0, name.getBytes( StandardCharsets.US_ASCII ) );
+    transaction.add( command );
+    out.put( QUEUED );
+  }
+
+  private void exec(ResponseOutput out) throws Exception {
+    List<List<byte[]>> commands = transaction;
+    transaction = null;
+    if (transactionFailed) {
+      throw new RespException( "EXECABORT Transaction discarded because of previous errors." );
+    }
+    if (commands.isEmpty()) {
+      out.put( EMPTY_ARRAY );
+      return;
+    }
+
+    List<KeyValueStoreRequest> steps = new ArrayList<>();
+    for (List<byte[]> command : commands) {
+      String name = string( command.get( 0 ) );
+      if (name.equals( "SET" ) || name.equals( "MSET" )) {
+        steps.addAll( saves( command ) );
+      } else {
+        ActionEnum action = name.equals( "DEL" ) ? ActionEnum.Delete : ActionEnum.Search;
+        for (String key : keys( command, 1 )) {
+          KeyValueStoreRequest step = new KeyValueStoreRequest();
+          step.setKey( key );
+          step.setAction( action );
+          steps.add( step );
+        }
+      }
+    }
+    List<KeyValueStoreResponse> results = service.compositeRequest( steps );
+
+    arrayHeader( commands.size(), out );
+    int next = 0;
+    for (List<byte[]> command : commands) {
+      switch (string( command.get( 0 ) )) {
+        case "GET":
+          value( results.get( next++ ), out );
+          break;
+        case "MGET":
+          arrayHeader( command.size() - 1, out );
+          for (int i = 1; i < command.size(); i++) {
+            value( results.get( next++ ), out );
+          }
+          break;
+        case "DEL":
+          integer( command.size() - 1, out );
+          next += command.size() - 1;
+          break;
+        default:
+          //SET and MSET
+          out.put( OK );
+          next += (command.size() - 1) / 2;
+          break;
+      }
+    }
+  }
+
+  /*
+   * The key/value pairs of SET or MSET as composite save steps
+   */
+  private static List<KeyValueStoreRequest> saves(List<byte[]> command) throws IOException, RespException {
+    List<KeyValueStoreRequest> steps = new ArrayList<>( command.size() / 2 );
+    for (int i = 1; i + 1 < command.size(); i += 2) {
+      KeyValueStoreRequest step = new KeyValueStoreRequest();
+      step.setKey( string( command.get( i ) ) );
+      step.setAction( ActionEnum.Save );
+      step.setPayload( JSONUtilility.readTree( JSONUtilility.toJsonString( string( command.get( i + 1 ) ) ).getBytes( StandardCharsets.UTF_8 ) ) );
+      steps.add( step );
+    }
+    return steps;
+  }
+
+  private static List<String> keys(List<byte[]> command, int from) throws RespException {
+    List<String> keys = new ArrayList<>( command.size() - from );
+    for (int i = from; i < command.size(); i++) {
+      keys.add( string( command.get( i ) ) );
+    }
+    return keys;
+  }
+
+  /*
+   * Replies with the stored value as a bulk string, unwrapping JSON string literals, or nil on a miss
+   */
+  private static void value(KeyValueStoreResponse resp, ResponseOutput out) {
+    if (resp.getStatus() != StatusEnum.OK) {
+      out.put( NIL );
+      return;
+    }
+    byte[] raw = resp.getRawResult();
+    if (raw != null && (raw.length == 0 || raw[0] != '"')) {
+      //not a string literal, the stored bytes go out as they are
+      bulk( raw, out );
+      return;
+    }
+    String json = resp.getResult();
+    String text = JSONUtilility.parseJsonString( json );
+    bulk( (text != null ? text : json).getBytes( StandardCharsets.UTF_8 ), out );
+  }
+
+  private static void bulk(byte[] data, ResponseOutput out) {
+    out.put( ascii( "$" + data.length + "\r\n" ) ).put( data ).put( CRLF );
+  }
+
+  private static void integer(long value, ResponseOutput out) {
+    out.put( ascii( ":" + value + "\r\n" ) );
+  }
+
+  private static void arrayHeader(int count, ResponseOutput out) {
+    out.put( ascii( "*" + count + "\r\n" ) );
+  }
+
+  private static void error(String message, ResponseOutput out) {
+    //a message that already carries an error code such as EXECABORT is sent as is
+    String line = message.startsWith( "EXECABORT" ) ? message : "ERR " + message;
+    out.put( ("-" + line.replace( '\r', ' ' ).replace( '\n', ' ' ) + "\r\n").getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes( StandardCharsets.US_ASCII );
+  }
+
+  /*
+   * Decodes an argument, which must be valid UTF-8: a replacement character would change the value for good
+   */
+  private static String string(byte[] arg) throws RespException {
+    try {
+      return StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput( CodingErrorAction.REPORT )
+          .onUnmappableCharacter( CodingErrorAction.REPORT )
+          .decode( ByteBuffer.wrap( arg ) )
+          .toString();
+    } catch (CharacterCodingException e) {
+      throw new RespException( "keys and values must be valid UTF-8, binary data can not be stored as JSON" );
+    }
+  }
+
+  private static long parseLong(String text) throws RespException {
+    try {
+      return Long.parseLong( text );
+    } catch (NumberFormatException e) {
+      throw new RespException( "value is not an integer or out of range" );
+    }
+  }
+
+  private static void requireArgs(List<byte[]> command, int min, int max) throws RespException {
+    if (command.size() < min || command.size() > max) {
+      throw new RespException( "wrong number of arguments for '" + string( command.get( 0 ) ).toLowerCase( Locale.ROOT ) + "' command" );
+    }
+  }
+
+  /*
+   * A command error reported to the client as -ERR
+   */
+  private static final class RespException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    RespException(String message) {
+      super( message );
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where a ProtocolSession encodes its responses: the bytes are put straight into direct buffers, so the socket
+ * writes them without the JDK first copying them out of the heap. Large values are the exception: they are queued
+ * as heap buffers wrapping the repository's array, which saves copying them into chunks but leaves the JDK to copy
+ * them into a temporary direct buffer when they are written. Each connection has its own output, and with it a
+ * small pool of direct chunks. A chunk that has been written to the socket goes back to the pool and is reused
+ * for the next responses, so a busy connection allocates no new buffers.
+ *
+ * One thread at a time puts responses (the worker executing the connection's requests). It hands them to the
+ * I/O thread with drainTo; that seals the current chunk, so a chunk is never changed while it is being written.
+ * The I/O thread gives written buffers back with release.
+ */
+public final class ResponseOutput
+{
+  static final int CHUNK_BYTES = 16 * 1024;
+
+  /**
+   * Values at least this large are queued as heap buffers wrapping the array instead of being copied into chunks
+   */
+  static final int COPY_LIMIT = CHUNK_BYTES / 2;
+
+  private final int maxPooledChunks;
+  private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  //owned by the thread putting responses
+  private final List<ByteBuffer> sealed = new ArrayList<>();
+  private ByteBuffer current;
+  private long pendingBytes;
+
+  /**
+   * @param maxPooledChunks most written chunks kept for reuse; more are left to the garbage collector
+   */
+  ResponseOutput(int maxPooledChunks) {
+    this.maxPooledChunks = maxPooledChunks;
+  }
+
+  public ResponseOutput put(byte value) {
+    room( 1 ).put( value );
+    pendingBytes++;
+    return this;
+  }
+
+  public ResponseOutput putInt(int value) {
+    room( 4 ).putInt( value );
+    pendingBytes += 4;
+    return this;
+  }
+
+  public ResponseOutput putLong(long value) {
+    room( 8 ).putLong( value );
+    pendingBytes += 8;
+    return this;
+  }
+
+  /**
+   * Copies the bytes into the output, or queues a large array as it is. The array must not be changed afterwards.
+   */
+  public ResponseOutput put(byte[] bytes) {
+    if (bytes.length >= COPY_LIMIT) {
+      seal();
+      sealed.add( ByteBuffer.wrap( bytes ) );
+    } else if (bytes.length > 0) {
+      room( bytes.length ).put( bytes );
+    }
+    pendingBytes += bytes.length;
+    return this;
+  }
+
+  /**
+   * @return number of bytes put since the last drainTo
+   */
+  long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Hands everything put so far over for writing, in order
+   * @param writes receives the buffers
+   * @return the number of bytes handed over
+   */
+  long drainTo(Queue<ByteBuffer> writes) {
+    seal();
+    writes.addAll( sealed );
+    sealed.clear();
+    long bytes = pendingBytes;
+    pendingBytes = 0;
+    return bytes;
+  }
+
+  /**
+   * Called once a buffer returned by drainTo has been written completely. A pooled chunk is kept for reuse.
+   */
+  void release(ByteBuffer written) {
+    if (written.isDirect() && written.capacity() == CHUNK_BYTES) {
+      recycle( written );
+    }
+  }
+
+  private void recycle(ByteBuffer chunk) {
+    if (pooled.incrementAndGet() <= maxPooledChunks) {
+      pool.add( chunk.clear() );
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+
+  /*
+   * The current chunk with at least size bytes left, taking a new one if needed
+   */
+  private ByteBuffer room(int size) {
+    if (current != null && current.remaining() >= size) {
+      return current;
+    }
+    //always fits a new chunk: arrays of COPY_LIMIT bytes or more are not copied
+    seal();
+    current = pool.poll();
+    if (current != null) {
+      pooled.decrementAndGet();
+    } else {
+      current = ByteBuffer.allocateDirect( CHUNK_BYTES );
+    }
+    return current;
+  }
+
+  /*
+   * Queues the current chunk. It is not written to afterwards and goes back to the pool once it has been written
+   * to the socket.
+   */
+  private void seal() {
+    if (current == null) {
+      return;
+    }
+    if (current.position() > 0) {
+      sealed.add( current.flip() );
+    } else {
+      recycle( current );
+    }
+    current = null;
+  }
+
+}
@@ -1,54 +1,174 @@
 package com.sanutty.keyvaluestore.app.services;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
 import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
 import com.sanutty.keyvaluestore.app.util.JSONUtilility;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+
 @Service
 public class KeyValueStoreService
 {
+  private static final Log log = LogFactory.getLog( KeyValueStoreService.class );
+  
   @Autowired
   private KeyValueRepository repository;
   
+  @Autowired
+  private SecondaryIndexService secondaryIndexes;
+  
+  @Autowired
+  private MeterRegistry meterRegistry;
+  
+  /**
+   * With single flight, concurrent searches for the same key share one repository read. Off by default: it pays
+   * off in front of the database, while an in-memory lookup is cheaper than the shared future.
+   */
+  @Value("${service.single-flight.enabled:false}")
+  private boolean singleFlight;
+  
+  /**
+   * The repository read in progress for each key. The searching thread that puts the future in completes it;
+   * searches that find one wait for it instead of reading the key again.
+   */
+  private final Map<String, CompletableFuture<KeyValueStoreResponse>> searchesInFlight = new ConcurrentHashMap<>();
+  
+  private final LongAdder coalescedSearches = new LongAdder();
+  
+  @PostConstruct
+  public void init() {
+    meterRegistry.more().counter( "keyvaluestore.search.coalesced", Tags.empty(), coalescedSearches, LongAdder::sum );
+  }
+  
   /**
+   * While a search for the key is already reading the repository, waits for it and returns the same response
+   * instead of issuing another read. The shared response must not be modified.
    * @param key
-   * @return KeyValueStoreResponse with result, if any
-   * @throws Exception
+   * @return KeyValueStoreResponse with result, or with status Error and message MSG_KEY_NOT_FOUND on a miss
+   * @throws Exception the exception of the read, also thrown to the searches that waited for it
    */
   public KeyValueStoreResponse search(String key) throws Exception {
-    KeyValueStoreResponse resp = null;
-    
+    if (!singleFlight) {
+      return repository.search( key, null, true );
+    }
+    CompletableFuture<KeyValueStoreResponse> flight = new CompletableFuture<>();
+    CompletableFuture<KeyValueStoreResponse> leader = searchesInFlight.putIfAbsent( key, flight );
+    if (leader != null) {
+      coalescedSearches.increment();
+      try {
+        return leader.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw (Exception) cause;
+      }
+    }
     try {
-      resp = repository.search( key, null, true );
+      KeyValueStoreResponse resp = repository.search( key, null, true );
+      flight.complete( resp );
+      return resp;
+    } catch (Throwable t) {
+      flight.completeExceptionally( t );
+      throw t;
+    } finally {
+      searchesInFlight.remove( key, flight );
+    }
+  }
+  
+  /*
+   * Called once a write of the key has returned. A search that started reading before the write may return the
+   * old value, so later searches must not wait for it: they read the key again.
+   */
+  private void endSearchInFlight(String key) {
+    if (singleFlight) {
+      searchesInFlight.remove( key );
+    }
+  }
+  
+  /*
+   * Called once a write of the keys has been applied. A write that was rejected or failed left them as they were,
+   * so it is not passed here. The write is done, so a failure to update the secondary indexes is logged rather
+   * than reported as its failure.
+   */
+  private void written(Collection<String> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    keys.forEach( this::endSearchInFlight );
+    try {
+      secondaryIndexes.reindex( keys );
     } catch (Exception e) {
-      throw e;
+      log.error( "Secondary indexes of " + keys.size() + " written keys could not be updated", e );
     }
-    return resp;
   }
   
   /**
    * @param key
    * @param value
-   * @return KeyValueStoreResponse indicating save status
+   * @return KeyValueStoreResponse indicating save status, with message MSG_INVALID_JSON if value is not JSON
    * @throws Exception
    */
   public KeyValueStoreResponse save(String key, String value) throws Exception {
+    return save( key, value, KeyValueRepository.NO_TTL );
+  }
+  
+  /**
+   * @param key
+   * @param value
+   * @param ttlSeconds time to live of the key in seconds, KeyValueRepository.NO_TTL to keep it until deleted
+   * @return KeyValueStoreResponse indicating save status, with message MSG_INVALID_JSON if value is not JSON
+   * @throws Exception
+   */
+  public KeyValueStoreResponse save(String key, String value, long ttlSeconds) throws Exception {
+    return save( key, value, ttlSeconds, KeyValueRepository.ANY_VERSION );
+  }
+  
+  /**
+   * Saves the value only if the key is at expectedVersion, checked atomically with the write. A client reads the
+   * key, modifies the value and saves it with the version it read; if another client saved in between the save
+   * fails with MSG_VERSION_CONFLICT and the client can read and retry.
+   * @param key
+   * @param value
+   * @param ttlSeconds time to live of the key in seconds, KeyValueRepository.NO_TTL to keep it until deleted
+   * @param expectedVersion KeyValueRepository.ANY_VERSION for an unconditional save, 0 if the key must not exist
+   * @return KeyValueStoreResponse with the new version, or with message MSG_VERSION_CONFLICT or MSG_INVALID_JSON
+   * @throws Exception
+   */
+  public KeyValueStoreResponse save(String key, String value, long ttlSeconds, long expectedVersion) throws Exception {
     KeyValueStoreResponse resp = null;
     
-    try {
-      if (!JSONUtilility.isJson(value)) {
-        throw new RuntimeException(KeyValueStoreResponse.MSG_INVALID_JSON);
-      }
-      resp = repository.save(key, value, null, true);
-    } catch (Exception e) {
-      throw e;
+    if (!JSONUtilility.isJson(value)) {
+      resp = new KeyValueStoreResponse();
+      resp.setStatus( StatusEnum.Error );
+      resp.setMessage( KeyValueStoreResponse.MSG_INVALID_JSON );
+      return resp;
+    }
+    resp = repository.save(key, value, ttlSeconds, expectedVersion, null, true);
+    if (resp.isOK()) {
+      written( List.of( key ) );
     }
     return resp;
   }
@@ -59,12 +179,10 @@ public class KeyValueStoreService
    * @throws Exception 
    */
   public KeyValueStoreResponse delete(String key) throws Exception {
-    KeyValueStoreResponse resp = null;
-    try {
-      resp = repository.deleteById( key, null, true );
-    } catch (Exception e) {
-      throw e;
-    } 
+    KeyValueStoreResponse resp = repository.deleteById( key, null, true );
+    if (resp.isOK()) {
+      written( List.of( key ) );
+    }
     return resp;
   }
   
@@ -74,12 +192,128 @@ public class KeyValueStoreService
    * @throws Exception
    */
   public List<KeyValueStoreResponse> compositeRequest(List<KeyValueStoreRequest> requests) throws Exception {
-    List<KeyValueStoreResponse> respList = new LinkedList<>();
+    //a composite that returns has committed every step, one that was rolled back throws
+    List<KeyValueStoreResponse> respList = repository.processComposite( requests );
+    List<String> keys = new ArrayList<>( requests.size() );
+    for (KeyValueStoreRequest request : requests) {
+      if (request.getAction() != ActionEnum.Search) {
+        keys.add( request.getKey() );
+      }
+    }
+    written( keys );
     
-    respList = repository.processComposite( requests );
+    return respList;
+  }
+  
+  /**
+   * Looks up several keys in one repository call. Unlike a composite request each key succeeds or misses on its own.
+   * @param keys
+   * @return one KeyValueStoreResponse per key, in the order of keys
+   * @throws Exception
+   */
+  public List<KeyValueStoreResponse> multiGet(List<String> keys) throws Exception {
+    return repository.searchAll( keys );
+  }
+  
+  /**
+   * Saves several values in one repository call. A value that is not JSON is reported with MSG_INVALID_JSON in its
+   * own response and the other values are still saved.
+   * @param entries key to value, in the order the responses are returned
+   * @param ttlSeconds time to live of every key in seconds, KeyValueRepository.NO_TTL to keep them until deleted
+   * @return one KeyValueStoreResponse per key
+   * @throws Exception
+   */
+  public List<KeyValueStoreResponse> multiPut(Map<String, String> entries, long ttlSeconds) throws Exception {
+    Map<String, String> valid = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      if (JSONUtilility.isJson( entry.getValue() )) {
+        valid.put( entry.getKey(), entry.getValue() );
+      }
+    }
+    List<KeyValueStoreResponse> saved = valid.isEmpty() ? List.of() : repository.saveAll( valid, ttlSeconds );
+    written( writtenKeys( saved ) );
+    if (saved.size() == entries.size()) {
+      return saved;
+    }
     
+    List<KeyValueStoreResponse> respList = new ArrayList<>( entries.size() );
+    int next = 0;
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      if (valid.containsKey( entry.getKey() )) {
+        respList.add( saved.get( next++ ) );
+      } else {
+        KeyValueStoreResponse resp = new KeyValueStoreResponse();
+        resp.setKey( entry.getKey() );
+        resp.setAction( ActionEnum.Save );
+        resp.setStatus( StatusEnum.Error );
+        resp.setMessage( KeyValueStoreResponse.MSG_INVALID_JSON );
+        respList.add( resp );
+      }
+    }
     return respList;
   }
   
+  /**
+   * Lists one page of keys in key order, either those starting with prefix or those between from and to.
+   * @param prefix keys starting with it, null to scan by range
+   * @param from lowest key, inclusive, null for no lower bound. Not allowed with prefix.
+   * @param to highest key, exclusive, null for no upper bound. Not allowed with prefix.
+   * @param cursor the last key of the previous page, null for the first page
+   * @param limit most keys returned
+   * @return the keys of the page with their values. Fewer than limit means the scan is complete.
+   * @throws Exception
+   */
+  public List<KeyValueStoreResponse> scan(String prefix, String from, String to, String cursor, int limit) throws Exception {
+    if (limit <= 0) {
+      throw new IllegalArgumentException( "limit must be positive" );
+    }
+    if (prefix != null) {
+      if (from != null || to != null) {
+        throw new IllegalArgumentException( "prefix can not be combined with from or to" );
+      }
+      from = prefix;
+      to = prefixEnd( prefix );
+    }
+    return repository.scan( from, to, cursor, limit );
+  }
+  
+  /*
+   * The smallest key greater than every key starting with prefix, null if there is none
+   */
+  private static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt( end - 1 ) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring( 0, end - 1 ) + (char) (prefix.charAt( end - 1 ) + 1);
+  }
+  
+  /**
+   * Deletes several keys in one repository call. A missing key is reported with MSG_KEY_NOT_FOUND in its own response.
+   * @param keys
+   * @return one KeyValueStoreResponse per key, in the order of keys
+   * @throws Exception
+   */
+  public List<KeyValueStoreResponse> multiDelete(List<String> keys) throws Exception {
+    List<KeyValueStoreResponse> deleted = repository.deleteAll( keys );
+    written( writtenKeys( deleted ) );
+    return deleted;
+  }
+  
+  /*
+   * The keys of the responses that report a write, in order
+   */
+  private static List<String> writtenKeys(List<KeyValueStoreResponse> responses) {
+    List<String> keys = new ArrayList<>( responses.size() );
+    for (KeyValueStoreResponse resp : responses) {
+      if (resp.isOK()) {
+        keys.add( resp.getKey() );
+      }
+    }
+    return keys;
+  }
   
 }
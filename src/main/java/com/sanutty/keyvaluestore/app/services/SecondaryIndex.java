@@ -0,0 +1,151 @@
+package com.sanutty.keyvaluestore.app.services;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The keys of the stored values by the scalar found at one JSON path, e.g. $.status or $.owner.id. A path is
+ * a $ followed by .field and [index] steps. Strings, numbers and booleans are indexed by their text, so the
+ * number 5 and the string "5" are found by the same term; a value without the path, or with null, an object or
+ * an array there, is not indexed.
+ *
+ * The index does not read the store itself. It is told the current value of a key through update, and callers
+ * make sure that updates of the same key are not applied concurrently.
+ */
+class SecondaryIndex
+{
+  private final String path;
+  private final JsonPointer pointer;
+
+  /**
+   * Term to the keys whose value has it, in key order so a query can be paged with a cursor
+   */
+  private final Map<String, NavigableSet<String>> keysByTerm = new ConcurrentHashMap<>();
+
+  /**
+   * Key to the term it is indexed under, to find the entry to remove when the value changes
+   */
+  private final Map<String, String> termByKey = new ConcurrentHashMap<>();
+
+  //set once every key stored before the index was declared has been indexed
+  private volatile boolean ready;
+
+  /**
+   * @param path JSON path of the indexed field
+   * @throws IllegalArgumentException if path is not a $ followed by .field and [index] steps
+   */
+  SecondaryIndex(String path) {
+    this.path = path;
+    this.pointer = JsonPointer.compile( toPointer( path ) );
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+
+  void setReady() {
+    ready = true;
+  }
+
+  /**
+   * @return number of keys indexed
+   */
+  int size() {
+    return termByKey.size();
+  }
+
+  /**
+   * @param value the parsed value
+   * @return the term the value is indexed under, null if it is not indexed
+   */
+  String termOf(JsonNode value) {
+    JsonNode node = value.at( pointer );
+    return node.isValueNode() && !node.isNull() ? node.asText() : null;
+  }
+
+  /**
+   * Indexes the key under the term of its current value
+   * @param key
+   * @param value the current value, null if the key does not exist
+   */
+  void update(String key, JsonNode value) {
+    String term = value == null ? null : termOf( value );
+    String old = term == null ? termByKey.remove( key ) : termByKey.put( key, term );
+    if (old != null && !old.equals( term )) {
+      //the set is dropped with its last key, in the same compute a concurrent add of another key would wait for
+      keysByTerm.computeIfPresent( old, (t, keys) -> {
+        keys.remove( key );
+        return keys.isEmpty() ? null : keys;
+      } );
+    }
+    if (term != null && !term.equals( old )) {
+      keysByTerm.compute( term, (t, keys) -> {
+        NavigableSet<String> set = keys == null ? new ConcurrentSkipListSet<>() : keys;
+        set.add( key );
+        return set;
+      } );
+    }
+  }
+
+  /**
+   * @param term
+   * @param after cursor, the last key of the previous page, null for the first page
+   * @return the keys indexed under term after the cursor, in key order. A weakly consistent view.
+   */
+  NavigableSet<String> keysOf(String term, String after) {
+    NavigableSet<String> keys = keysByTerm.get( term );
+    if (keys == null) {
+      return new ConcurrentSkipListSet<>();
+    }
+    return after == null ? keys : keys.tailSet( after, false );
+  }
+
+  /*
+   * Translates $.owner.id or $.items[0].sku to the JSON pointer /owner/id or /items/0/sku
+   */
+  private static String toPointer(String path) {
+    if (path == null || !path.startsWith( "$" )) {
+      throw new IllegalArgumentException( "A JSON path starts with $: " + path );
+    }
+    StringBuilder pointer = new StringBuilder();
+    int i = 1;
+    while (i < path.length()) {
+      char c = path.charAt( i );
+      int end;
+      if (c == '.') {
+        end = i + 1;
+        while (end < path.length() && path.charAt( end ) != '.' && path.charAt( end ) != '[') {
+          end++;
+        }
+        if (end == i + 1) {
+          throw new IllegalArgumentException( "Empty field name in JSON path " + path );
+        }
+        pointer.append( '/' ).append( path.substring( i + 1, end ).replace( "~", "~0" ).replace( "/", "~1" ) );
+        i = end;
+      } else if (c == '[') {
+        end = path.indexOf( ']', i );
+        String index = end < 0 ? "" : path.substring( i + 1, end );
+        if (index.isEmpty() || !index.chars().allMatch( Character::isDigit )) {
+          throw new IllegalArgumentException( "Array steps of a JSON path are [<index>]: " + path );
+        }
+        pointer.append( '/' ).append( index );
+        i = end + 1;
+      } else {
+        throw new IllegalArgumentException( "Unexpected '" + c + "' in JSON path " + path );
+      }
+    }
+    if (pointer.length() == 0) {
+      throw new IllegalArgumentException( "The whole value can not be indexed, name a field: " + path );
+    }
+    return pointer.toString();
+  }
+}
@@ -0,0 +1,274 @@
+package com.sanutty.keyvaluestore.app.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Secondary indexes on JSON paths of the stored values, kept in memory on this node. The KeyValueStoreService
+ * calls reindex with the keys written by every save, delete, bulk request and committed composite once it has
+ * returned; the index then reads the keys back from the repository and indexes what is actually stored.
+ *
+ * Two reindexes of a key may read it in one order and apply it in the other. Like the near cache, each reindex
+ * bumps an invalidation stamp of the key's stripe before it reads, and only applies a value if the stamp is
+ * unchanged when it holds the stripe lock. A key whose stamp changed is read again while the lock is held. The
+ * last value applied was therefore read after the last write of the key had returned.
+ *
+ * Keys that expire, are evicted or are written by another node are not reindexed when that happens. A query
+ * reads the keys it found back and skips, and reindexes, those whose value no longer matches, so it never
+ * returns such a key, but it can miss a key written by another node.
+ */
+@Service
+public class SecondaryIndexService
+{
+  private static final Log log = LogFactory.getLog( SecondaryIndexService.class );
+
+  private static final int STRIPES = 1024;
+
+  /**
+   * Keys read from the repository at a time while an index is built
+   */
+  private static final int BUILD_CHUNK = 1000;
+
+  @Autowired
+  private KeyValueRepository repository;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  /**
+   * Paths indexed from startup, e.g. $.status,$.owner.id
+   */
+  @Value("${service.index.paths:}")
+  private String[] indexPaths;
+
+  private final Map<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+
+  private final AtomicLongArray invalidations = new AtomicLongArray( STRIPES );
+
+  private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+  public SecondaryIndexService() {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Builds the configured indexes in the background, so startup does not wait for the store to be read and a
+   * MemStore recovering from disk is not waited for either. Queries on an index fail until it is built.
+   */
+  @PostConstruct
+  public void init() {
+    List<SecondaryIndex> configured = new ArrayList<>();
+    for (String path : indexPaths) {
+      if (!path.isBlank()) {
+        configured.add( register( path.trim() ) );
+      }
+    }
+    if (configured.isEmpty()) {
+      return;
+    }
+    Thread builder = new Thread( () -> {
+      for (SecondaryIndex index : configured) {
+        try {
+          build( index );
+        } catch (Exception e) {
+          log.error( "Building the index on " + index.getPath() + " failed", e );
+        }
+      }
+    }, "secondary-index-build" );
+    builder.setDaemon( true );
+    builder.start();
+  }
+
+  /**
+   * Declares an index on the path and indexes the values already stored, reading them with repository scans.
+   * Writes made while it is built are indexed as well. Declaring an existing index returns once it is built.
+   * @param path JSON path such as $.status or $.owner.id
+   * @return number of keys indexed when the build finished
+   * @throws IllegalArgumentException if the path is not valid
+   * @throws Exception if the repository could not be read
+   */
+  public int declare(String path) throws Exception {
+    SecondaryIndex index = register( path );
+    if (!index.isReady()) {
+      build( index );
+    }
+    return index.size();
+  }
+
+  /**
+   * @return the declared paths
+   */
+  public List<String> getPaths() {
+    return new ArrayList<>( indexes.keySet() );
+  }
+
+  /**
+   * Brings the indexes up to date with the stored values of the keys. Called after every write of the keys.
+   * @param keys the keys written
+   * @throws Exception if the keys could not be read back. The index keeps what it had for them.
+   */
+  public void reindex(Collection<String> keys) throws Exception {
+    if (indexes.isEmpty() || keys.isEmpty()) {
+      return;
+    }
+    List<String> pending = new ArrayList<>( keys );
+    //all stripes are bumped before any stamp is taken, so keys of the same stripe do not invalidate each other
+    for (String key : pending) {
+      invalidations.incrementAndGet( stripe( key ) );
+    }
+    long[] stamps = new long[pending.size()];
+    for (int i = 0; i < pending.size(); i++) {
+      stamps[i] = invalidations.get( stripe( pending.get( i ) ) );
+    }
+    List<KeyValueStoreResponse> stored = repository.searchAll( pending );
+    for (int i = 0; i < pending.size(); i++) {
+      String key = pending.get( i );
+      int stripe = stripe( key );
+      locks[stripe].lock();
+      try {
+        if (invalidations.get( stripe ) == stamps[i]) {
+          apply( key, stored.get( i ) );
+        } else {
+          //another reindex in the stripe started after this read and the value may be older than the one it
+          //read; reading it again under the lock can not be overtaken
+          invalidations.incrementAndGet( stripe );
+          apply( key, repository.search( key, null, true ) );
+        }
+      } finally {
+        locks[stripe].unlock();
+      }
+    }
+  }
+  
+  private void apply(String key, KeyValueStoreResponse stored) {
+    JsonNode value = parse( stored );
+    for (SecondaryIndex index : indexes.values()) {
+      index.update( key, value );
+    }
+  }
+
+  /**
+   * Looks keys up by the value at an indexed path. The keys found are read back from the repository, and those
+   * whose value no longer has the term are skipped and reindexed.
+   * @param path a declared path
+   * @param term the value at the path, as text
+   * @param cursor the last key of the previous page, null for the first page
+   * @param limit most keys returned
+   * @return the matching keys with their values, in key order. Fewer than limit means there are no more.
+   * @throws IllegalArgumentException if no index is declared on the path or limit is not positive
+   * @throws IllegalStateException if the index is still being built
+   * @throws Exception if the repository could not be read
+   */
+  public List<KeyValueStoreResponse> query(String path, String term, String cursor, int limit) throws Exception {
+    if (limit <= 0) {
+      throw new IllegalArgumentException( "limit must be positive" );
+    }
+    SecondaryIndex index = indexes.get( path );
+    if (index == null) {
+      throw new IllegalArgumentException( "No index on " + path );
+    }
+    if (!index.isReady()) {
+      throw new IllegalStateException( "The index on " + path + " is still being built" );
+    }
+    List<KeyValueStoreResponse> matches = new ArrayList<>( Math.min( limit, BUILD_CHUNK ) );
+    Iterator<String> keys = index.keysOf( term, cursor ).iterator();
+    while (matches.size() < limit && keys.hasNext()) {
+      List<String> candidates = new ArrayList<>();
+      while (candidates.size() < limit - matches.size() && keys.hasNext()) {
+        candidates.add( keys.next() );
+      }
+      List<KeyValueStoreResponse> stored = repository.searchAll( candidates );
+      List<String> stale = new ArrayList<>();
+      for (int i = 0; i < candidates.size(); i++) {
+        KeyValueStoreResponse resp = stored.get( i );
+        JsonNode value = parse( resp );
+        if (value != null && term.equals( index.termOf( value ) )) {
+          matches.add( resp );
+        } else {
+          stale.add( candidates.get( i ) );
+        }
+      }
+      reindex( stale );
+    }
+    return matches;
+  }
+
+  /*
+   * Returns the index on the path, adding it if it is not declared yet
+   */
+  private SecondaryIndex register(String path) {
+    return indexes.computeIfAbsent( path, SecondaryIndex::new );
+  }
+
+  /*
+   * Indexes every stored key. The index is registered first, so a key written during the build is reindexed by
+   * its write even if the scan has already passed it. An index that can not be built is dropped again.
+   */
+  private void build(SecondaryIndex index) throws Exception {
+    long start = System.currentTimeMillis();
+    try {
+      String after = null;
+      List<KeyValueStoreResponse> page;
+      do {
+        page = repository.scan( null, null, after, BUILD_CHUNK );
+        List<String> keys = new ArrayList<>( page.size() );
+        for (KeyValueStoreResponse resp : page) {
+          keys.add( resp.getKey() );
+        }
+        reindex( keys );
+        after = keys.isEmpty() ? after : keys.get( keys.size() - 1 );
+      } while (page.size() == BUILD_CHUNK);
+    } catch (Exception e) {
+      indexes.remove( index.getPath(), index );
+      throw e;
+    }
+    index.setReady();
+    meterRegistry.gauge( "keyvaluestore.index.keys", Tags.of( "path", index.getPath() ), index, SecondaryIndex::size );
+    log.info( "Index on " + index.getPath() + " built with " + index.size() + " keys in " + (System.currentTimeMillis() - start) + " ms" );
+  }
+
+  /*
+   * Returns the parsed value of a search response, null for a miss or a value that is not JSON
+   */
+  private static JsonNode parse(KeyValueStoreResponse resp) {
+    if (!resp.isOK()) {
+      return null;
+    }
+    byte[] bytes = resp.getRawResult() != null ? resp.getRawResult() : resp.getResult().getBytes( StandardCharsets.UTF_8 );
+    try {
+      return JSONUtilility.readTree( bytes );
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static int stripe(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (STRIPES - 1);
+  }
+}
@@ -1,38 +1,290 @@
 package com.sanutty.keyvaluestore.app.util;
 
-import org.apache.commons.text.StringEscapeUtils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
-import com.google.gson.JsonElement;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
 
 public class JSONUtilility
 {
+    /**
+     * Gson instances are immutable and thread safe, so a single instance is shared by all requests. It is only
+     * used to escape string fields, the response object itself is written field by field.
+     */
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Jackson binds streamed request bodies, the same library Spring uses to bind @RequestBody parameters, and
+     * like Spring's mapper it ignores fields the bound class does not declare. Like GSON it is thread safe once
+     * configured.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false );
+
+    /**
+     * Renders the exposed fields of a KeyValueStoreResponse (status, result, version and mesg) as a JSON string.
+     * The stored value is embedded in the result field as is, without an escape and unescape pass.
+     */
     public static String convertToJSON(KeyValueStoreResponse input) {
-      Gson gson = new GsonBuilder()
-          .excludeFieldsWithoutExposeAnnotation()
-          .create();
-      if (input.getResult() != null ) {
-        String escapedJson =  gson.toJson( input );
-        
-        return StringEscapeUtils.unescapeJson(escapedJson);
-      } else {
-        return gson.toJson( input );
+      StringBuilder buf = new StringBuilder();
+      try {
+        writeJSON( input, buf );
+      } catch (IOException e) {
+        //StringBuilder does not throw
+        throw new IllegalStateException(e);
+      }
+      return buf.toString();
+    }
+
+    /**
+     * Streams a KeyValueStoreResponse as UTF-8 JSON to the given output stream, typically the servlet output stream.
+     * @param input the response to render
+     * @param out the stream to write to. The stream is flushed but not closed.
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeJSON(KeyValueStoreResponse input, OutputStream out) throws IOException {
+      Writer writer = new OutputStreamWriter( out, StandardCharsets.UTF_8 );
+      writeObject( input, false, writer, out );
+      writer.flush();
+    }
+
+    /**
+     * Streams responses as newline delimited JSON, one object per line, and flushes the stream so the client
+     * receives them before the next batch is produced. Each line carries the key and action along with the fields
+     * written by writeJSON: {"key":...,"action":"Search","status":"OK",...}
+     * @param responses the responses to write, in request order
+     * @param out the stream to write to. The stream is flushed but not closed.
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeNDJSON(List<KeyValueStoreResponse> responses, OutputStream out) throws IOException {
+      Writer writer = new OutputStreamWriter( out, StandardCharsets.UTF_8 );
+      for (KeyValueStoreResponse response : responses) {
+        writeObject( response, true, writer, out );
+        writer.append( '\n' );
+      }
+      writer.flush();
+    }
+
+    /**
+     * Reads a JSON array from the stream one element at a time. Only the element being read is held in memory,
+     * not the whole array or a tree of it.
+     * @param in stream holding a JSON array
+     * @param type class each element is bound to
+     * @return iterator over the elements. It throws an unchecked exception on malformed input.
+     * @throws IOException if the stream cannot be read
+     */
+    public static <T> Iterator<T> readArray(InputStream in, Class<T> type) throws IOException {
+      return MAPPER.readerFor( type ).readValues( in );
+    }
+
+    /**
+     * Reads the fields of a JSON object from the stream one at a time, with each value rendered back to JSON text.
+     * @param in stream holding a JSON object
+     * @return iterator over the name and value of each field. It throws UncheckedIOException on malformed input.
+     * @throws IOException if the stream cannot be read or does not start with an object
+     */
+    public static Iterator<Map.Entry<String, String>> readObject(InputStream in) throws IOException {
+      JsonParser parser = MAPPER.createParser( in );
+      if (parser.nextToken() != com.fasterxml.jackson.core.JsonToken.START_OBJECT) {
+        throw new IOException( "Expected a JSON object" );
+      }
+      return new Iterator<Map.Entry<String, String>>() {
+        private com.fasterxml.jackson.core.JsonToken token;
+
+        @Override
+        public boolean hasNext() {
+          try {
+            if (token == null) {
+              token = parser.nextToken();
+            }
+            return token == com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+          } catch (IOException e) {
+            throw new UncheckedIOException( e );
+          }
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          try {
+            String name = parser.currentName();
+            parser.nextToken();
+            TreeNode value = parser.readValueAsTree();
+            token = null;
+            return Map.entry( name, value.toString() );
+          } catch (IOException e) {
+            throw new UncheckedIOException( e );
+          }
+        }
+      };
+    }
+
+    /**
+     * Parses a JSON value received as bytes into a tree, as Spring does for a payload received through REST
+     * @param json UTF-8 JSON text
+     * @return the parsed value
+     * @throws IOException if json is not well formed
+     */
+    public static JsonNode readTree(byte[] json) throws IOException {
+      return MAPPER.readTree( json );
+    }
+
+    /*
+     * Writes one response object. A raw result is copied to out without being decoded, so the writer is flushed
+     * before it.
+     */
+    private static void writeObject(KeyValueStoreResponse input, boolean withKey, Writer writer, OutputStream out) throws IOException {
+      byte[] rawResult = input.getRawResult();
+      if (rawResult == null) {
+        writeJSON( input, withKey, writer );
+        return;
       }
       
+      writer.append( '{' );
+      if (withKey) {
+        writeKey( input, writer );
+        writer.append( ',' );
+      }
+      if (input.getStatus() != null) {
+        writer.append( "\"status\":\"" ).append( input.getStatus().name() ).append( "\"," );
+      }
+      writer.append( "\"result\":\"" );
+      writer.flush();
+      out.write( rawResult );
+      writer.append( '"' );
+      if (input.getVersion() != null) {
+        writer.append( ",\"version\":" ).append( input.getVersion().toString() );
+      }
+      if (input.getMessage() != null) {
+        writer.append( ",\"mesg\":" );
+        GSON.toJson( input.getMessage(), writer );
+      }
+      writer.append( '}' );
+    }
+
+    /**
+     * Writes the same output as the GsonBuilder().excludeFieldsWithoutExposeAnnotation() serializer followed by
+     * unescapeJson used to produce: null fields are omitted and the result is embedded raw between quotes.
+     */
+    public static void writeJSON(KeyValueStoreResponse input, Appendable out) throws IOException {
+      writeJSON( input, false, out );
+    }
+
+    private static void writeJSON(KeyValueStoreResponse input, boolean withKey, Appendable out) throws IOException {
+      boolean first = true;
+      out.append( '{' );
+      if (withKey) {
+        writeKey( input, out );
+        first = false;
+      }
+      if (input.getStatus() != null) {
+        out.append( first ? "\"status\":\"" : ",\"status\":\"" ).append( input.getStatus().name() ).append( '"' );
+        first = false;
+      }
+      if (input.getResult() != null) {
+        out.append( first ? "\"result\":\"" : ",\"result\":\"" ).append( input.getResult() ).append( '"' );
+        first = false;
+      }
+      if (input.getVersion() != null) {
+        out.append( first ? "\"version\":" : ",\"version\":" ).append( input.getVersion().toString() );
+        first = false;
+      }
+      if (input.getMessage() != null) {
+        out.append( first ? "\"mesg\":" : ",\"mesg\":" );
+        GSON.toJson( input.getMessage(), out );
+      }
+      out.append( '}' );
+    }
+
+    private static void writeKey(KeyValueStoreResponse input, Appendable out) throws IOException {
+      out.append( "\"key\":" );
+      GSON.toJson( input.getKey(), out );
+      if (input.getAction() != null) {
+        out.append( ",\"action\":\"" ).append( input.getAction().name() ).append( '"' );
+      }
+    }
+
+    /**
+     * Encodes arbitrary text as a JSON string literal, for protocols whose values are not JSON
+     * @param text the text
+     * @return the quoted and escaped JSON string
+     */
+    public static String toJsonString(String text) {
+      return GSON.toJson( text );
+    }
+
+    /**
+     * The inverse of toJsonString
+     * @param json a JSON value
+     * @return the content of json if it is a single JSON string literal, otherwise null
+     */
+    public static String parseJsonString(String json) {
+      if (json.isEmpty() || json.charAt( 0 ) != '"') {
+        return null;
+      }
+      JsonReader reader = new JsonReader( new StringReader( json ) );
+      try {
+        String text = reader.nextString();
+        return reader.peek() == JsonToken.END_DOCUMENT ? text : null;
+      } catch (IOException | IllegalStateException ex) {
+        return null;
+      }
     }
-    
+
+    /**
+     * Validates the JSON syntax of the given string with a streaming reader. The value is skipped token by token,
+     * so no object tree is built for it. It accepts what new Gson().fromJson(Json, Object.class) accepted before:
+     * Gson's lenient syntax, such as unquoted names and strings ({a:1}), single quotes and comments, as well as an
+     * empty document and anything after a top level null.
+     * @param Json string to validate
+     * @return true if the string holds one JSON value in lenient syntax, or nothing
+     */
     public static boolean isJson(String Json) {
+      if (Json == null) {
+        return true;
+      }
+      JsonReader reader = new JsonReader( new StringReader( Json ) );
+      reader.setStrictness( Strictness.LENIENT );
       try {
-        Gson gson = new Gson();
-          gson.fromJson(Json, Object.class);
+        JsonToken first;
+        try {
+          first = reader.peek();
+        } catch (EOFException ex) {
+          //a document without a value
+          return true;
+        }
+        if (first == JsonToken.NULL) {
+          //Gson only checks for trailing content after a value that is not null
           return true;
-      } catch (com.google.gson.JsonSyntaxException ex) {
-          return false;
+        }
+        reader.skipValue();
+        return reader.peek() == JsonToken.END_DOCUMENT;
+      } catch (IOException | IllegalStateException ex) {
+        return false;
       }
     }
-    
+
 
 }
@@ -0,0 +1,145 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicyEnum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CachingKeyValueRepositoryTest
+{
+  private PausingRepository delegate;
+  private CachingKeyValueRepository cache;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    delegate = new MemStoreBuilder().build( new PausingRepository() );
+
+    cache = new CachingKeyValueRepository( delegate );
+    ReflectionTestUtils.setField( cache, "maxEntries", 1000L );
+    ReflectionTestUtils.setField( cache, "evictionPolicy", EvictionPolicyEnum.WTinyLFU );
+    ReflectionTestUtils.setField( cache, "ttlMillis", 60000L );
+    ReflectionTestUtils.setField( cache, "negativeTtlMillis", 60000L );
+    ReflectionTestUtils.setField( cache, "meterRegistry", new SimpleMeterRegistry() );
+    cache.init();
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    delegate.close();
+  }
+
+  @Test
+  public void loadOvertakenByAWriteIsNotCached() throws Exception {
+    cache.save( "k", "1", 0, KeyValueRepository.ANY_VERSION, null, false );
+    //the search reads 1 from the delegate and is held before it caches it
+    delegate.pause = new CountDownLatch( 1 );
+    CompletableFuture<KeyValueStoreResponse> search = CompletableFuture.supplyAsync( () -> {
+      try {
+        return cache.search( "k", null, false );
+      } catch (Exception e) {
+        throw new IllegalStateException( e );
+      }
+    } );
+    assertTrue( delegate.paused.await( 5, TimeUnit.SECONDS ) );
+    cache.save( "k", "2", 0, KeyValueRepository.ANY_VERSION, null, false );
+    delegate.pause.countDown();
+    assertEquals( "1", search.get( 5, TimeUnit.SECONDS ).getResult() );
+
+    delegate.pause = null;
+    assertEquals( "2", resultOf( cache.search( "k", null, false ) ) );
+  }
+
+  @Test
+  public void cachedMissIsInvalidatedBySave() throws Exception {
+    assertFalse( cache.search( "k", null, false ).isOK() );
+    cache.save( "k", "1", 0, KeyValueRepository.ANY_VERSION, null, false );
+    assertEquals( "1", resultOf( cache.search( "k", null, false ) ) );
+    cache.deleteById( "k", null, false );
+    assertFalse( cache.search( "k", null, false ).isOK() );
+  }
+
+  @Test
+  public void cachedValueExpiresWithItsKey() throws Exception {
+    //cached for a minute, but the key expires after a second
+    cache.save( "k", "1", 1, KeyValueRepository.ANY_VERSION, null, false );
+    assertEquals( "1", resultOf( cache.search( "k", null, false ) ) );
+    assertEquals( "1", resultOf( cache.searchAll( List.of( "k" ) ).get( 0 ) ) );
+    Thread.sleep( 1100 );
+    assertFalse( cache.search( "k", null, false ).isOK() );
+  }
+
+  @Test
+  public void readersSeeTheLastWriteOnceWritersStop() throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      boolean writer = t < 2;
+      Thread thread = new Thread( () -> {
+        try {
+          for (int i = 0; i < 5000; i++) {
+            String key = "key" + (i % 10);
+            if (writer) {
+              cache.save( key, String.valueOf( i ), 0, KeyValueRepository.ANY_VERSION, null, false );
+            } else if (i % 2 == 0) {
+              cache.search( key, null, false );
+            } else {
+              cache.searchAll( List.of( key, "key" + ((i + 1) % 10) ) );
+            }
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException( e );
+        }
+      } );
+      threads.add( thread );
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int k = 0; k < 10; k++) {
+      String key = "key" + k;
+      assertEquals( delegate.search( key, null, false ).getResult(), resultOf( cache.search( key, null, false ) ), key );
+    }
+  }
+
+  private static String resultOf(KeyValueStoreResponse resp) {
+    return resp.getRawResult() != null ? new String( resp.getRawResult(), StandardCharsets.UTF_8 ) : resp.getResult();
+  }
+
+  /*
+   * Holds a search after it has read the store until pause is released
+   */
+  private static final class PausingRepository extends MemStoreKeyValueRepository
+  {
+    volatile CountDownLatch pause;
+    final CountDownLatch paused = new CountDownLatch( 1 );
+
+    @Override
+    public KeyValueStoreResponse search( String key, Connection conn, boolean closeConnection ) throws Exception
+    {
+      KeyValueStoreResponse resp = super.search( key, conn, closeConnection );
+      CountDownLatch latch = pause;
+      if (latch != null) {
+        paused.countDown();
+        latch.await();
+      }
+      return resp;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+/**
+ * Compares the single pass undo log composite engine of the MemStore with the PriorityQueue engine it replaced
+ * (LegacyCompositeEngine), for batches of saves over existing keys. With failLast the batch ends with a search of a
+ * missing key, so every save is rolled back. Run with mvn -Pbenchmark verify; see the benchmark profile in the pom.
+ *
+ * The MemStore runs as configured by default apart from a single shard, so a composite runs on one writer thread
+ * as the legacy engine ran on the caller; it pays for version checks, expiry and the isolation the legacy engine
+ * lacked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeBenchmark
+{
+  @Param({ "1", "10", "100", "1000", "10000" })
+  public int batchSize;
+
+  @Param({ "false", "true" })
+  public boolean failLast;
+
+  private MemStoreKeyValueRepository memStore;
+  private LegacyCompositeEngine legacy;
+  private List<KeyValueStoreRequest> requests;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    memStore = new MemStoreBuilder().shards( 1 ).ttlTickMillis( 100 ).build();
+    legacy = new LegacyCompositeEngine();
+
+    requests = new ArrayList<>( batchSize + 1 );
+    for (int i = 0; i < batchSize; i++) {
+      String key = "key" + i;
+      String value = "{\"id\":" + i + ",\"status\":\"open\"}";
+      //the legacy engine restored a missing key by saving null, which the map rejects, so every key exists
+      memStore.save( key, value, KeyValueRepository.NO_TTL, KeyValueRepository.ANY_VERSION, null, false );
+      legacy.put( key, value );
+
+      KeyValueStoreRequest request = new KeyValueStoreRequest();
+      request.setKey( key );
+      request.setAction( ActionEnum.Save );
+      request.setPayload( JSONUtilility.readTree( value.getBytes( StandardCharsets.UTF_8 ) ) );
+      requests.add( request );
+    }
+    if (failLast) {
+      KeyValueStoreRequest missing = new KeyValueStoreRequest();
+      missing.setKey( "missing" );
+      missing.setAction( ActionEnum.Search );
+      requests.add( missing );
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    memStore.close();
+  }
+
+  @Benchmark
+  public void singlePassUndoLog(Blackhole blackhole) {
+    try {
+      blackhole.consume( memStore.processComposite( requests ) );
+    } catch (Exception e) {
+      blackhole.consume( e );
+    }
+  }
+
+  @Benchmark
+  public void legacyPriorityQueue(Blackhole blackhole) {
+    try {
+      blackhole.consume( legacy.processComposite( requests ) );
+    } catch (RuntimeException e) {
+      blackhole.consume( e );
+    }
+  }
+}
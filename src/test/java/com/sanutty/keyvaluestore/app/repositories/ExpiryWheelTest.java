@@ -0,0 +1,82 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ExpiryWheelTest
+{
+  private ExpiryWheel wheel;
+
+  @AfterEach
+  public void tearDown() {
+    wheel.close();
+  }
+
+  @Test
+  public void keysExpireOnceAndNeverEarly() throws Exception {
+    Map<String, Long> expiresAt = new ConcurrentHashMap<>();
+    Map<String, Long> expiredAt = new ConcurrentHashMap<>();
+    Map<String, Integer> calls = new ConcurrentHashMap<>();
+    int count = 500;
+    CountDownLatch done = new CountDownLatch( count );
+    wheel = new ExpiryWheel( "expiry-test", 1, key -> {
+      expiredAt.put( key, System.currentTimeMillis() );
+      calls.merge( key, 1, Integer::sum );
+      done.countDown();
+    } );
+    wheel.start();
+
+    //up to 500 ticks out, so most keys start on level 1 and are moved down to level 0 before they expire
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      String key = "key" + i;
+      expiresAt.put( key, now + i );
+      wheel.schedule( key, now + i );
+    }
+    assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+    Thread.sleep( 50 );
+    for (int i = 0; i < count; i++) {
+      String key = "key" + i;
+      assertTrue( expiredAt.get( key ) >= expiresAt.get( key ), key );
+      assertEquals( Integer.valueOf( 1 ), calls.get( key ), key );
+    }
+  }
+
+  @Test
+  public void keysScheduledBeforeStartWaitForIt() throws Exception {
+    CountDownLatch done = new CountDownLatch( 2 );
+    wheel = new ExpiryWheel( "expiry-test", 5, key -> done.countDown() );
+    wheel.schedule( "past", System.currentTimeMillis() - 1000 );
+    wheel.schedule( "soon", System.currentTimeMillis() + 20 );
+    assertFalse( done.await( 100, TimeUnit.MILLISECONDS ) );
+    assertEquals( 2, done.getCount() );
+
+    wheel.start();
+    assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+  }
+
+  @Test
+  public void failingExpirerDoesNotStopTheWheel() throws Exception {
+    CountDownLatch done = new CountDownLatch( 1 );
+    wheel = new ExpiryWheel( "expiry-test", 1, key -> {
+      if (key.equals( "fails" )) {
+        throw new IllegalStateException( key );
+      }
+      done.countDown();
+    } );
+    wheel.start();
+    long now = System.currentTimeMillis();
+    wheel.schedule( "fails", now + 5 );
+    wheel.schedule( "later", now + 100 );
+    assertTrue( done.await( 5, TimeUnit.SECONDS ) );
+  }
+}
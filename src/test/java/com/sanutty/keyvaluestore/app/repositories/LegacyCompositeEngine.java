@@ -0,0 +1,161 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+
+/**
+ * The composite engine of the MemStoreKeyValueRepository before it was replaced by the single pass undo log of
+ * AbstractMemoryKeyValueRepository, kept as the baseline of CompositeBenchmark. Each step becomes a Transaction
+ * object, saves of existing keys are listed twice, and the list is copied into a PriorityQueue by step order before
+ * it is run and into another, reversed, before it is rolled back. The store is the plain map it ran against.
+ */
+class LegacyCompositeEngine
+{
+  private final Map<String, String> dataMap = new ConcurrentHashMap<>();
+
+  void put(String key, String value) {
+    dataMap.put( key, value );
+  }
+
+  KeyValueStoreResponse search(String key) {
+    String value = dataMap.get( key );
+    if (value == null) {
+      throw new RuntimeException( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+    }
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setStatus( StatusEnum.OK );
+    resp.setAction( ActionEnum.Search );
+    resp.setKey( key );
+    resp.setResult( value );
+    return resp;
+  }
+
+  KeyValueStoreResponse save(String key, String value) {
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    dataMap.put( key, value );
+    resp.setStatus( StatusEnum.OK );
+    resp.setAction( ActionEnum.Save );
+    resp.setKey( key );
+    resp.setOriginalPayload( value );
+    return resp;
+  }
+
+  KeyValueStoreResponse deleteById(String key) {
+    if (dataMap.get( key ) == null) {
+      throw new RuntimeException( KeyValueStoreResponse.MSG_KEY_NOT_FOUND );
+    }
+    dataMap.remove( key );
+    KeyValueStoreResponse resp = new KeyValueStoreResponse();
+    resp.setStatus( StatusEnum.OK );
+    resp.setAction( ActionEnum.Delete );
+    resp.setKey( key );
+    return resp;
+  }
+
+  List<KeyValueStoreResponse> processComposite(List<KeyValueStoreRequest> requests) {
+    List<KeyValueStoreResponse> respList = new LinkedList<>();
+    int sequence = 1;
+    List<Transaction> transactionList = new ArrayList<>();
+
+    for (KeyValueStoreRequest request : requests) {
+      Transaction transaction = new Transaction();
+      transaction.request = request;
+      transaction.transactionOrder = sequence++;
+      transactionList.add( transaction );
+
+      switch (request.getAction()) {
+        case Save:
+          try {
+            transaction.oldValue = search( request.getKey() ).getResult();
+            transactionList.add( transaction );
+          } catch (Exception e) {
+            continue;
+          }
+          break;
+        case Delete:
+          try {
+            transaction.oldValue = search( request.getKey() ).getResult();
+          } catch (Exception e) {
+            continue;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    if (processTransactions( transactionList )) {
+      for (Transaction transaction : transactionList) {
+        respList.add( transaction.response );
+      }
+      return respList;
+    }
+    throw new RuntimeException( "Error processing composite requests" );
+  }
+
+  private boolean processTransactions(List<Transaction> transactionList) {
+    boolean hasExecutionError = false;
+    PriorityQueue<Transaction> orderedTransactionList = new PriorityQueue<>( Comparator.comparingInt( (Transaction t) -> t.transactionOrder ) );
+    orderedTransactionList.addAll( transactionList );
+
+    for (Transaction transaction : orderedTransactionList) {
+      KeyValueStoreRequest request = transaction.request;
+      try {
+        switch (request.getAction()) {
+          case Search:
+            transaction.response = search( request.getKey() );
+            break;
+          case Save:
+            transaction.response = save( request.getKey(), request.getPayload().toString() );
+            break;
+          case Delete:
+            transaction.response = deleteById( request.getKey() );
+            break;
+          default:
+            break;
+        }
+      } catch (Exception e) {
+        hasExecutionError = true;
+      }
+    }
+
+    if (hasExecutionError) {
+      rollback( transactionList );
+      return false;
+    }
+    return true;
+  }
+
+  private void rollback(List<Transaction> transactionList) {
+    PriorityQueue<Transaction> orderedTransactionList = new PriorityQueue<>( Comparator.comparingInt( (Transaction t) -> t.transactionOrder ).reversed() );
+    orderedTransactionList.addAll( transactionList );
+
+    for (Transaction transaction : orderedTransactionList) {
+      switch (transaction.request.getAction()) {
+        case Save:
+        case Delete:
+          save( transaction.request.getKey(), transaction.oldValue );
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private static final class Transaction {
+    int transactionOrder;
+    KeyValueStoreRequest request;
+    KeyValueStoreResponse response;
+    String oldValue;
+  }
+}
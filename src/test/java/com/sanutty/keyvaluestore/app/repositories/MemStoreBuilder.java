@@ -0,0 +1,87 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import java.nio.file.Path;
+
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicyEnum;
+import com.sanutty.keyvaluestore.app.repositories.persistence.FsyncPolicyEnum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Sets up a MemStoreKeyValueRepository the way Spring does, with the settings a test asks for and the others at
+ * values that keep tests fast: an ordered index, two shards, no eviction, no persistence and a 20 ms expiry tick.
+ */
+public class MemStoreBuilder
+{
+  private boolean orderedIndex = true;
+  private int shards = 2;
+  private EvictionPolicyEnum evictionPolicy = EvictionPolicyEnum.None;
+  private long maxEntries;
+  private long ttlTickMillis = 20;
+  private Path persistenceDir;
+
+  public MemStoreBuilder orderedIndex(boolean orderedIndex) {
+    this.orderedIndex = orderedIndex;
+    return this;
+  }
+
+  public MemStoreBuilder shards(int shards) {
+    this.shards = shards;
+    return this;
+  }
+
+  /**
+   * Bounds the store to maxEntries keys, evicted by the given policy
+   */
+  public MemStoreBuilder eviction(EvictionPolicyEnum evictionPolicy, long maxEntries) {
+    this.evictionPolicy = evictionPolicy;
+    this.maxEntries = maxEntries;
+    return this;
+  }
+
+  public MemStoreBuilder ttlTickMillis(long ttlTickMillis) {
+    this.ttlTickMillis = ttlTickMillis;
+    return this;
+  }
+
+  /**
+   * Logs every write to the directory with an fsync per write and takes no snapshots on a timer
+   */
+  public MemStoreBuilder persistence(Path persistenceDir) {
+    this.persistenceDir = persistenceDir;
+    return this;
+  }
+
+  /**
+   * @return a new repository, initialized
+   */
+  public MemStoreKeyValueRepository build() throws Exception {
+    return build( new MemStoreKeyValueRepository() );
+  }
+
+  /**
+   * Configures and initializes a repository created by the test, such as a subclass that intercepts its calls
+   * @return the repository
+   */
+  public <R extends MemStoreKeyValueRepository> R build(R repository) throws Exception {
+    ReflectionTestUtils.setField( repository, "orderedIndex", orderedIndex );
+    ReflectionTestUtils.setField( repository, "shards", shards );
+    ReflectionTestUtils.setField( repository, "evictionPolicy", evictionPolicy );
+    ReflectionTestUtils.setField( repository, "maxEntries", maxEntries );
+    ReflectionTestUtils.setField( repository, "ttlTickMillis", ttlTickMillis );
+    if (persistenceDir != null) {
+      ReflectionTestUtils.setField( repository, "persistenceEnabled", true );
+      ReflectionTestUtils.setField( repository, "persistenceDir", persistenceDir.toString() );
+      ReflectionTestUtils.setField( repository, "fsyncPolicy", FsyncPolicyEnum.Always );
+      ReflectionTestUtils.setField( repository, "fsyncIntervalMillis", 10L );
+      ReflectionTestUtils.setField( repository, "snapshotIntervalSeconds", 0L );
+    }
+    ReflectionTestUtils.setField( repository, "meterRegistry", new SimpleMeterRegistry() );
+    ReflectionTestUtils.setField( repository, "eventPublisher", (ApplicationEventPublisher) event -> {} );
+    repository.init();
+    return repository;
+  }
+}
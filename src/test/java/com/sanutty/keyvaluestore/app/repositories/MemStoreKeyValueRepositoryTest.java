@@ -0,0 +1,242 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.repositories.eviction.EvictionPolicyEnum;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+public class MemStoreKeyValueRepositoryTest
+{
+  private MemStoreKeyValueRepository repository;
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    repository.close();
+  }
+
+  @Test
+  public void scansRangesInKeyOrder() throws Exception {
+    repository = create( true );
+    assertScans( repository );
+  }
+
+  @Test
+  public void scansWithoutTheOrderedIndex() throws Exception {
+    repository = create( false );
+    assertScans( repository );
+  }
+
+  @Test
+  public void scanSkipsExpiredKeys() throws Exception {
+    repository = create( false );
+    repository.save( "a", "1", 0, KeyValueRepository.ANY_VERSION, null, false );
+    repository.save( "b", "2", 1, KeyValueRepository.ANY_VERSION, null, false );
+    repository.save( "c", "3", 0, KeyValueRepository.ANY_VERSION, null, false );
+    Thread.sleep( 1100 );
+    assertEquals( List.of( "a", "c" ), keys( repository.scan( null, null, null, 10 ) ) );
+  }
+
+  @Test
+  public void boundedStoreEvictsTheLeastRecentlyUsedKeys() throws Exception {
+    repository = new MemStoreBuilder().shards( 4 ).eviction( EvictionPolicyEnum.LRU, 100 ).build();
+    for (int i = 0; i < 300; i++) {
+      repository.save( "key" + i, "\"" + i + "\"", 0, KeyValueRepository.ANY_VERSION, null, false );
+      assertTrue( repository.search( "key0", null, false ).isOK() );
+    }
+    //evictions are applied by the shard writers
+    long deadline = System.currentTimeMillis() + 5000;
+    while (repository.scan( null, null, null, 1000 ).size() > 100 && System.currentTimeMillis() < deadline) {
+      Thread.sleep( 20 );
+    }
+    assertEquals( 100, repository.scan( null, null, null, 1000 ).size() );
+    assertTrue( repository.search( "key0", null, false ).isOK() );
+    assertTrue( repository.search( "key299", null, false ).isOK() );
+    assertFalse( repository.search( "key1", null, false ).isOK() );
+  }
+
+  @Test
+  public void searchesDoNotSeeCompositeWritesThatAreRolledBack() throws Exception {
+    repository = create( true );
+    assertNoDirtyReads( repository );
+  }
+
+  @Test
+  public void searchesAnswerKeysOfAnUnfinishedCompositeWithoutWaiting() throws Exception {
+    HoldingRepository holding = new MemStoreBuilder().shards( 4 ).build( new HoldingRepository() );
+    repository = holding;
+    repository.save( "balance", "100", 0, KeyValueRepository.ANY_VERSION, null, false );
+    repository.save( "closed", "1", 0, KeyValueRepository.ANY_VERSION, null, false );
+    List<KeyValueStoreRequest> composite = List.of( request( "balance", ActionEnum.Save, "0" ),
+        request( "balance", ActionEnum.Save, "50" ), request( "closed", ActionEnum.Delete, null ),
+        request( "opened", ActionEnum.Save, "2" ), request( "hold", ActionEnum.Save, "3" ) );
+    CompletableFuture<List<KeyValueStoreResponse>> running = CompletableFuture.supplyAsync( () -> {
+      try {
+        return repository.processComposite( composite );
+      } catch (Exception e) {
+        throw new IllegalStateException( e );
+      }
+    } );
+    assertTrue( holding.held.await( 5, TimeUnit.SECONDS ) );
+    try {
+      //the composite is held before its last write, so a read that waited for it would never return
+      assertTimeoutPreemptively( Duration.ofSeconds( 5 ), () -> {
+        assertEquals( "100", repository.search( "balance", null, false ).getResult() );
+        assertTrue( repository.search( "closed", null, false ).isOK() );
+        assertFalse( repository.search( "opened", null, false ).isOK() );
+        assertEquals( List.of( "balance", "closed" ), keys( repository.scan( null, null, null, 10 ) ) );
+        assertEquals( List.of( "balance" ), keys( repository.scan( null, null, null, 1 ) ) );
+        assertEquals( List.of( "closed" ), keys( repository.scan( null, null, "balance", 1 ) ) );
+      } );
+    } finally {
+      holding.release.countDown();
+    }
+    running.get( 5, TimeUnit.SECONDS );
+    assertEquals( "50", repository.search( "balance", null, false ).getResult() );
+    assertFalse( repository.search( "closed", null, false ).isOK() );
+    assertEquals( List.of( "balance", "hold", "opened" ), keys( repository.scan( null, null, null, 10 ) ) );
+  }
+
+  /*
+   * Runs composites that save a key and then fail, while other threads search and scan the key. The saved value
+   * is rolled back every time, so no search may ever return it.
+   */
+  static void assertNoDirtyReads(KeyValueRepository repository) throws Exception {
+    repository.save( "balance", "100", 0, KeyValueRepository.ANY_VERSION, null, false );
+    List<KeyValueStoreRequest> failing = List.of( request( "balance", ActionEnum.Save, "0" ),
+        request( "shard-spread", ActionEnum.Save, "1" ), request( "missing", ActionEnum.Search, null ) );
+    AtomicBoolean running = new AtomicBoolean( true );
+    AtomicInteger dirtyReads = new AtomicInteger();
+    List<Thread> readers = new ArrayList<>();
+    for (int t = 0; t < 2; t++) {
+      boolean scan = t == 1;
+      Thread reader = new Thread( () -> {
+        try {
+          while (running.get()) {
+            KeyValueStoreResponse resp = scan ? repository.scan( "balance", "balancf", null, 1 ).get( 0 )
+                : repository.search( "balance", null, false );
+            if (!"100".equals( resp.getResult() )) {
+              dirtyReads.incrementAndGet();
+            }
+          }
+        } catch (Exception e) {
+          dirtyReads.incrementAndGet();
+        }
+      } );
+      readers.add( reader );
+      reader.start();
+    }
+    try {
+      for (int i = 0; i < 5000; i++) {
+        assertThrows( RuntimeException.class, () -> repository.processComposite( failing ) );
+      }
+    } finally {
+      running.set( false );
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    assertEquals( 0, dirtyReads.get() );
+    assertEquals( "100", repository.search( "balance", null, false ).getResult() );
+  }
+
+  private static KeyValueStoreRequest request(String key, ActionEnum action, String payload) throws Exception {
+    KeyValueStoreRequest request = new KeyValueStoreRequest();
+    request.setKey( key );
+    request.setAction( action );
+    if (payload != null) {
+      request.setPayload( JSONUtilility.readTree( payload.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+    return request;
+  }
+
+  /*
+   * Saves key00..key49 in random order and pages through ranges of them
+   */
+  static void assertScans(KeyValueRepository repository) throws Exception {
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      order.add( i );
+    }
+    Collections.shuffle( order, new Random( 7 ) );
+    for (int i : order) {
+      repository.save( String.format( "key%02d", i ), "{\"n\":" + i + "}", 0, KeyValueRepository.ANY_VERSION, null, false );
+    }
+    repository.save( "other", "1", 0, KeyValueRepository.ANY_VERSION, null, false );
+    repository.deleteById( "key13", null, false );
+
+    assertEquals( List.of( "key10", "key11", "key12", "key14" ), keys( repository.scan( "key10", "key15", null, 10 ) ) );
+    assertEquals( List.of( "key10", "key11" ), keys( repository.scan( "key10", "key15", null, 2 ) ) );
+    assertEquals( List.of( "key12", "key14" ), keys( repository.scan( "key10", "key15", "key11", 2 ) ) );
+    assertEquals( List.of(), keys( repository.scan( "key10", "key15", "key14", 2 ) ) );
+    assertEquals( List.of( "key48", "key49", "other" ), keys( repository.scan( "key48", null, null, 10 ) ) );
+    assertEquals( List.of( "key00", "key01" ), keys( repository.scan( null, "key02", null, 10 ) ) );
+
+    //paging through everything returns every key once, in order
+    List<String> all = new ArrayList<>();
+    String cursor = null;
+    List<KeyValueStoreResponse> page;
+    do {
+      page = repository.scan( null, null, cursor, 7 );
+      all.addAll( keys( page ) );
+      cursor = page.isEmpty() ? cursor : page.get( page.size() - 1 ).getKey();
+    } while (page.size() == 7);
+    assertEquals( 50, all.size() );
+    List<String> sorted = new ArrayList<>( all );
+    Collections.sort( sorted );
+    assertEquals( sorted, all );
+    assertEquals( "{\"n\":5}", repository.scan( "key05", null, null, 1 ).get( 0 ).getResult() );
+  }
+
+  static List<String> keys(List<KeyValueStoreResponse> responses) {
+    List<String> keys = new ArrayList<>();
+    for (KeyValueStoreResponse resp : responses) {
+      keys.add( resp.getKey() );
+    }
+    return keys;
+  }
+
+  private static MemStoreKeyValueRepository create(boolean orderedIndex) throws Exception {
+    return new MemStoreBuilder().orderedIndex( orderedIndex ).shards( 4 ).build();
+  }
+
+  /*
+   * Holds a composite before it saves the key hold until release is counted down
+   */
+  private static final class HoldingRepository extends MemStoreKeyValueRepository
+  {
+    final CountDownLatch held = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+
+    @Override
+    protected KeyValueStoreResponse applySave( String key, String value, long ttlSeconds, long expectedVersion ) throws Exception
+    {
+      if (key.equals( "hold" )) {
+        held.countDown();
+        release.await();
+      }
+      return super.applySave( key, value, ttlSeconds, expectedVersion );
+    }
+  }
+}
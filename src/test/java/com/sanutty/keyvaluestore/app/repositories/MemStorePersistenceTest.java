@@ -0,0 +1,122 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.repositories.persistence.LogRecord;
+import com.sanutty.keyvaluestore.app.repositories.persistence.StorePersistence;
+
+/**
+ * A MemStore with persistence is abandoned without close, as if the process had died, and its directory is
+ * recovered by a new one
+ */
+public class MemStorePersistenceTest
+{
+  @TempDir
+  Path dir;
+
+  private final List<MemStoreKeyValueRepository> opened = new ArrayList<>();
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    for (MemStoreKeyValueRepository repository : opened) {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void acknowledgedWritesSurviveSnapshotsTakenWhileWriting() throws Exception {
+    MemStoreKeyValueRepository crashed = open();
+    AtomicBoolean writing = new AtomicBoolean( true );
+    List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int writerNumber = t;
+      Thread writer = new Thread( () -> {
+        try {
+          for (int i = 0; i < 2000; i++) {
+            String key = "key" + writerNumber + "-" + (i % 500);
+            if (i % 7 == 0) {
+              crashed.deleteById( key, null, false );
+            } else {
+              crashed.save( key, "\"" + i + "\"", 0, KeyValueRepository.ANY_VERSION, null, false );
+            }
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException( e );
+        }
+      } );
+      writers.add( writer );
+      writer.start();
+    }
+    StorePersistence persistence = (StorePersistence) ReflectionTestUtils.getField( crashed, "persistence" );
+    Thread snapshots = new Thread( () -> {
+      try {
+        while (writing.get()) {
+          Iterator<LogRecord> live = ReflectionTestUtils.invokeMethod( crashed, "liveRecords" );
+          persistence.snapshot( live );
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException( e );
+      }
+    } );
+    snapshots.start();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    writing.set( false );
+    snapshots.join();
+
+    MemStoreKeyValueRepository recovered = open();
+    for (int t = 0; t < 4; t++) {
+      for (int k = 0; k < 500; k++) {
+        String key = "key" + t + "-" + k;
+        assertEquals( crashed.search( key, null, false ).getResult(), recovered.search( key, null, false ).getResult(), key );
+      }
+    }
+  }
+
+  @Test
+  public void keysExpiredWhileDownAreDroppedOnceAfterRecovery() throws Exception {
+    MemStoreKeyValueRepository crashed = open();
+    for (int i = 0; i < 100; i++) {
+      crashed.save( "key" + i, "\"" + i + "\"", i < 50 ? 1 : 0, KeyValueRepository.ANY_VERSION, null, false );
+    }
+    Thread.sleep( 1100 );
+
+    MemStoreKeyValueRepository recovered = open();
+    assertFalse( recovered.search( "key1", null, false ).isOK() );
+    assertTrue( recovered.search( "key51", null, false ).isOK() );
+    //the expired keys are removed by the wheel once, the value bytes are not subtracted twice
+    LongAdder valueBytes = (LongAdder) ReflectionTestUtils.getField( recovered, "valueBytes" );
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((recovered.scan( null, null, null, 1000 ).size() != 50 || valueBytes.sum() != 50 * 4)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep( 20 );
+    }
+    List<KeyValueStoreResponse> live = recovered.scan( null, null, null, 1000 );
+    assertEquals( 50, live.size() );
+    assertEquals( 50 * 4, valueBytes.sum() );
+  }
+
+  private MemStoreKeyValueRepository open() throws Exception {
+    MemStoreKeyValueRepository repository = new MemStoreBuilder().shards( 4 ).persistence( dir ).build();
+    //recovery runs in the background and a search waits for it
+    repository.search( "recovered", null, false );
+    opened.add( repository );
+    return repository;
+  }
+}
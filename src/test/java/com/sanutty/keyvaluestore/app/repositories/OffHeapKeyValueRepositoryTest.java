@@ -0,0 +1,83 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepositoryTest.assertNoDirtyReads;
+import static com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepositoryTest.assertScans;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.entities.StatusEnum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class OffHeapKeyValueRepositoryTest
+{
+  private OffHeapKeyValueRepository repository;
+
+  @AfterEach
+  public void tearDown() {
+    repository.close();
+  }
+
+  @Test
+  public void scansRangesInKeyOrder() throws Exception {
+    repository = create( true, 1 << 20, 1 << 16 );
+    assertScans( repository );
+  }
+
+  @Test
+  public void scansWithoutTheOrderedIndex() throws Exception {
+    repository = create( false, 1 << 20, 1 << 16 );
+    assertScans( repository );
+  }
+
+  @Test
+  public void searchesDoNotSeeCompositeWritesThatAreRolledBack() throws Exception {
+    repository = create( true, 1 << 20, 1 << 16 );
+    assertNoDirtyReads( repository );
+  }
+
+  @Test
+  public void overwritesFitWhenTheStoreIsFull() throws Exception {
+    repository = create( true, 4096, 4096 );
+    String half = "\"" + "a".repeat( 2000 ) + "\"";
+    assertEquals( StatusEnum.OK, save( "a", half ).getStatus() );
+    assertEquals( StatusEnum.OK, save( "b", half ).getStatus() );
+
+    //a new value of another chunk size only fits in the space of the one it replaces
+    String smaller = "\"" + "b".repeat( 900 ) + "\"";
+    assertEquals( StatusEnum.OK, save( "a", smaller ).getStatus() );
+    assertEquals( smaller, repository.search( "a", null, false ).getResult() );
+    assertEquals( StatusEnum.OK, save( "a", half ).getStatus() );
+
+    //one that does not fit even then leaves the old value in place
+    String whole = "\"" + "c".repeat( 3000 ) + "\"";
+    KeyValueStoreResponse rejected = save( "a", whole );
+    assertEquals( KeyValueStoreResponse.MSG_CAPACITY_EXCEEDED, rejected.getMessage() );
+    assertEquals( half, repository.search( "a", null, false ).getResult() );
+    assertEquals( Long.valueOf( 3 ), repository.search( "a", null, false ).getVersion() );
+
+    //once b is gone its chunk merges with the free half of a's and the large value fits
+    repository.deleteById( "b", null, false );
+    assertEquals( StatusEnum.OK, save( "a", whole ).getStatus() );
+    assertEquals( whole, repository.search( "a", null, false ).getResult() );
+  }
+
+  private KeyValueStoreResponse save(String key, String value) throws Exception {
+    return repository.save( key, value, KeyValueRepository.NO_TTL, KeyValueRepository.ANY_VERSION, null, false );
+  }
+
+  static OffHeapKeyValueRepository create(boolean orderedIndex, long capacityBytes, int slabBytes) {
+    OffHeapKeyValueRepository repository = new OffHeapKeyValueRepository();
+    ReflectionTestUtils.setField( repository, "orderedIndex", orderedIndex );
+    ReflectionTestUtils.setField( repository, "capacityBytes", capacityBytes );
+    ReflectionTestUtils.setField( repository, "slabBytes", slabBytes );
+    ReflectionTestUtils.setField( repository, "ttlTickMillis", 20L );
+    ReflectionTestUtils.setField( repository, "meterRegistry", new SimpleMeterRegistry() );
+    repository.init();
+    return repository;
+  }
+}
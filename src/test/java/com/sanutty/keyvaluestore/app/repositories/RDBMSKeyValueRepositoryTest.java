@@ -0,0 +1,262 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RDBMSKeyValueRepositoryTest
+{
+  private JdbcDataSource dataSource;
+  private RDBMSKeyValueRepository repository;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    dataSource = new JdbcDataSource();
+    dataSource.setURL( "jdbc:h2:mem:rdbms-test;DB_CLOSE_DELAY=-1" );
+    dataSource.setUser( "sa" );
+    //the table hibernate generates from KeyValueEntity
+    try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+      stmt.execute( "create table keyvaluepairs (search_key varchar(125) not null primary key, "
+          + "search_value varchar(2048) not null, expires_at bigint, version bigint not null)" );
+    }
+    repository = create( false );
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    repository.close();
+    try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+      stmt.execute( "drop all objects" );
+    }
+  }
+
+  @Test
+  public void failingCompositeRollsBackEveryStep() throws Exception {
+    repository.save( "a", "1", 0, KeyValueRepository.ANY_VERSION, null, true );
+    repository.save( "gone", "2", 0, KeyValueRepository.ANY_VERSION, null, true );
+    List<KeyValueStoreRequest> failing = List.of( request( "a", ActionEnum.Save, "10" ),
+        request( "b", ActionEnum.Save, "20" ), request( "gone", ActionEnum.Delete, null ),
+        request( "missing", ActionEnum.Delete, null ) );
+    assertThrows( RuntimeException.class, () -> repository.processComposite( failing ) );
+    //fails in the insert batch, after the deletes and updates have been written
+    List<KeyValueStoreRequest> tooLong = List.of( request( "a", ActionEnum.Save, "10" ),
+        request( "gone", ActionEnum.Delete, null ), request( "b", ActionEnum.Save, "\"" + "x".repeat( 3000 ) + "\"" ) );
+    assertThrows( Exception.class, () -> repository.processComposite( tooLong ) );
+
+    assertEquals( "1", repository.search( "a", null, true ).getResult() );
+    assertEquals( Long.valueOf( 1 ), repository.search( "a", null, true ).getVersion() );
+    assertEquals( "2", repository.search( "gone", null, true ).getResult() );
+    assertFalse( repository.search( "b", null, true ).isOK() );
+    assertEquals( 2, count() );
+  }
+
+  @Test
+  public void compositeAnswersEveryRequest() throws Exception {
+    repository.save( "a", "1", 0, KeyValueRepository.ANY_VERSION, null, true );
+    List<KeyValueStoreResponse> responses = repository.processComposite( List.of( request( "a", ActionEnum.Search, null ),
+        request( "a", ActionEnum.Save, "2" ), request( "a", ActionEnum.Search, null ),
+        request( "b", ActionEnum.Save, "{\"n\":3}" ), request( "a", ActionEnum.Delete, null ),
+        request( "a", ActionEnum.Save, "4" ) ) );
+
+    assertEquals( 6, responses.size() );
+    for (KeyValueStoreResponse resp : responses) {
+      assertTrue( resp.isOK(), resp.getKey() );
+    }
+    assertEquals( "1", responses.get( 0 ).getResult() );
+    assertEquals( Long.valueOf( 1 ), responses.get( 0 ).getVersion() );
+    assertEquals( Long.valueOf( 2 ), responses.get( 1 ).getVersion() );
+    assertEquals( "2", responses.get( 2 ).getResult() );
+    assertEquals( Long.valueOf( 1 ), responses.get( 3 ).getVersion() );
+    assertEquals( ActionEnum.Delete, responses.get( 4 ).getAction() );
+    //saved again after its delete, so the key starts over
+    assertEquals( Long.valueOf( 1 ), responses.get( 5 ).getVersion() );
+
+    assertEquals( "4", repository.search( "a", null, true ).getResult() );
+    assertEquals( Long.valueOf( 1 ), repository.search( "a", null, true ).getVersion() );
+    assertEquals( "{\"n\":3}", repository.search( "b", null, true ).getResult() );
+  }
+
+  @Test
+  public void compositeLargerThanAPrefetchChunk() throws Exception {
+    List<KeyValueStoreRequest> requests = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      requests.add( request( "key" + i, ActionEnum.Save, String.valueOf( i ) ) );
+      keys.add( "key" + i );
+    }
+    repository.processComposite( requests );
+    requests.add( request( "missing", ActionEnum.Search, null ) );
+    assertThrows( RuntimeException.class, () -> repository.processComposite( requests ) );
+
+    List<KeyValueStoreResponse> found = repository.searchAll( keys );
+    for (int i = 0; i < 1200; i++) {
+      assertEquals( String.valueOf( i ), found.get( i ).getResult() );
+      assertEquals( Long.valueOf( 1 ), found.get( i ).getVersion() );
+    }
+  }
+
+  @Test
+  public void conditionalSavesReportVersionConflicts() throws Exception {
+    assertEquals( Long.valueOf( 1 ), repository.save( "k", "1", 0, 0, null, true ).getVersion() );
+    assertConflict( repository.save( "k", "2", 0, 0, null, true ) );
+    assertConflict( repository.save( "k", "2", 0, 2, null, true ) );
+    assertEquals( Long.valueOf( 2 ), repository.save( "k", "2", 0, 1, null, true ).getVersion() );
+    assertConflict( repository.save( "k", "3", 0, 1, null, true ) );
+    assertConflict( repository.save( "missing", "1", 0, 1, null, true ) );
+    assertEquals( Long.valueOf( 3 ), repository.save( "k", "3", 0, KeyValueRepository.ANY_VERSION, null, true ).getVersion() );
+    assertEquals( "3", repository.search( "k", null, true ).getResult() );
+  }
+
+  @Test
+  public void saveMergesOverAnExpiredRow() throws Exception {
+    insertExpired( "k", 7 );
+    assertFalse( repository.search( "k", null, true ).isOK() );
+    insertExpired( "k", 7 );
+    KeyValueStoreResponse resp = repository.save( "k", "1", 0, KeyValueRepository.ANY_VERSION, null, true );
+    assertTrue( resp.isOK() );
+    assertEquals( Long.valueOf( 1 ), resp.getVersion() );
+    assertEquals( "1", repository.search( "k", null, true ).getResult() );
+
+    //a conditional save treats the expired row as missing too
+    insertExpired( "other", 7 );
+    assertConflict( repository.save( "other", "1", 0, 7, null, true ) );
+    assertEquals( Long.valueOf( 1 ), repository.save( "other", "1", 0, 0, null, true ).getVersion() );
+    assertEquals( Long.valueOf( 2 ), repository.save( "k", "2", 0, KeyValueRepository.ANY_VERSION, null, true ).getVersion() );
+  }
+
+  @Test
+  public void concurrentSavesOfANewKeyAllSucceed() throws Exception {
+    int threads = 8;
+    int saves = 50;
+    List<Thread> writers = new ArrayList<>();
+    List<Throwable> failures = new CopyOnWriteArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread writer = new Thread( () -> {
+        try {
+          for (int i = 0; i < saves; i++) {
+            assertTrue( repository.save( "k" + i, "1", 0, KeyValueRepository.ANY_VERSION, null, true ).isOK() );
+          }
+        } catch (Throwable e) {
+          failures.add( e );
+        }
+      } );
+      writers.add( writer );
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals( List.of(), failures );
+    for (int i = 0; i < saves; i++) {
+      assertEquals( Long.valueOf( threads ), repository.search( "k" + i, null, true ).getVersion() );
+    }
+  }
+
+  @Test
+  public void bulkRequestsAnswerEachKey() throws Exception {
+    Map<String, String> entries = new LinkedHashMap<>();
+    entries.put( "a", "1" );
+    entries.put( "b", "2" );
+    repository.save( "a", "0", 0, KeyValueRepository.ANY_VERSION, null, true );
+    List<KeyValueStoreResponse> saved = repository.saveAll( entries, 0 );
+    assertEquals( Long.valueOf( 2 ), saved.get( 0 ).getVersion() );
+    assertEquals( Long.valueOf( 1 ), saved.get( 1 ).getVersion() );
+
+    List<KeyValueStoreResponse> deleted = repository.deleteAll( List.of( "a", "missing" ) );
+    assertTrue( deleted.get( 0 ).isOK() );
+    assertEquals( KeyValueStoreResponse.MSG_KEY_NOT_FOUND, deleted.get( 1 ).getMessage() );
+    List<KeyValueStoreResponse> found = repository.searchAll( List.of( "a", "b" ) );
+    assertFalse( found.get( 0 ).isOK() );
+    assertEquals( "2", found.get( 1 ).getResult() );
+  }
+
+  @Test
+  public void writeBehindFlushesBeforeConditionalWrites() throws Exception {
+    repository.close();
+    repository = create( true );
+    repository.save( "k", "1", 0, KeyValueRepository.ANY_VERSION, null, true );
+    repository.save( "k", "2", 0, KeyValueRepository.ANY_VERSION, null, true );
+    assertEquals( "2", repository.search( "k", null, true ).getResult() );
+
+    //the version check flushes the buffered writes of the key, written once at version 1
+    assertEquals( Long.valueOf( 2 ), repository.save( "k", "3", 0, 1, null, true ).getVersion() );
+    assertEquals( 1, count() );
+    repository.deleteById( "k", null, true );
+    List<KeyValueStoreResponse> responses = repository.processComposite( List.of( request( "k", ActionEnum.Save, "4" ) ) );
+    assertEquals( Long.valueOf( 1 ), responses.get( 0 ).getVersion() );
+    assertEquals( "4", repository.search( "k", null, true ).getResult() );
+  }
+
+  private static void assertConflict(KeyValueStoreResponse resp) {
+    assertFalse( resp.isOK() );
+    assertEquals( KeyValueStoreResponse.MSG_VERSION_CONFLICT, resp.getMessage() );
+  }
+
+  private void insertExpired(String key, long version) throws Exception {
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement( "insert into keyvaluepairs values (?, 'old', ?, ?)" )) {
+      stmt.setString( 1, key );
+      stmt.setLong( 2, System.currentTimeMillis() - 1000 );
+      stmt.setLong( 3, version );
+      stmt.executeUpdate();
+    }
+  }
+
+  private int count() throws Exception {
+    try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery( "select count(*) from keyvaluepairs" )) {
+      rs.next();
+      return rs.getInt( 1 );
+    }
+  }
+
+  private static KeyValueStoreRequest request(String key, ActionEnum action, String payload) throws Exception {
+    KeyValueStoreRequest request = new KeyValueStoreRequest();
+    request.setKey( key );
+    request.setAction( action );
+    if (payload != null) {
+      request.setPayload( JSONUtilility.readTree( payload.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+    return request;
+  }
+
+  private RDBMSKeyValueRepository create(boolean writeBehind) {
+    RDBMSKeyValueRepository repository = new RDBMSKeyValueRepository();
+    ReflectionTestUtils.setField( repository, "dataSource", dataSource );
+    ReflectionTestUtils.setField( repository, "ttlTickMillis", 20L );
+    ReflectionTestUtils.setField( repository, "acquireTimeoutMillis", 5000L );
+    ReflectionTestUtils.setField( repository, "writeBehindEnabled", writeBehind );
+    ReflectionTestUtils.setField( repository, "writeBehindMaxPending", 1000 );
+    ReflectionTestUtils.setField( repository, "writeBehindBatchSize", 100 );
+    //long enough that the test decides when the buffer is flushed
+    ReflectionTestUtils.setField( repository, "writeBehindFlushIntervalMillis", 60000L );
+    ReflectionTestUtils.setField( repository, "meterRegistry", new SimpleMeterRegistry() );
+    repository.init();
+    return repository;
+  }
+}
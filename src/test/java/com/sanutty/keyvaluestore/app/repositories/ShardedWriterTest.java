@@ -0,0 +1,58 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ShardedWriterTest
+{
+  private final ShardedWriter writer = new ShardedWriter( "test", 4 );
+
+  @AfterEach
+  public void tearDown() {
+    writer.close();
+  }
+
+  @Test
+  public void compositesRunOnTheCallingThread() throws Exception {
+    String other = keyInAnotherShard( "a" );
+    assertSame( Thread.currentThread(), writer.forKeys( List.of( "a" ), Thread::currentThread ) );
+    assertSame( Thread.currentThread(), writer.forKeys( List.of( "a", "a" ), Thread::currentThread ) );
+    assertSame( Thread.currentThread(), writer.forKeys( List.of( "a", other ), Thread::currentThread ) );
+    assertNotSame( Thread.currentThread(), writer.forKey( "a", Thread::currentThread ) );
+  }
+
+  @Test
+  public void writesOfAParkedShardWaitForTheComposite() throws Exception {
+    CountDownLatch written = new CountDownLatch( 1 );
+    writer.forKeys( List.of( "a" ), () -> {
+      writer.submit( "a", written::countDown );
+      assertFalse( written.await( 100, TimeUnit.MILLISECONDS ) );
+      return null;
+    } );
+    assertTrue( written.await( 5, TimeUnit.SECONDS ) );
+  }
+
+  @Test
+  public void writerCanRunACompositeOfItsOwnShard() throws Exception {
+    String other = keyInAnotherShard( "a" );
+    assertEquals( "done", writer.forKey( "a", () -> writer.forKeys( List.of( "a", other ), () -> "done" ) ) );
+  }
+
+  private String keyInAnotherShard(String key) {
+    for (int i = 0; ; i++) {
+      if (writer.shardOf( "k" + i ) != writer.shardOf( key )) {
+        return "k" + i;
+      }
+    }
+  }
+}
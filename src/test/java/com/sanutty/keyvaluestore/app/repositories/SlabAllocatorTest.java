@@ -0,0 +1,90 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class SlabAllocatorTest
+{
+  @Test
+  public void freedSmallChunksCoalesceIntoLargeOnes() {
+    SlabAllocator allocator = new SlabAllocator( 4096, 8192 );
+    List<Long> small = new ArrayList<>();
+    long address;
+    while ((address = allocator.allocate( 64 )) >= 0) {
+      small.add( address );
+    }
+    assertEquals( 128, small.size() );
+    assertEquals( -1, allocator.allocate( 4096 ) );
+
+    //freed in random order, the buddies still find each other
+    Collections.shuffle( small, new Random( 42 ) );
+    for (long chunk : small) {
+      allocator.free( chunk, 64 );
+    }
+    assertEquals( 0, allocator.getUsedBytes() );
+    assertTrue( allocator.allocate( 4096 ) >= 0 );
+    assertTrue( allocator.allocate( 4096 ) >= 0 );
+    assertEquals( 8192, allocator.getUsedBytes() );
+  }
+
+  @Test
+  public void chunksDoNotOverlap() {
+    SlabAllocator allocator = new SlabAllocator( 1 << 16, 1 << 18 );
+    Random random = new Random( 7 );
+    List<long[]> live = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      if (!live.isEmpty() && (random.nextBoolean() || live.size() > 400)) {
+        long[] chunk = live.remove( random.nextInt( live.size() ) );
+        assertArrayEquals( fill( (int) chunk[1], (byte) chunk[2] ), allocator.read( chunk[0], (int) chunk[1] ) );
+        allocator.free( chunk[0], (int) chunk[1] );
+      } else {
+        int length = 1 + random.nextInt( 3000 );
+        long address = allocator.allocate( length );
+        if (address >= 0) {
+          byte content = (byte) i;
+          allocator.write( address, fill( length, content ) );
+          live.add( new long[] { address, length, content } );
+        }
+      }
+    }
+    //every live value is intact, so no chunk was handed out twice
+    for (long[] chunk : live) {
+      assertArrayEquals( fill( (int) chunk[1], (byte) chunk[2] ), allocator.read( chunk[0], (int) chunk[1] ) );
+      allocator.free( chunk[0], (int) chunk[1] );
+    }
+    assertEquals( 0, allocator.getUsedBytes() );
+    assertTrue( allocator.allocate( 1 << 16 ) >= 0 );
+  }
+
+  @Test
+  public void capacityIsNeverExceeded() {
+    SlabAllocator allocator = new SlabAllocator( 1024, 3000 );
+    assertEquals( 2048, allocator.getCapacity() );
+    assertTrue( allocator.allocate( 1024 ) >= 0 );
+    assertTrue( allocator.allocate( 1000 ) >= 0 );
+    assertEquals( -1, allocator.allocate( 64 ) );
+    assertEquals( -1, allocator.allocate( 1025 ) );
+    assertEquals( 2048, allocator.getReservedBytes() );
+  }
+
+  @Test
+  public void capacitySmallerThanASlabIsRejected() {
+    assertThrows( IllegalArgumentException.class, () -> new SlabAllocator( 4096, 4095 ) );
+  }
+
+  private static byte[] fill(int length, byte content) {
+    byte[] value = new byte[length];
+    Arrays.fill( value, content );
+    return value;
+  }
+}
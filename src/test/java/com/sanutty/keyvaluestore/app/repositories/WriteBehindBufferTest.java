@@ -0,0 +1,149 @@
+package com.sanutty.keyvaluestore.app.repositories;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLDataException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sanutty.keyvaluestore.app.repositories.WriteBehindBuffer.PendingWrite;
+
+public class WriteBehindBufferTest
+{
+  //what the fake database holds, key to value
+  private final Map<String, String> table = new ConcurrentHashMap<>();
+  private final List<String> writtenKeys = new ArrayList<>();
+  private volatile boolean databaseDown;
+
+  private WriteBehindBuffer buffer;
+
+  @AfterEach
+  public void tearDown() {
+    databaseDown = false;
+    if (buffer != null) {
+      buffer.close();
+    }
+  }
+
+  @Test
+  public void rejectedKeyIsDroppedAndTheOthersAreWritten() throws Exception {
+    buffer = create( 100, 10 );
+    for (int i = 0; i < 5; i++) {
+      buffer.save( "key" + i, i == 2 ? "poison" : "value" + i, 0 );
+    }
+    buffer.flush( List.of( "key0", "key1", "key2", "key3", "key4" ) );
+
+    assertEquals( 4, table.size() );
+    assertFalse( table.containsKey( "key2" ) );
+    assertNull( buffer.get( "key2" ) );
+    assertEquals( 0, buffer.getPendingCount() );
+    assertEquals( 1.0, buffer.getDroppedCount(), 0 );
+  }
+
+  @Test
+  public void rejectedKeyDoesNotBlockTheFlusher() throws Exception {
+    buffer = create( 3, 2 );
+    buffer.save( "poison", "poison", 0 );
+    //more keys than the buffer holds; the writers would time out if the poison key were retried forever
+    for (int i = 0; i < 20; i++) {
+      buffer.save( "key" + i, "value" + i, 0 );
+    }
+    buffer.close();
+    assertEquals( 20, table.size() );
+    assertEquals( 1.0, buffer.getDroppedCount(), 0 );
+  }
+
+  @Test
+  public void writesAreKeptInOrderWhileTheDatabaseIsDown() throws Exception {
+    buffer = create( 100, 10 );
+    databaseDown = true;
+    for (int i = 0; i < 5; i++) {
+      buffer.save( "key" + i, "value" + i, 0 );
+    }
+    assertThrows( SQLTransientConnectionException.class, () -> buffer.flush( List.of( "key0", "key1" ) ) );
+    assertEquals( 5, buffer.getPendingCount() );
+    assertEquals( 0.0, buffer.getDroppedCount(), 0 );
+
+    databaseDown = false;
+    buffer.close();
+    assertEquals( 5, table.size() );
+    assertEquals( List.of( "key0", "key1", "key2", "key3", "key4" ), writtenKeys.subList( writtenKeys.size() - 5, writtenKeys.size() ) );
+  }
+
+  @Test
+  public void lagIsTheAgeOfTheOldestWriteStillBuffered() throws Exception {
+    buffer = create( 100, 10 );
+    assertEquals( 0.0, buffer.getLagMillis(), 0 );
+    buffer.save( "old", "value", 0 );
+    Thread.sleep( 200 );
+    buffer.save( "new", "value", 0 );
+    assertTrue( buffer.getLagMillis() >= 200 );
+
+    buffer.flush( List.of( "old" ) );
+    assertTrue( buffer.getLagMillis() < 200 );
+    buffer.flush( List.of( "new" ) );
+    assertEquals( 0.0, buffer.getLagMillis(), 0 );
+  }
+
+  @Test
+  public void latestWriteOfAKeyWins() throws Exception {
+    buffer = create( 100, 10 );
+    buffer.save( "key", "first", 0 );
+    buffer.save( "key", "second", 0 );
+    PendingWrite write = buffer.get( "key" );
+    assertEquals( "second", write.value );
+    buffer.delete( "key" );
+    assertTrue( buffer.get( "key" ).isDelete() );
+    assertEquals( 1, buffer.getPendingCount() );
+  }
+
+  @Test
+  public void closeFlushesAndRejectsLaterWrites() throws Exception {
+    buffer = create( 100, 10 );
+    buffer.save( "key", "value", 0 );
+    buffer.close();
+    assertEquals( "value", table.get( "key" ) );
+    assertThrows( IllegalStateException.class, () -> buffer.save( "late", "value", 0 ) );
+    assertNull( buffer.get( "late" ) );
+  }
+
+  /*
+   * A buffer whose flusher only runs when a batch fills up or it is flushed explicitly
+   */
+  private WriteBehindBuffer create(int maxPending, int batchSize) {
+    return new WriteBehindBuffer( "test-write-behind", this::write, maxPending, batchSize, 60_000, 2000 );
+  }
+
+  /*
+   * The fake database: it is unreachable while databaseDown is set, and a value of "poison" does not fit its
+   * column. A batch is written in one transaction, all of it or nothing.
+   */
+  private synchronized void write(Map<String, PendingWrite> batch) throws Exception {
+    if (databaseDown) {
+      throw new SQLTransientConnectionException( "Connection refused" );
+    }
+    for (PendingWrite write : batch.values()) {
+      if ("poison".equals( write.value )) {
+        throw new SQLDataException( "Value too long for column" );
+      }
+    }
+    for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+      if (entry.getValue().isDelete()) {
+        table.remove( entry.getKey() );
+      } else {
+        table.put( entry.getKey(), entry.getValue().value );
+      }
+      writtenKeys.add( entry.getKey() );
+    }
+  }
+}
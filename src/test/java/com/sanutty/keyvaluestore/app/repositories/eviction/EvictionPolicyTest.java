@@ -0,0 +1,135 @@
+package com.sanutty.keyvaluestore.app.repositories.eviction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class EvictionPolicyTest
+{
+  @Test
+  public void lruEvictsTheLeastRecentlyUsedKey() {
+    LruEvictionPolicy policy = new LruEvictionPolicy();
+    policy.onInsert( "a" );
+    policy.onInsert( "b" );
+    policy.onInsert( "c" );
+    policy.onAccess( "a" );
+    policy.onAccess( "removed" );
+    policy.onRemove( "c" );
+    assertEquals( "b", policy.evict() );
+    assertEquals( "a", policy.evict() );
+    assertNull( policy.evict() );
+  }
+
+  @Test
+  public void lfuEvictsTheLeastFrequentlyUsedKey() {
+    LfuEvictionPolicy policy = new LfuEvictionPolicy();
+    policy.onInsert( "a" );
+    policy.onInsert( "b" );
+    policy.onInsert( "c" );
+    policy.onAccess( "a" );
+    policy.onAccess( "a" );
+    policy.onAccess( "c" );
+    //inserting a tracked key again counts as an access
+    policy.onInsert( "b" );
+    policy.onAccess( "removed" );
+    //b and c are both at 2, c got there first
+    assertEquals( "c", policy.evict() );
+    assertEquals( "b", policy.evict() );
+    policy.onRemove( "a" );
+    assertNull( policy.evict() );
+  }
+
+  @Test
+  public void wTinyLfuKeepsFrequentKeysThroughAScan() {
+    //a hundred keys that keep being read while ten thousand keys are read once, in a store bounded to a hundred keys
+    int capacity = 100;
+    Set<String> lruKept = fill( new LruEvictionPolicy(), capacity );
+    Set<String> tinyLfuKept = fill( new WTinyLfuEvictionPolicy( capacity ), capacity );
+    assertTrue( hotKeys( lruKept ) < 60, lruKept.toString() );
+    assertTrue( hotKeys( tinyLfuKept ) >= 90, tinyLfuKept.toString() );
+  }
+
+  @Test
+  public void wTinyLfuEvictsEveryKeyOnce() {
+    WTinyLfuEvictionPolicy policy = new WTinyLfuEvictionPolicy( 100 );
+    Set<String> inserted = new LinkedHashSet<>();
+    for (int i = 0; i < 500; i++) {
+      policy.onInsert( "key" + i );
+      inserted.add( "key" + i );
+      if (i % 3 == 0) {
+        policy.onAccess( "key" + (i / 2) );
+      }
+    }
+    policy.onRemove( "key7" );
+    inserted.remove( "key7" );
+    String key;
+    while ((key = policy.evict()) != null) {
+      assertTrue( inserted.remove( key ), key );
+    }
+    assertTrue( inserted.isEmpty(), inserted.toString() );
+  }
+
+  @Test
+  public void sketchCountsUpToFifteenAndAges() {
+    FrequencySketch sketch = new FrequencySketch( 64 );
+    for (int i = 0; i < 20; i++) {
+      sketch.increment( "hot" );
+    }
+    assertEquals( 15, sketch.frequency( "hot" ) );
+    assertEquals( 0, sketch.frequency( "cold" ) );
+    //640 increments in total halve every counter
+    for (int i = 0; i < 640; i++) {
+      sketch.increment( "other" + i );
+    }
+    assertTrue( sketch.frequency( "hot" ) <= 7 );
+  }
+
+  @Test
+  public void trackerAppliesBufferedReadsBeforeEvicting() {
+    EvictionTracker tracker = new EvictionTracker( new LruEvictionPolicy() );
+    tracker.recordInsert( "a" );
+    tracker.recordInsert( "b" );
+    tracker.recordAccess( "a" );
+    assertEquals( "b", tracker.evict() );
+    tracker.recordRemove( "a" );
+    assertNull( tracker.evict() );
+  }
+
+  /*
+   * Runs the workload against the policy, evicting whenever more than capacity keys are tracked, and returns the
+   * keys left
+   */
+  private static Set<String> fill(EvictionPolicy policy, int capacity) {
+    Set<String> live = new LinkedHashSet<>();
+    for (int i = 0; i < capacity; i++) {
+      insert( policy, live, "hot" + i, capacity );
+    }
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < capacity; i++) {
+        policy.onAccess( "hot" + i );
+      }
+    }
+    for (int i = 0; i < 10000; i++) {
+      insert( policy, live, "once" + i, capacity );
+      policy.onAccess( "hot" + (i % capacity) );
+    }
+    return live;
+  }
+
+  private static void insert(EvictionPolicy policy, Set<String> live, String key, int capacity) {
+    policy.onInsert( key );
+    live.add( key );
+    while (live.size() > capacity) {
+      live.remove( policy.evict() );
+    }
+  }
+
+  private static long hotKeys(Set<String> keys) {
+    return keys.stream().filter( key -> key.startsWith( "hot" ) ).count();
+  }
+}
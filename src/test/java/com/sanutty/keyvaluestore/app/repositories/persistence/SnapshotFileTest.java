@@ -0,0 +1,92 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotFileTest
+{
+  private static final int VALUE_BYTES = 1024 * 1024;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void segmentsReadConcurrentlyReturnEveryRecordOnce() throws IOException {
+    //about 2.5 segments of 1 MB values
+    int count = (int) (SnapshotFile.SEGMENT_BYTES * 5 / 2 / VALUE_BYTES);
+    assertEquals( count, SnapshotFile.write( dir, 3, records( count ).iterator() ) );
+
+    SnapshotFile snapshot = SnapshotFile.open( SnapshotFile.snapshotPath( dir, 3 ) );
+    assertEquals( 3, snapshot.getSegmentCount() );
+    Map<String, LogRecord> read = new ConcurrentHashMap<>();
+    long total = IntStream.range( 0, snapshot.getSegmentCount() ).parallel().mapToLong( segment -> {
+      try {
+        return snapshot.readSegment( segment, record -> assertNull( read.put( record.getKey(), record ) ) );
+      } catch (IOException e) {
+        throw new UncheckedIOException( e );
+      }
+    } ).sum();
+
+    assertEquals( count, total );
+    assertEquals( count, read.size() );
+    for (LogRecord expected : records( count )) {
+      LogRecord record = read.get( expected.getKey() );
+      assertArrayEquals( expected.getValue(), record.getValue(), expected.getKey() );
+      assertEquals( expected.getExpiresAt(), record.getExpiresAt() );
+      assertEquals( expected.getVersion(), record.getVersion() );
+    }
+  }
+
+  @Test
+  public void damagedIndexIsRejected() throws IOException {
+    SnapshotFile.write( dir, 1, records( 3 ).iterator() );
+    Path file = SnapshotFile.snapshotPath( dir, 1 );
+    try (FileChannel channel = FileChannel.open( file, StandardOpenOption.WRITE )) {
+      channel.truncate( channel.size() - 1 );
+    }
+    assertThrows( IOException.class, () -> SnapshotFile.open( file ) );
+  }
+
+  @Test
+  public void corruptRecordFailsItsSegment() throws IOException {
+    SnapshotFile.write( dir, 1, records( 3 ).iterator() );
+    Path file = SnapshotFile.snapshotPath( dir, 1 );
+    //a byte in the middle of the second value
+    try (FileChannel channel = FileChannel.open( file, StandardOpenOption.WRITE )) {
+      channel.write( ByteBuffer.wrap( new byte[] { 0x55 } ), VALUE_BYTES * 3 / 2 );
+    }
+    SnapshotFile snapshot = SnapshotFile.open( file );
+    List<LogRecord> read = new ArrayList<>();
+    IOException e = assertThrows( IOException.class, () -> snapshot.readSegment( 0, read::add ) );
+    assertTrue( e.getMessage().contains( "after 1 records" ), e.getMessage() );
+  }
+
+  private static List<LogRecord> records(int count) {
+    List<LogRecord> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] value = new byte[VALUE_BYTES];
+      Arrays.fill( value, (byte) i );
+      records.add( LogRecord.put( "key" + i, value, i % 2 == 0 ? 0 : 1_000_000L + i, i + 1 ) );
+    }
+    return records;
+  }
+}
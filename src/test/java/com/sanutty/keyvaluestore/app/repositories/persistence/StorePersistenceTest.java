@@ -0,0 +1,152 @@
+package com.sanutty.keyvaluestore.app.repositories.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery after a crash. A crash is simulated by abandoning a StorePersistence without closing it and recovering
+ * the directory with a new one; with FsyncPolicyEnum.Always every record whose append was awaited is on disk.
+ */
+public class StorePersistenceTest
+{
+  @TempDir
+  Path dir;
+
+  private final List<StorePersistence> opened = new ArrayList<>();
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    for (StorePersistence persistence : opened) {
+      persistence.close();
+    }
+  }
+
+  @Test
+  public void recoversAcknowledgedRecordsWithoutClose() throws IOException {
+    StorePersistence crashed = open();
+    crashed.recover( record -> {} );
+    for (int i = 0; i < 100; i++) {
+      crashed.awaitDurable( crashed.append( LogRecord.put( "key" + i, bytes( "value" + i ), 0, i ) ) );
+    }
+    crashed.awaitDurable( crashed.append( LogRecord.delete( "key7" ) ) );
+
+    Map<String, LogRecord> recovered = recover();
+    assertEquals( 99, recovered.size() );
+    assertFalse( recovered.containsKey( "key7" ) );
+    assertArrayEquals( bytes( "value42" ), recovered.get( "key42" ).getValue() );
+    assertEquals( 42, recovered.get( "key42" ).getVersion() );
+  }
+
+  @Test
+  public void recoversSnapshotAndLaterSegments() throws IOException {
+    Map<String, LogRecord> store = new ConcurrentHashMap<>();
+    StorePersistence crashed = open();
+    crashed.recover( record -> {} );
+    for (int i = 0; i < 50; i++) {
+      write( crashed, store, LogRecord.put( "key" + i, bytes( "before" + i ), 0, 0 ) );
+    }
+    crashed.snapshot( store.values().iterator() );
+    for (int i = 25; i < 75; i++) {
+      write( crashed, store, LogRecord.put( "key" + i, bytes( "after" + i ), 0, 1 ) );
+    }
+    write( crashed, store, LogRecord.delete( "key0" ) );
+
+    Map<String, LogRecord> recovered = recover();
+    assertEquals( 74, recovered.size() );
+    assertFalse( recovered.containsKey( "key0" ) );
+    assertArrayEquals( bytes( "before10" ), recovered.get( "key10" ).getValue() );
+    assertArrayEquals( bytes( "after30" ), recovered.get( "key30" ).getValue() );
+    assertArrayEquals( bytes( "after70" ), recovered.get( "key70" ).getValue() );
+  }
+
+  @Test
+  public void snapshotTakenDuringWritesLosesNothing() throws Exception {
+    Map<String, LogRecord> store = new ConcurrentHashMap<>();
+    StorePersistence crashed = open();
+    crashed.recover( record -> {} );
+    Thread writer = new Thread( () -> {
+      for (int i = 0; i < 5000; i++) {
+        write( crashed, store, LogRecord.put( "key" + (i % 1000), bytes( "value" + i ), 0, i ) );
+      }
+    } );
+    writer.start();
+    while (writer.isAlive()) {
+      crashed.snapshot( store.values().iterator() );
+    }
+    writer.join();
+
+    Map<String, LogRecord> recovered = recover();
+    assertEquals( store.size(), recovered.size() );
+    for (LogRecord record : store.values()) {
+      assertArrayEquals( record.getValue(), recovered.get( record.getKey() ).getValue(), record.getKey() );
+    }
+  }
+
+  @Test
+  public void stopsReplayAtTornRecord() throws IOException {
+    StorePersistence crashed = open();
+    crashed.recover( record -> {} );
+    for (int i = 0; i < 10; i++) {
+      crashed.awaitDurable( crashed.append( LogRecord.put( "key" + i, bytes( "value" + i ), 0, 0 ) ) );
+    }
+    //the process died halfway through writing the next record
+    Files.write( WriteAheadLog.segmentPath( dir, 1 ), new byte[] { 0, 0, 1, 0, 42, 42, 42 }, StandardOpenOption.APPEND );
+
+    Map<String, LogRecord> recovered = recover();
+    assertEquals( 10, recovered.size() );
+
+    //records appended after that recovery go to a new segment and are recovered as well
+    StorePersistence reopened = opened.get( opened.size() - 1 );
+    reopened.awaitDurable( reopened.append( LogRecord.put( "key10", bytes( "value10" ), 0, 0 ) ) );
+    assertEquals( 11, recover().size() );
+  }
+
+  private StorePersistence open() {
+    StorePersistence persistence = new StorePersistence( dir, FsyncPolicyEnum.Always, 10, 0 );
+    opened.add( persistence );
+    return persistence;
+  }
+
+  private Map<String, LogRecord> recover() throws IOException {
+    Map<String, LogRecord> recovered = new ConcurrentHashMap<>();
+    open().recover( record -> {
+      if (record.getOperation() == LogRecord.DELETE) {
+        recovered.remove( record.getKey() );
+      } else {
+        recovered.put( record.getKey(), record );
+      }
+    } );
+    return recovered;
+  }
+
+  /*
+   * Applies the change to the store before logging it, as the repositories do
+   */
+  private static void write(StorePersistence persistence, Map<String, LogRecord> store, LogRecord record) {
+    if (record.getOperation() == LogRecord.DELETE) {
+      store.remove( record.getKey() );
+    } else {
+      store.put( record.getKey(), record );
+    }
+    persistence.awaitDurable( persistence.append( record ) );
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes( StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,216 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import static com.sanutty.keyvaluestore.app.server.RespProtocolSessionTest.memStore;
+import static com.sanutty.keyvaluestore.app.server.RespProtocolSessionTest.service;
+import static com.sanutty.keyvaluestore.app.server.RespProtocolSessionTest.written;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
+import com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepository;
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+
+public class BinaryProtocolSessionTest
+{
+  private MemStoreKeyValueRepository repository;
+  private KeyValueStoreService service;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    repository = memStore();
+    service = service( repository );
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    repository.close();
+  }
+
+  @Test
+  public void decodesFramesAcrossReads() throws Exception {
+    BinaryProtocolSession session = new BinaryProtocolSession( service, 1024 );
+    byte[] bytes = concat( put( "k", "\"v\"", 60, KeyValueRepository.ANY_VERSION ), get( "k" ) );
+    List<BinaryProtocolSession.Request> requests = new ArrayList<>();
+    ByteBuffer in = ByteBuffer.allocateDirect( bytes.length );
+    for (byte b : bytes) {
+      in.put( b );
+      in.flip();
+      session.decode( in, requests );
+      in.compact();
+    }
+    assertEquals( 2, requests.size() );
+    assertEquals( BinaryProtocolSession.OP_PUT, requests.get( 0 ).op );
+    assertEquals( "k", requests.get( 0 ).key );
+    assertEquals( 60, requests.get( 0 ).ttlSeconds );
+    assertArrayEquals( "\"v\"".getBytes( StandardCharsets.UTF_8 ), requests.get( 0 ).value );
+    assertEquals( BinaryProtocolSession.OP_GET, requests.get( 1 ).op );
+  }
+
+  @Test
+  public void rejectsFramesThatCanNotBeRead() {
+    BinaryProtocolSession session = new BinaryProtocolSession( service, 1024 );
+    assertThrows( ProtocolException.class, () -> session.decode( ByteBuffer.allocate( 4 ).putInt( 0, 2048 ), new ArrayList<>() ) );
+    //a GET whose key length runs past the frame
+    ByteBuffer truncated = ByteBuffer.allocate( 8 ).putInt( 4 ).put( BinaryProtocolSession.OP_GET ).putShort( (short) 10 ).put( (byte) 'k' ).flip();
+    assertThrows( ProtocolException.class, () -> session.decode( truncated, new ArrayList<>() ) );
+  }
+
+  @Test
+  public void encodesResponsesIntoDirectBuffers() throws Exception {
+    BinaryProtocolSession session = new BinaryProtocolSession( service, 1 << 20 );
+    ResponseOutput out = new ResponseOutput( 2 );
+    session.execute( request( put( "k", "\"v\"", 0, 0 ) ), out );
+    ByteBuffer response = ByteBuffer.wrap( written( out ) );
+    assertEquals( 5 + 13, response.getInt() );
+    assertEquals( BinaryProtocolSession.OP_PUT, response.get() );
+    assertEquals( 1, response.getInt() );
+    assertEquals( BinaryProtocolSession.STATUS_OK, response.get() );
+    assertEquals( 1, response.getLong() );
+    assertEquals( 0, response.getInt() );
+
+    //a value larger than a chunk goes out as it is stored, the headers around it from the pooled chunks
+    String large = "\"" + "x".repeat( ResponseOutput.CHUNK_BYTES * 2 ) + "\"";
+    session.execute( request( put( "large", large, 0, KeyValueRepository.ANY_VERSION ) ), out );
+    written( out );
+    session.execute( request( get( "large" ) ), out );
+    session.execute( request( get( "missing" ) ), out );
+    response = ByteBuffer.wrap( written( out ) );
+    response.getInt();
+    response.get();
+    response.getInt();
+    assertEquals( BinaryProtocolSession.STATUS_OK, response.get() );
+    response.getLong();
+    byte[] value = new byte[response.getInt()];
+    response.get( value );
+    assertEquals( large, new String( value, StandardCharsets.UTF_8 ) );
+    response.getInt();
+    response.get();
+    response.getInt();
+    assertEquals( BinaryProtocolSession.STATUS_NOT_FOUND, response.get() );
+  }
+
+  @Test
+  public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+    NioServer<BinaryProtocolSession.Request> server = new NioServer<>( "binary-test", 0, 4, 1 << 20,
+        () -> new BinaryProtocolSession( service, 1 << 20 ) );
+    server.start();
+    int count = 2000;
+    //larger than the read buffer, so the connection grows it and goes back to its own afterwards
+    String large = "\"" + "y".repeat( 100 * 1024 ) + "\"";
+    try (Socket socket = new Socket()) {
+      socket.connect( new InetSocketAddress( "localhost", server.getLocalPort() ) );
+      socket.setSoTimeout( 10000 );
+      ByteArrayOutputStream requests = new ByteArrayOutputStream();
+      requests.write( put( "large", large, 0, KeyValueRepository.ANY_VERSION ) );
+      for (int i = 0; i < count; i++) {
+        requests.write( put( "key" + i, "{\"n\":" + i + "}", 0, KeyValueRepository.ANY_VERSION ) );
+        requests.write( get( "key" + i ) );
+      }
+      requests.write( get( "large" ) );
+      //written from another thread, so the server can answer while the client is still sending
+      Thread writer = new Thread( () -> {
+        try {
+          socket.getOutputStream().write( requests.toByteArray() );
+          socket.getOutputStream().flush();
+        } catch (Exception e) {
+          throw new IllegalStateException( e );
+        }
+      } );
+      writer.start();
+
+      DataInputStream in = new DataInputStream( socket.getInputStream() );
+      assertEquals( BinaryProtocolSession.STATUS_OK, readStatus( in ) );
+      for (int i = 0; i < count; i++) {
+        assertEquals( BinaryProtocolSession.STATUS_OK, readStatus( in ) );
+        assertEquals( "{\"n\":" + i + "}", readValue( in ) );
+      }
+      assertEquals( large, readValue( in ) );
+      writer.join();
+    } finally {
+      server.close();
+    }
+  }
+
+  private static byte readStatus(DataInputStream in) throws Exception {
+    return ByteBuffer.wrap( readEntry( in ) ).get();
+  }
+
+  private static String readValue(DataInputStream in) throws Exception {
+    ByteBuffer entry = ByteBuffer.wrap( readEntry( in ) );
+    entry.get();
+    entry.getLong();
+    byte[] value = new byte[entry.getInt()];
+    entry.get( value );
+    return new String( value, StandardCharsets.UTF_8 );
+  }
+
+  /*
+   * The first entry of a response frame
+   */
+  private static byte[] readEntry(DataInputStream in) throws Exception {
+    byte[] frame = new byte[in.readInt()];
+    in.readFully( frame );
+    ByteBuffer buffer = ByteBuffer.wrap( frame );
+    buffer.get();
+    assertEquals( 1, buffer.getInt() );
+    byte[] entry = new byte[buffer.remaining()];
+    buffer.get( entry );
+    return entry;
+  }
+
+  private static BinaryProtocolSession.Request request(byte[] frame) throws Exception {
+    List<BinaryProtocolSession.Request> requests = new ArrayList<>();
+    new BinaryProtocolSession( null, 1 << 20 ).decode( ByteBuffer.wrap( frame ), requests );
+    return requests.get( 0 );
+  }
+
+  private static byte[] get(String key) throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( body );
+    out.writeByte( BinaryProtocolSession.OP_GET );
+    writeKey( out, key );
+    return frame( body.toByteArray() );
+  }
+
+  private static byte[] put(String key, String value, long ttlSeconds, long expectedVersion) throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( body );
+    out.writeByte( BinaryProtocolSession.OP_PUT );
+    writeKey( out, key );
+    out.writeLong( ttlSeconds );
+    out.writeLong( expectedVersion );
+    byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+    return frame( body.toByteArray() );
+  }
+
+  private static void writeKey(DataOutputStream out, String key) throws Exception {
+    byte[] bytes = key.getBytes( StandardCharsets.UTF_8 );
+    out.writeShort( bytes.length );
+    out.write( bytes );
+  }
+
+  private static byte[] frame(byte[] body) {
+    return ByteBuffer.allocate( 4 + body.length ).putInt( body.length ).put( body ).array();
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    return ByteBuffer.allocate( a.length + b.length ).put( a ).put( b ).array();
+  }
+}
@@ -0,0 +1,205 @@
+package com.sanutty.keyvaluestore.app.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
+import com.sanutty.keyvaluestore.app.repositories.MemStoreBuilder;
+import com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepository;
+import com.sanutty.keyvaluestore.app.services.KeyValueStoreService;
+import com.sanutty.keyvaluestore.app.services.SecondaryIndexService;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RespProtocolSessionTest
+{
+  private MemStoreKeyValueRepository repository;
+  private KeyValueStoreService service;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    repository = memStore();
+    service = service( repository );
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    repository.close();
+  }
+
+  @Test
+  public void decodesArraysAndInlineCommandsAcrossReads() throws Exception {
+    RespProtocolSession session = new RespProtocolSession( service, 1024 );
+    byte[] bytes = "*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$5\r\nva\r\nl\r\nPING\r\n".getBytes( StandardCharsets.US_ASCII );
+    List<List<byte[]>> requests = new ArrayList<>();
+    ByteBuffer in = ByteBuffer.allocate( bytes.length );
+    //delivered one byte at a time, an incomplete command must be left in the buffer
+    for (byte b : bytes) {
+      in.put( b );
+      in.flip();
+      session.decode( in, requests );
+      in.compact();
+    }
+    assertEquals( 2, requests.size() );
+    assertEquals( List.of( "SET", "k", "va\r\nl" ), strings( requests.get( 0 ) ) );
+    assertEquals( List.of( "PING" ), strings( requests.get( 1 ) ) );
+  }
+
+  @Test
+  public void valuesRoundTripExactly() throws Exception {
+    String value = "h\u00e9llo \"w\u00f6rld\"\n\u2603 \ud83d\ude00";
+    assertEquals( "+OK\r\n", execute( "SET", "k", value ) );
+    byte[] utf8 = value.getBytes( StandardCharsets.UTF_8 );
+    assertEquals( "$" + utf8.length + "\r\n" + value + "\r\n", execute( "GET", "k" ) );
+    assertEquals( "$-1\r\n", execute( "GET", "missing" ) );
+  }
+
+  @Test
+  public void binaryValuesAreRejectedInsteadOfAltered() throws Exception {
+    byte[] binary = { 'a', (byte) 0xff, (byte) 0xfe, 'b' };
+    String reply = execute( bytes( "SET" ), bytes( "k" ), binary );
+    assertTrue( reply.startsWith( "-ERR " ), reply );
+    assertTrue( execute( bytes( "MSET" ), bytes( "k" ), binary ).startsWith( "-ERR " ) );
+    assertEquals( "$-1\r\n", execute( "GET", "k" ) );
+  }
+
+  @Test
+  public void quitReportsTheSessionAsClosing() throws Exception {
+    RespProtocolSession session = new RespProtocolSession( service, 1024 );
+    ResponseOutput out = new ResponseOutput( 1 );
+    session.execute( List.of( bytes( "PING" ) ), out );
+    assertFalse( session.isClosing() );
+    session.execute( List.of( bytes( "QUIT" ) ), out );
+    assertTrue( session.isClosing() );
+  }
+
+  @Test
+  public void quitClosesTheConnectionAfterItsReply() throws Exception {
+    NioServer<List<byte[]>> server = new NioServer<>( "resp-test", 0, 2, 1024, () -> new RespProtocolSession( service, 1024 ) );
+    server.start();
+    try (Socket socket = new Socket()) {
+      socket.connect( new InetSocketAddress( "localhost", server.getLocalPort() ) );
+      socket.setSoTimeout( 10000 );
+      OutputStream out = socket.getOutputStream();
+      out.write( "PING\r\nQUIT\r\nSET k v\r\n".getBytes( StandardCharsets.US_ASCII ) );
+      out.flush();
+      //read to the end of the stream, which only comes if the server closed the connection
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream received = new ByteArrayOutputStream();
+      byte[] chunk = new byte[256];
+      int read;
+      while ((read = in.read( chunk )) >= 0) {
+        received.write( chunk, 0, read );
+      }
+      assertEquals( "+PONG\r\n+OK\r\n", received.toString( StandardCharsets.US_ASCII ) );
+    } finally {
+      server.close();
+    }
+    assertEquals( "$-1\r\n", execute( "GET", "k" ) );
+  }
+
+  @Test
+  public void multiExecRunsAsOneComposite() throws Exception {
+    RespProtocolSession session = new RespProtocolSession( service, 1024 );
+    assertEquals( "+OK\r\n", execute( session, "MULTI" ) );
+    assertEquals( "+QUEUED\r\n", execute( session, "SET", "a", "1" ) );
+    assertEquals( "+QUEUED\r\n", execute( session, "GET", "a" ) );
+    assertEquals( "*2\r\n+OK\r\n$1\r\n1\r\n", execute( session, "EXEC" ) );
+
+    assertEquals( "+OK\r\n", execute( session, "MULTI" ) );
+    assertEquals( "+QUEUED\r\n", execute( session, "SET", "b", "2" ) );
+    assertEquals( "+QUEUED\r\n", execute( session, "GET", "missing" ) );
+    assertTrue( execute( session, "EXEC" ).startsWith( "-ERR " ) );
+    assertEquals( "$-1\r\n", execute( "GET", "b" ) );
+  }
+
+  static MemStoreKeyValueRepository memStore() throws Exception {
+    return new MemStoreBuilder().build();
+  }
+
+  /**
+   * @return the service as Spring wires it, over the repository and without indexes
+   */
+  static KeyValueStoreService service(KeyValueRepository repository) throws Exception {
+    SecondaryIndexService indexes = new SecondaryIndexService();
+    ReflectionTestUtils.setField( indexes, "repository", repository );
+    ReflectionTestUtils.setField( indexes, "meterRegistry", new SimpleMeterRegistry() );
+    ReflectionTestUtils.setField( indexes, "indexPaths", new String[0] );
+    indexes.init();
+
+    KeyValueStoreService service = new KeyValueStoreService();
+    ReflectionTestUtils.setField( service, "repository", repository );
+    ReflectionTestUtils.setField( service, "secondaryIndexes", indexes );
+    ReflectionTestUtils.setField( service, "meterRegistry", new SimpleMeterRegistry() );
+    service.init();
+    return service;
+  }
+
+  private String execute(String... args) {
+    return execute( new RespProtocolSession( service, 1024 ), args );
+  }
+
+  private static String execute(RespProtocolSession session, String... args) {
+    List<byte[]> command = new ArrayList<>();
+    for (String arg : args) {
+      command.add( bytes( arg ) );
+    }
+    return execute( session, command );
+  }
+
+  private String execute(byte[]... args) {
+    return execute( new RespProtocolSession( service, 1024 ), new ArrayList<>( List.of( args ) ) );
+  }
+
+  private static String execute(RespProtocolSession session, List<byte[]> command) {
+    ResponseOutput out = new ResponseOutput( 1 );
+    session.execute( command, out );
+    return new String( written( out ), StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * @return the bytes put into the output, as the socket would receive them
+   */
+  static byte[] written(ResponseOutput out) {
+    Queue<ByteBuffer> buffers = new ArrayDeque<>();
+    out.drainTo( buffers );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : buffers) {
+      byte[] chunk = new byte[buffer.remaining()];
+      buffer.get( chunk );
+      bytes.write( chunk, 0, chunk.length );
+      out.release( buffer );
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<String> strings(List<byte[]> command) {
+    List<String> strings = new ArrayList<>();
+    for (byte[] arg : command) {
+      strings.add( new String( arg, StandardCharsets.UTF_8 ) );
+    }
+    return strings;
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes( StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,97 @@
+package com.sanutty.keyvaluestore.app.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreResponse;
+import com.sanutty.keyvaluestore.app.repositories.KeyValueRepository;
+import com.sanutty.keyvaluestore.app.repositories.MemStoreBuilder;
+import com.sanutty.keyvaluestore.app.repositories.MemStoreKeyValueRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SecondaryIndexServiceTest
+{
+  private MemStoreKeyValueRepository repository;
+  private SecondaryIndexService indexes;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    repository = new MemStoreBuilder().build();
+
+    indexes = new SecondaryIndexService();
+    ReflectionTestUtils.setField( indexes, "repository", repository );
+    ReflectionTestUtils.setField( indexes, "meterRegistry", new SimpleMeterRegistry() );
+    ReflectionTestUtils.setField( indexes, "indexPaths", new String[0] );
+    indexes.init();
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    repository.close();
+  }
+
+  @Test
+  public void declareIndexesStoredValues() throws Exception {
+    for (int i = 0; i < 2500; i++) {
+      save( String.format( "key%04d", i ), "{\"status\":\"" + (i % 2 == 0 ? "open" : "closed") + "\"}" );
+    }
+    assertEquals( 2500, indexes.declare( "$.status" ) );
+
+    List<KeyValueStoreResponse> page = indexes.query( "$.status", "open", null, 3 );
+    assertEquals( List.of( "key0000", "key0002", "key0004" ), keys( page ) );
+    assertEquals( List.of( "key0006" ), keys( indexes.query( "$.status", "open", "key0004", 1 ) ) );
+    assertEquals( 1250, indexes.query( "$.status", "closed", null, 5000 ).size() );
+  }
+
+  @Test
+  public void writesAreReindexed() throws Exception {
+    indexes.declare( "$.status" );
+    save( "a", "{\"status\":\"open\"}" );
+    save( "b", "{\"status\":\"open\"}" );
+    indexes.reindex( List.of( "a", "b" ) );
+    save( "a", "{\"status\":\"closed\"}" );
+    repository.deleteById( "b", null, false );
+    indexes.reindex( List.of( "a", "b" ) );
+
+    assertEquals( List.of(), keys( indexes.query( "$.status", "open", null, 10 ) ) );
+    assertEquals( List.of( "a" ), keys( indexes.query( "$.status", "closed", null, 10 ) ) );
+  }
+
+  @Test
+  public void querySkipsKeysChangedWithoutReindex() throws Exception {
+    indexes.declare( "$.status" );
+    save( "a", "{\"status\":\"open\"}" );
+    indexes.reindex( List.of( "a" ) );
+    //written behind the index's back, as by another node
+    save( "a", "{\"status\":\"closed\"}" );
+
+    assertEquals( List.of(), keys( indexes.query( "$.status", "open", null, 10 ) ) );
+    assertEquals( List.of( "a" ), keys( indexes.query( "$.status", "closed", null, 10 ) ) );
+  }
+
+  @Test
+  public void queryNeedsADeclaredIndex() {
+    assertThrows( IllegalArgumentException.class, () -> indexes.query( "$.status", "open", null, 10 ) );
+  }
+
+  private void save(String key, String value) throws Exception {
+    repository.save( key, value, 0, KeyValueRepository.ANY_VERSION, null, false );
+  }
+
+  private static List<String> keys(List<KeyValueStoreResponse> responses) {
+    List<String> keys = new ArrayList<>();
+    for (KeyValueStoreResponse resp : responses) {
+      keys.add( resp.getKey() );
+    }
+    return keys;
+  }
+}
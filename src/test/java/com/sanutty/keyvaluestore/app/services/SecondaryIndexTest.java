@@ -0,0 +1,69 @@
+package com.sanutty.keyvaluestore.app.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sanutty.keyvaluestore.app.util.JSONUtilility;
+
+public class SecondaryIndexTest
+{
+  @Test
+  public void indexesScalarsByTheirText() throws Exception {
+    SecondaryIndex index = new SecondaryIndex( "$.owner.id" );
+    index.update( "a", json( "{\"owner\":{\"id\":5}}" ) );
+    index.update( "b", json( "{\"owner\":{\"id\":\"5\"}}" ) );
+    index.update( "c", json( "{\"owner\":{\"id\":6}}" ) );
+    index.update( "d", json( "{\"owner\":{\"id\":null}}" ) );
+    index.update( "e", json( "{\"owner\":{\"id\":{\"x\":5}}}" ) );
+    index.update( "f", json( "{\"other\":5}" ) );
+
+    assertEquals( List.of( "a", "b" ), keys( index, "5", null ) );
+    assertEquals( List.of( "b" ), keys( index, "5", "a" ) );
+    assertEquals( List.of( "c" ), keys( index, "6", null ) );
+    assertEquals( 3, index.size() );
+  }
+
+  @Test
+  public void moveAndRemoveKeys() throws Exception {
+    SecondaryIndex index = new SecondaryIndex( "$.status" );
+    index.update( "a", json( "{\"status\":\"open\"}" ) );
+    index.update( "a", json( "{\"status\":\"closed\"}" ) );
+    assertTrue( keys( index, "open", null ).isEmpty() );
+    assertEquals( List.of( "a" ), keys( index, "closed", null ) );
+
+    index.update( "a", null );
+    assertTrue( keys( index, "closed", null ).isEmpty() );
+    assertEquals( 0, index.size() );
+  }
+
+  @Test
+  public void arrayStepsAreSupported() throws Exception {
+    SecondaryIndex index = new SecondaryIndex( "$.items[1].sku" );
+    index.update( "a", json( "{\"items\":[{\"sku\":\"x\"},{\"sku\":\"y\"}]}" ) );
+    assertEquals( List.of( "a" ), keys( index, "y", null ) );
+  }
+
+  @Test
+  public void rejectsInvalidPaths() {
+    assertThrows( IllegalArgumentException.class, () -> new SecondaryIndex( "status" ) );
+    assertThrows( IllegalArgumentException.class, () -> new SecondaryIndex( "$" ) );
+    assertThrows( IllegalArgumentException.class, () -> new SecondaryIndex( "$..status" ) );
+    assertThrows( IllegalArgumentException.class, () -> new SecondaryIndex( "$.items[x]" ) );
+  }
+
+  private static List<String> keys(SecondaryIndex index, String term, String after) {
+    return new ArrayList<>( index.keysOf( term, after ) );
+  }
+
+  private static JsonNode json(String text) throws Exception {
+    return JSONUtilility.readTree( text.getBytes( StandardCharsets.UTF_8 ) );
+  }
+}
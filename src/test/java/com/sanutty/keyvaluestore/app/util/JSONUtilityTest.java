@@ -0,0 +1,77 @@
+package com.sanutty.keyvaluestore.app.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.sanutty.keyvaluestore.app.entities.ActionEnum;
+import com.sanutty.keyvaluestore.app.entities.KeyValueStoreRequest;
+
+public class JSONUtilityTest
+{
+  private static final String[] DOCUMENTS = {
+      "{\"first_name\": \"George\", \"age\": 67}",
+      "[1, 2.5, true, null, \"x\"]",
+      "\"text\"",
+      "42",
+      "",
+      "   ",
+      "null",
+      "hello",
+      "{a:1}",
+      "{'a': 'b'}",
+      "[1;2]",
+      "{\"a\" = 1}",
+      "// comment\n{\"a\":1}",
+      "{\"first_name\": \"George\" \"last_name\": \"Washington\"}",
+      "{\"a\":1",
+      "[1, 2",
+      "{\"a\":1}}",
+      "1 2",
+      "{\"a\":}",
+      "\"unterminated",
+  };
+
+  @Test
+  public void acceptsWhatGsonAcceptedBefore() {
+    Gson gson = new Gson();
+    for (String document : DOCUMENTS) {
+      boolean accepted;
+      try {
+        gson.fromJson( document, Object.class );
+        accepted = true;
+      } catch (JsonSyntaxException ex) {
+        accepted = false;
+      }
+      assertEquals( accepted, JSONUtilility.isJson( document ), document );
+    }
+  }
+
+  @Test
+  public void rejectsMalformedValues() {
+    assertTrue( JSONUtilility.isJson( "{a:1}" ) );
+    assertTrue( JSONUtilility.isJson( "" ) );
+    assertFalse( JSONUtilility.isJson( "{\"first_name\": \"George\" \"last_name\": \"Washington\"}" ) );
+    assertFalse( JSONUtilility.isJson( "{\"a\":1" ) );
+  }
+
+  @Test
+  public void readArrayIgnoresUnknownFields() throws Exception {
+    String body = "[{\"key\":\"a\",\"action\":\"Save\",\"payload\":{\"n\":1},\"comment\":\"extra\"}]";
+    Iterator<KeyValueStoreRequest> requests = JSONUtilility.readArray(
+        new ByteArrayInputStream( body.getBytes( StandardCharsets.UTF_8 ) ), KeyValueStoreRequest.class );
+    KeyValueStoreRequest request = requests.next();
+    assertEquals( "a", request.getKey() );
+    assertEquals( ActionEnum.Save, request.getAction() );
+    assertEquals( "{\"n\":1}", request.getPayload().toString() );
+    assertFalse( requests.hasNext() );
+  }
+}
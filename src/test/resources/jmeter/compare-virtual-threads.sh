@@ -0,0 +1,27 @@
+#!/bin/sh
+# Runs the JMeter plan against the RDBM repository on Tomcat's platform threads and then on virtual threads, at
+# each client count given (1000 5000 10000 by default), and prints throughput and p99 latency of every run.
+# Needs a Java 21 runtime, jmeter on the PATH and the jar built with mvn package.
+#
+#   src/test/resources/jmeter/compare-virtual-threads.sh [clients...]
+set -e
+cd "$(dirname "$0")/../../../.."
+JAR=$(ls target/keyvalue-store-*.jar | head -1)
+PLAN="src/test/resources/jmeter/Haus Multiple Users.jmx"
+OUT=target/jmeter
+CLIENTS=${*:-"1000 5000 10000"}
+rm -rf "$OUT" && mkdir -p "$OUT"
+
+printf '%-8s %-8s %14s %10s %8s\n' mode clients "requests/s" "p99 ms" errors
+for VIRTUAL in false true; do
+  java -jar "$JAR" --repository.implementaion.class=RDBM --spring.threads.virtual.enabled=$VIRTUAL \
+      --repository.rdbms.max-concurrency=${MAX_CONCURRENCY:-10} > "$OUT/server-$VIRTUAL.log" 2>&1 &
+  SERVER=$!
+  until curl -sf localhost:9888/actuator/health > /dev/null; do sleep 1; done
+  for N in $CLIENTS; do
+    RUN="$OUT/$VIRTUAL-$N"
+    jmeter -n -t "$PLAN" -Jthreads=$N -Jrampup=${RAMPUP:-30} -Jloops=${LOOPS:-20} -l "$RUN.jtl" -e -o "$RUN" > "$RUN.log"
+    python3 -c "import json,sys; t=json.load(open(sys.argv[1]))['Total']; print('%-8s %-8s %14.1f %10.1f %7.2f%%' % ('virtual' if sys.argv[2] == 'true' else 'platform', sys.argv[3], t['throughput'], t['pct3ResTime'], t['errorPct']))" "$RUN/statistics.json" $VIRTUAL $N
+  done
+  kill $SERVER && wait $SERVER || true
+done